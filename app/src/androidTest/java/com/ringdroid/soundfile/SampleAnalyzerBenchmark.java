@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares the time taken to compute the frame gains of one hour of synthetic stereo samples at
+ * 44.1kHz by the per-sample ShortBuffer loop SoundFile used to have, and by SampleAnalyzer. The
+ * samples are allocated outside of the Java heap (~635MB). The times are logged.
+ *
+ * Run it on a device with:
+ *   ./gradlew connectedAndroidTest \
+ *       -Pandroid.testInstrumentationRunnerArguments.class=\
+ *       com.ringdroid.soundfile.SampleAnalyzerBenchmark
+ */
+@RunWith(AndroidJUnit4.class)
+public class SampleAnalyzerBenchmark {
+    private static final int SECONDS = 3600;
+    private static final int CHANNELS = 2;
+    private static final int SAMPLES_PER_FRAME = 1024;
+
+    @Test
+    public void compareWithShortBufferLoop() {
+        int numFrames = (int)((long)SECONDS * 44100 / SAMPLES_PER_FRAME);
+        ShortBuffer samples = createSamples(numFrames * SAMPLES_PER_FRAME * CHANNELS);
+
+        long start = SystemClock.elapsedRealtime();
+        int[] gains = computeGainsWithShortBufferLoop(samples, numFrames);
+        long loopTime = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        SampleAnalyzer.FrameStats stats =
+                new SampleAnalyzer.FrameStats(numFrames, SAMPLES_PER_FRAME);
+        samples.rewind();
+        SampleAnalyzer.analyze(samples, CHANNELS, SAMPLES_PER_FRAME, numFrames, stats, 0);
+        long analyzeTime = SystemClock.elapsedRealtime() - start;
+
+        Log.i("Ringdroid", String.format(
+                "Frame gains of %d sec of stereo samples: %d ms (ShortBuffer loop), " +
+                "%d ms (SampleAnalyzer, %d cores)", SECONDS, loopTime, analyzeTime,
+                Runtime.getRuntime().availableProcessors()));
+        assertArrayEquals(gains, stats.mGains);
+    }
+
+    // Pseudo-random samples whose amplitude changes every 64k samples.
+    private static ShortBuffer createSamples(int numSamples) {
+        ByteBuffer bytes = ByteBuffer.allocateDirect(numSamples * 2);
+        bytes.order(ByteOrder.LITTLE_ENDIAN);
+        ShortBuffer samples = bytes.asShortBuffer();
+        long seed = 42;
+        for (int i = 0; i < numSamples; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            samples.put(i, (short)((seed >> 48) * ((i >> 16) & 0xFF) >> 8));
+        }
+        return samples;
+    }
+
+    // The frame gain loop of SoundFile before SampleAnalyzer.
+    private static int[] computeGainsWithShortBufferLoop(ShortBuffer samples, int numFrames) {
+        int[] gains = new int[numFrames];
+        samples.rewind();
+        for (int i = 0; i < numFrames; i++) {
+            int gain = -1;
+            for (int j = 0; j < SAMPLES_PER_FRAME; j++) {
+                int value = 0;
+                for (int k = 0; k < CHANNELS; k++) {
+                    value += Math.abs(samples.get());
+                }
+                value /= CHANNELS;
+                if (gain < value) {
+                    gain = value;
+                }
+            }
+            gains[i] = (int)Math.sqrt(gain);
+        }
+        return gains;
+    }
+}
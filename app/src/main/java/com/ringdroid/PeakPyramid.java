@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid;
+
+import java.util.Arrays;
+
+/**
+ * Summary levels of a sequence of (minimum, maximum) pairs of 16 bits values, used to get the
+ * minimum and the maximum of any range of pairs in logarithmic time, as audio editors do to draw
+ * a waveform at any zoom level.
+ *
+ * Level 0 holds the pairs themselves, and each pair of level k + 1 holds the minimum and the
+ * maximum of two consecutive pairs of level k. All the levels together take twice the size of
+ * the pairs.
+ */
+class PeakPyramid {
+    // Pairs of each level, interleaved, with room for more pairs than mLength.
+    private short[][] mLevels;
+    private int mLength;  // number of pairs.
+
+    // Create an empty pyramid.
+    public PeakPyramid() {
+        mLevels = new short[0][];
+        ensureCapacity(256);
+    }
+
+    // Set the numPairs pairs starting at pair first to the numPairs pairs of peaks (interleaved
+    // minimum and maximum) starting at pair offset, extending the pyramid if they go past its
+    // end, and update the levels above them. first must not be past the end of the pyramid.
+    public void set(int first, short[] peaks, int offset, int numPairs) {
+        int end = first + numPairs;
+        ensureCapacity(end);
+        System.arraycopy(peaks, 2 * offset, mLevels[0], 2 * first, 2 * numPairs);
+        mLength = Math.max(mLength, end);
+        for (int k = 1; k < mLevels.length && first < end; k++) {
+            first >>= 1;
+            end = Math.min(((end - 1) >> 1) + 1, mLength >> k);
+            computeLevel(mLevels, k, first, end);
+        }
+    }
+
+    // Drop the pairs past the first length ones.
+    public void setLength(int length) {
+        mLength = Math.min(mLength, length);
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    // Return the minimum of the pairs first to last (excluded), or 0 if this range is empty.
+    // The range is clipped to the pairs of the pyramid.
+    public int getMin(int first, int last) {
+        return get(first, last, 0);
+    }
+
+    // Return the maximum of the pairs first to last (excluded), or 0 if this range is empty.
+    // The range is clipped to the pairs of the pyramid.
+    public int getMax(int first, int last) {
+        return get(first, last, 1);
+    }
+
+    // Return the minimum (if side is 0) or maximum (if side is 1) of the pairs first to last
+    // (excluded), or 0 if this range is empty.
+    private int get(int first, int last, int side) {
+        first = Math.max(first, 0);
+        last = Math.min(last, mLength);
+        if (first >= last) {
+            return 0;
+        }
+        int value = side == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        while (first < last) {
+            // Use the largest block starting at first and ending before last.
+            int k = 0;
+            while (k + 1 < mLevels.length && (first & ((2 << k) - 1)) == 0 &&
+                    first + (2 << k) <= last) {
+                k++;
+            }
+            int v = mLevels[k][2 * (first >> k) + side];
+            value = side == 0 ? Math.min(value, v) : Math.max(value, v);
+            first += 1 << k;
+        }
+        return value;
+    }
+
+    // Make sure capacity pairs can be stored, doubling the capacity if needed. The levels which
+    // get added are computed from the pairs already in the pyramid.
+    private void ensureCapacity(int capacity) {
+        if (mLevels.length > 0 && 2 * capacity <= mLevels[0].length) {
+            return;
+        }
+        if (mLevels.length > 0) {
+            capacity = Math.max(capacity, mLevels[0].length);
+        }
+        int numLevels = 1;
+        while ((capacity >> numLevels) > 0) {
+            numLevels++;
+        }
+        short[][] levels = new short[numLevels][];
+        for (int k = 0; k < numLevels; k++) {
+            if (k < mLevels.length) {
+                levels[k] = Arrays.copyOf(mLevels[k], 2 * (capacity >> k));
+            } else {
+                levels[k] = new short[2 * (capacity >> k)];
+                if (k > 0) {
+                    computeLevel(levels, k, 0, mLength >> k);
+                }
+            }
+        }
+        mLevels = levels;
+    }
+
+    // Compute the pairs first to last (excluded) of level k from level k - 1.
+    private static void computeLevel(short[][] levels, int k, int first, int last) {
+        short[] previous = levels[k - 1];
+        short[] level = levels[k];
+        for (int i = first; i < last; i++) {
+            level[2 * i] = (short)Math.min(previous[4 * i], previous[4 * i + 2]);
+            level[2 * i + 1] = (short)Math.max(previous[4 * i + 1], previous[4 * i + 3]);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Build;
+
+/**
+ * Recording options picked in RingdroidSelectActivity and used by
+ * RingdroidEditActivity when it records, kept in the shared preferences
+ * of the app.
+ */
+public class RecordingSettings {
+    private static final String PREFS_NAME = "recording";
+    private static final String KEY_ENCODE_WHILE_RECORDING = "encode_while_recording";
+    private static final String KEY_SAMPLE_RATE = "sample_rate";
+    private static final String KEY_CHANNELS = "channels";
+    private static final String KEY_AUDIO_SOURCE = "audio_source";
+
+    private static final int[] SAMPLE_RATES = new int[] {8000, 16000, 22050, 44100, 48000};
+    private static final int DEFAULT_SAMPLE_RATE = 44100;
+
+    /**
+     * Sample rate of the recordings, in Hz.
+     */
+    public static int getSampleRate(Context context) {
+        return getPreferences(context).getInt(KEY_SAMPLE_RATE, DEFAULT_SAMPLE_RATE);
+    }
+
+    /**
+     * Number of channels of the recordings: 1 (mono) or 2 (stereo).
+     */
+    public static int getChannels(Context context) {
+        return getPreferences(context).getInt(KEY_CHANNELS, 1);
+    }
+
+    /**
+     * Audio source of the recordings, one of the MediaRecorder.AudioSource
+     * constants.
+     */
+    public static int getAudioSource(Context context) {
+        return getPreferences(context).getInt(
+            KEY_AUDIO_SOURCE, MediaRecorder.AudioSource.DEFAULT);
+    }
+
+    public static void setFormat(Context context, int sampleRate, int channels, int audioSource) {
+        getPreferences(context).edit()
+            .putInt(KEY_SAMPLE_RATE, sampleRate)
+            .putInt(KEY_CHANNELS, channels)
+            .putInt(KEY_AUDIO_SOURCE, audioSource)
+            .apply();
+    }
+
+    /**
+     * True if the device can record channels channels (1 or 2) at
+     * sampleRate Hz.
+     */
+    public static boolean isSupported(int sampleRate, int channels) {
+        int channelConfig = channels == 1 ?
+            AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        return AudioRecord.getMinBufferSize(
+            sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT) > 0;
+    }
+
+    /**
+     * The sample rates the device can record at in mono, in increasing
+     * order. Use isSupported() to check if it can also record them in
+     * stereo.
+     */
+    public static int[] getSupportedSampleRates() {
+        ArrayList<Integer> sampleRates = new ArrayList<Integer>();
+        for (int sampleRate : SAMPLE_RATES) {
+            if (isSupported(sampleRate, 1)) {
+                sampleRates.add(sampleRate);
+            }
+        }
+        if (sampleRates.isEmpty()) {
+            // Recording at 44.1kHz is supported by all devices.
+            sampleRates.add(DEFAULT_SAMPLE_RATE);
+        }
+        int[] result = new int[sampleRates.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = sampleRates.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * The audio sources which can be picked: the default one, the main
+     * microphone, the one tuned for voice recognition (no automatic gain
+     * control nor noise suppression), and the unprocessed one if the
+     * device supports it.
+     */
+    public static int[] getSupportedAudioSources(Context context) {
+        boolean hasUnprocessed = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            AudioManager audioManager =
+                (AudioManager)context.getSystemService(Context.AUDIO_SERVICE);
+            hasUnprocessed = "true".equals(audioManager.getProperty(
+                AudioManager.PROPERTY_SUPPORT_AUDIO_SOURCE_UNPROCESSED));
+        }
+        if (hasUnprocessed) {
+            return new int[] {
+                MediaRecorder.AudioSource.DEFAULT,
+                MediaRecorder.AudioSource.MIC,
+                MediaRecorder.AudioSource.VOICE_RECOGNITION,
+                MediaRecorder.AudioSource.UNPROCESSED
+            };
+        }
+        return new int[] {
+            MediaRecorder.AudioSource.DEFAULT,
+            MediaRecorder.AudioSource.MIC,
+            MediaRecorder.AudioSource.VOICE_RECOGNITION
+        };
+    }
+
+    /**
+     * True if the recordings should be encoded to AAC while they are
+     * recorded, so that saving a whole recording is immediate.
+     */
+    public static boolean getEncodeWhileRecording(Context context) {
+        return getPreferences(context).getBoolean(KEY_ENCODE_WHILE_RECORDING, false);
+    }
+
+    public static void setEncodeWhileRecording(Context context, boolean encodeWhileRecording) {
+        getPreferences(context).edit()
+            .putBoolean(KEY_ENCODE_WHILE_RECORDING, encodeWhileRecording)
+            .apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
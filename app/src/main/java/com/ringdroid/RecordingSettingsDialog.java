@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid;
+
+import java.util.ArrayList;
+
+import android.app.Dialog;
+import android.content.Context;
+import android.content.res.Resources;
+import android.media.MediaRecorder;
+import android.view.View;
+import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.Spinner;
+import android.widget.Toast;
+
+/**
+ * Lets the user pick the sample rate, the number of channels and the audio
+ * source of the recordings, stored in RecordingSettings.
+ */
+public class RecordingSettingsDialog extends Dialog {
+    private Context mContext;
+    private Spinner mSampleRateSpinner;
+    private Spinner mChannelsSpinner;
+    private Spinner mAudioSourceSpinner;
+    private int[] mSampleRates;
+    private int[] mAudioSources;
+
+    public RecordingSettingsDialog(Context context, Resources resources) {
+        super(context);
+        mContext = context;
+
+        // Inflate our UI from its XML layout description.
+        setContentView(R.layout.recording_settings);
+
+        setTitle(resources.getString(R.string.recording_settings_title));
+
+        mSampleRates = RecordingSettings.getSupportedSampleRates();
+        ArrayList<String> sampleRateArray = new ArrayList<String>();
+        for (int sampleRate : mSampleRates) {
+            sampleRateArray.add(
+                resources.getString(R.string.recording_sample_rate_value, sampleRate));
+        }
+        mSampleRateSpinner = createSpinner(R.id.recording_sample_rate, sampleRateArray);
+        mSampleRateSpinner.setSelection(
+            indexOf(mSampleRates, RecordingSettings.getSampleRate(context)));
+
+        ArrayList<String> channelsArray = new ArrayList<String>();
+        channelsArray.add(resources.getString(R.string.recording_mono));
+        channelsArray.add(resources.getString(R.string.recording_stereo));
+        mChannelsSpinner = createSpinner(R.id.recording_channels, channelsArray);
+        mChannelsSpinner.setSelection(RecordingSettings.getChannels(context) == 2 ? 1 : 0);
+
+        mAudioSources = RecordingSettings.getSupportedAudioSources(context);
+        ArrayList<String> audioSourceArray = new ArrayList<String>();
+        for (int audioSource : mAudioSources) {
+            audioSourceArray.add(resources.getString(getAudioSourceName(audioSource)));
+        }
+        mAudioSourceSpinner = createSpinner(R.id.recording_audio_source, audioSourceArray);
+        mAudioSourceSpinner.setSelection(
+            indexOf(mAudioSources, RecordingSettings.getAudioSource(context)));
+
+        Button ok = (Button)findViewById(R.id.recording_settings_ok);
+        ok.setOnClickListener(okListener);
+        Button cancel = (Button)findViewById(R.id.recording_settings_cancel);
+        cancel.setOnClickListener(cancelListener);
+    }
+
+    private Spinner createSpinner(int id, ArrayList<String> items) {
+        ArrayAdapter<String> adapter = new ArrayAdapter<String>(
+            mContext, android.R.layout.simple_spinner_item, items);
+        adapter.setDropDownViewResource(
+            android.R.layout.simple_spinner_dropdown_item);
+        Spinner spinner = (Spinner)findViewById(id);
+        spinner.setAdapter(adapter);
+        return spinner;
+    }
+
+    // Index of value in values, or 0 if it is not there (e.g. a sample rate
+    // not supported anymore).
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static int getAudioSourceName(int audioSource) {
+        switch (audioSource) {
+        case MediaRecorder.AudioSource.MIC:
+            return R.string.recording_source_mic;
+        case MediaRecorder.AudioSource.VOICE_RECOGNITION:
+            return R.string.recording_source_voice_recognition;
+        case MediaRecorder.AudioSource.UNPROCESSED:
+            return R.string.recording_source_unprocessed;
+        default:
+            return R.string.recording_source_default;
+        }
+    }
+
+    private View.OnClickListener okListener = new View.OnClickListener() {
+            public void onClick(View view) {
+                int sampleRate = mSampleRates[mSampleRateSpinner.getSelectedItemPosition()];
+                int channels = mChannelsSpinner.getSelectedItemPosition() + 1;
+                if (!RecordingSettings.isSupported(sampleRate, channels)) {
+                    // e.g. stereo at a rate the device can only record in mono.
+                    Toast.makeText(mContext, R.string.recording_format_not_supported,
+                                   Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                RecordingSettings.setFormat(
+                    mContext,
+                    sampleRate,
+                    channels,
+                    mAudioSources[mAudioSourceSpinner.getSelectedItemPosition()]);
+                dismiss();
+            }
+        };
+
+    private View.OnClickListener cancelListener = new View.OnClickListener() {
+            public void onClick(View view) {
+                dismiss();
+            }
+        };
+}
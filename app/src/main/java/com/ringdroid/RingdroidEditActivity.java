@@ -17,9 +17,11 @@
 package com.ringdroid;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -42,6 +44,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.ImageButton;
+import android.widget.ProgressBar;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -64,9 +67,15 @@ public class RingdroidEditActivity extends Activity
 {
     private long mLoadingLastUpdateTime;
     private boolean mLoadingKeepGoing;
+    private double mLoadingProgress;
+    private long mDecodingLastUpdateTime;
+    private boolean mIsDecoding;
     private long mRecordingLastUpdateTime;
     private boolean mRecordingKeepGoing;
     private double mRecordingTime;
+    private long mRecordingLastDrawTime;
+    private boolean mIsRecording;
+    private ProgressBar mLevelMeter;
     private boolean mFinishActivity;
     private TextView mTimerTextView;
     private AlertDialog mAlertDialog;
@@ -74,6 +83,7 @@ public class RingdroidEditActivity extends Activity
     private SoundFile mSoundFile;
     private File mFile;
     private String mFilename;
+    private File mRecoveredRecordingFile;  // recording file being edited, if any.
     private String mArtist;
     private String mTitle;
     private int mNewFileKind;
@@ -164,6 +174,15 @@ public class RingdroidEditActivity extends Activity
 
         mHandler = new Handler();
 
+        // Decoded samples are stored in app-private files rather than on the heap.
+        SoundFile.setCacheDir(getCacheDir());
+        // Recordings are written to disk as they are recorded, and survive a crash.
+        SoundFile.setRecordingDir(new File(getFilesDir(), "recordings"));
+        SoundFile.setEncodeWhileRecording(RecordingSettings.getEncodeWhileRecording(this));
+        // Used to decide how compactly the samples are kept when they have to stay on the heap.
+        SoundFile.setMemoryClass(
+                ((ActivityManager)getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass());
+
         loadGui();
 
         mHandler.postDelayed(mTimerRunnable, 100);
@@ -171,10 +190,43 @@ public class RingdroidEditActivity extends Activity
         if (!mFilename.equals("record")) {
             loadFromFile();
         } else {
-            recordAudio();
+            File interruptedRecording = SoundFile.getInterruptedRecording();
+            if (interruptedRecording != null) {
+                offerToRecoverRecording(interruptedRecording);
+            } else {
+                recordAudio();
+            }
         }
     }
 
+    // Ask the user whether to edit the recording file, left behind by a recording which was
+    // interrupted, or to discard it and record a new one.
+    private void offerToRecoverRecording(final File recordingFile) {
+        new AlertDialog.Builder(RingdroidEditActivity.this)
+            .setTitle(R.string.recover_recording_title)
+            .setMessage(R.string.recover_recording_message)
+            .setPositiveButton(
+                R.string.recover_recording_button,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int whichButton) {
+                        // The file is deleted when the activity is destroyed.
+                        mRecoveredRecordingFile = recordingFile;
+                        mFilename = recordingFile.getPath();
+                        loadFromFile();
+                    }
+                })
+            .setNegativeButton(
+                R.string.discard_recording_button,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int whichButton) {
+                        recordingFile.delete();
+                        recordAudio();
+                    }
+                })
+            .setCancelable(false)
+            .show();
+    }
+
     private void closeThread(Thread thread) {
         if (thread != null && thread.isAlive()) {
             try {
@@ -213,6 +265,13 @@ public class RingdroidEditActivity extends Activity
             mPlayer.release();
             mPlayer = null;
         }
+        if (mSoundFile != null) {
+            mSoundFile.release();
+        }
+        SoundFile.releaseIdleCodecs();
+        if (mRecoveredRecordingFile != null) {
+            mRecoveredRecordingFile.delete();  // its samples stay mapped until then.
+        }
 
         super.onDestroy();
     }
@@ -240,7 +299,7 @@ public class RingdroidEditActivity extends Activity
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         Log.v("Ringdroid", "EditActivity onConfigurationChanged");
-        final int saveZoomLevel = mWaveformView.getZoomLevel();
+        final double saveZoomLevel = mWaveformView.getZoomLevel();
         super.onConfigurationChanged(newConfig);
 
         loadGui();
@@ -270,8 +329,15 @@ public class RingdroidEditActivity extends Activity
     public boolean onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
         menu.findItem(R.id.action_save).setVisible(true);
+        // The file can only be saved once it has been fully decoded.
+        menu.findItem(R.id.action_save).setEnabled(!mIsDecoding);
         menu.findItem(R.id.action_reset).setVisible(true);
         menu.findItem(R.id.action_about).setVisible(true);
+        // Loading can be stopped to edit the part of the file loaded so far, and resumed later.
+        menu.findItem(R.id.action_stop_loading).setVisible(
+            mIsDecoding && mLoadingKeepGoing && mSoundFile != null);
+        menu.findItem(R.id.action_resume_loading).setVisible(
+            !mIsDecoding && mSoundFile != null && mSoundFile.isPartial());
         return true;
     }
 
@@ -289,6 +355,13 @@ public class RingdroidEditActivity extends Activity
         case R.id.action_about:
             onAbout(this);
             return true;
+        case R.id.action_stop_loading:
+            mLoadingKeepGoing = false;
+            invalidateOptionsMenu();
+            return true;
+        case R.id.action_resume_loading:
+            resumeLoading();
+            return true;
         default:
             return false;
         }
@@ -364,18 +437,8 @@ public class RingdroidEditActivity extends Activity
         updateDisplay();
     }
 
-    public void waveformZoomIn() {
-        mWaveformView.zoomIn();
-        mStartPos = mWaveformView.getStart();
-        mEndPos = mWaveformView.getEnd();
-        mMaxPos = mWaveformView.maxPos();
-        mOffset = mWaveformView.getOffset();
-        mOffsetGoal = mOffset;
-        updateDisplay();
-    }
-
-    public void waveformZoomOut() {
-        mWaveformView.zoomOut();
+    public void waveformZoom(float factor) {
+        mWaveformView.zoom(factor);
         mStartPos = mWaveformView.getStart();
         mEndPos = mWaveformView.getEnd();
         mMaxPos = mWaveformView.maxPos();
@@ -608,6 +671,9 @@ public class RingdroidEditActivity extends Activity
 
         mLoadingLastUpdateTime = getCurrentTime();
         mLoadingKeepGoing = true;
+        mLoadingProgress = 0;
+        mDecodingLastUpdateTime = getCurrentTime();
+        mIsDecoding = true;
         mFinishActivity = false;
         mProgressDialog = new ProgressDialog(RingdroidEditActivity.this);
         mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
@@ -631,15 +697,41 @@ public class RingdroidEditActivity extends Activity
                                 (int) (mProgressDialog.getMax() * fractionComplete));
                         mLoadingLastUpdateTime = now;
                     }
+                    mLoadingProgress = fractionComplete;
                     return mLoadingKeepGoing;
                 }
             };
 
+        // Show the waveform as soon as the decoding starts, and extend it as more frames get
+        // decoded, so that markers can be placed before the whole file has been decoded.
+        final SoundFile.DecodeListener decodeListener =
+            new SoundFile.DecodeListener() {
+                public void onDecodeStarted(final SoundFile soundFile) {
+                    mProgressDialog.dismiss();
+                    Runnable runnable = new Runnable() {
+                        public void run() {
+                            mSoundFile = soundFile;
+                            finishOpeningSoundFile();
+                        }
+                    };
+                    mHandler.post(runnable);
+                }
+
+                public void onFramesDecoded(SoundFile soundFile) {
+                    long now = getCurrentTime();
+                    if (now - mDecodingLastUpdateTime > 250) {
+                        mHandler.post(mFramesDecodedRunnable);
+                        mDecodingLastUpdateTime = now;
+                    }
+                }
+            };
+
         // Load the sound file in a background thread
         mLoadSoundFileThread = new Thread() {
             public void run() {
                 try {
-                    mSoundFile = SoundFile.create(mFile.getAbsolutePath(), listener);
+                    mSoundFile = SoundFile.create(
+                        mFile.getAbsolutePath(), listener, decodeListener);
 
                     if (mSoundFile == null) {
                         mProgressDialog.dismiss();
@@ -683,28 +775,81 @@ public class RingdroidEditActivity extends Activity
                     return;
                 }
                 mProgressDialog.dismiss();
-                if (mLoadingKeepGoing) {
+                if (mFinishActivity) {
+                    RingdroidEditActivity.this.finish();
+                } else if (mLoadingKeepGoing || (mSoundFile.isPartial() && !isFinishing())) {
+                    // If loading was stopped, the part of the file loaded so far can be edited.
                     Runnable runnable = new Runnable() {
                         public void run() {
-                            finishOpeningSoundFile();
+                            finishDecodingSoundFile();
                         }
                     };
                     mHandler.post(runnable);
-                } else if (mFinishActivity){
-                    RingdroidEditActivity.this.finish();
                 }
             }
         };
         mLoadSoundFileThread.start();
     }
 
+    /**
+     * Load the rest of a sound file whose loading was stopped, extending
+     * the waveform as more frames get decoded.
+     */
+    private void resumeLoading() {
+        handlePause();
+        mLoadingKeepGoing = true;
+        mIsDecoding = true;
+        invalidateOptionsMenu();
+        updateCaption();
+        final SoundFile soundFile = mSoundFile;
+        mLoadSoundFileThread = new Thread() {
+            public void run() {
+                final SamplePlayer player;
+                try {
+                    if (!soundFile.resume()) {
+                        return;
+                    }
+                    player = new SamplePlayer(soundFile);
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                    Runnable runnable = new Runnable() {
+                        public void run() {
+                            showFinalAlert(e, getResources().getText(R.string.read_error));
+                        }
+                    };
+                    mHandler.post(runnable);
+                    return;
+                }
+                Runnable runnable = new Runnable() {
+                    public void run() {
+                        if (isFinishing()) {
+                            player.release();
+                            return;
+                        }
+                        // The previous player only knows about the part loaded before.
+                        handlePause();
+                        if (mPlayer != null) {
+                            mPlayer.release();
+                        }
+                        mPlayer = player;
+                        finishDecodingSoundFile();
+                    }
+                };
+                mHandler.post(runnable);
+            }
+        };
+        mLoadSoundFileThread.start();
+    }
+
     private void recordAudio() {
         mFile = null;
         mTitle = null;
         mArtist = null;
 
         mRecordingLastUpdateTime = getCurrentTime();
+        mRecordingLastDrawTime = mRecordingLastUpdateTime;
         mRecordingKeepGoing = true;
+        mIsRecording = true;
         mFinishActivity = false;
         AlertDialog.Builder adBuilder = new AlertDialog.Builder(RingdroidEditActivity.this);
         adBuilder.setTitle(getResources().getText(R.string.progress_dialog_recording));
@@ -730,6 +875,7 @@ public class RingdroidEditActivity extends Activity
         adBuilder.setView(getLayoutInflater().inflate(R.layout.record_audio, null));
         mAlertDialog = adBuilder.show();
         mTimerTextView = (TextView)mAlertDialog.findViewById(R.id.record_audio_timer);
+        mLevelMeter = (ProgressBar)mAlertDialog.findViewById(R.id.record_audio_level);
 
         final SoundFile.ProgressListener listener =
             new SoundFile.ProgressListener() {
@@ -751,11 +897,46 @@ public class RingdroidEditActivity extends Activity
                 }
             };
 
-        // Record the audio stream in a background thread
+        // Draw the waveform as the audio gets recorded, at most 25 times per second, and update
+        // the level meter at the same time, so that editing can start as soon as it stops.
+        final SoundFile.DecodeListener decodeListener =
+            new SoundFile.DecodeListener() {
+                public void onDecodeStarted(final SoundFile soundFile) {
+                    Runnable runnable = new Runnable() {
+                        public void run() {
+                            mSoundFile = soundFile;
+                            finishOpeningSoundFile();
+                        }
+                    };
+                    mHandler.post(runnable);
+                }
+
+                public void onFramesDecoded(SoundFile soundFile) {
+                    long now = getCurrentTime();
+                    if (now - mRecordingLastDrawTime > 40) {
+                        final float peak = soundFile.getRecordingPeak();
+                        final float rms = soundFile.getRecordingRms();
+                        Runnable runnable = new Runnable() {
+                            public void run() {
+                                updateLevelMeter(peak, rms);
+                                updateDecodedFrames();
+                            }
+                        };
+                        mHandler.post(runnable);
+                        mRecordingLastDrawTime = now;
+                    }
+                }
+            };
+
+        // Record the audio stream in a background thread, in the format picked by the user.
+        final int sampleRate = RecordingSettings.getSampleRate(this);
+        final int channels = RecordingSettings.getChannels(this);
+        final int audioSource = RecordingSettings.getAudioSource(this);
         mRecordAudioThread = new Thread() {
             public void run() {
                 try {
-                    mSoundFile = SoundFile.record(listener);
+                    mSoundFile = SoundFile.record(
+                        listener, decodeListener, sampleRate, channels, audioSource);
                     if (mSoundFile == null) {
                         mAlertDialog.dismiss();
                         Runnable runnable = new Runnable() {
@@ -792,9 +973,13 @@ public class RingdroidEditActivity extends Activity
                 if (mFinishActivity){
                     RingdroidEditActivity.this.finish();
                 } else {
+                    // The waveform has been drawn while recording (onDecodeStarted() was
+                    // called first), only the last frames are missing.
                     Runnable runnable = new Runnable() {
                         public void run() {
-                            finishOpeningSoundFile();
+                            mIsRecording = false;
+                            updateDecodedFrames();
+                            mSoundFile.warmUpEncoder();
                         }
                     };
                     mHandler.post(runnable);
@@ -821,15 +1006,84 @@ public class RingdroidEditActivity extends Activity
         if (mEndPos > mMaxPos)
             mEndPos = mMaxPos;
 
+        updateCaption();
+        updateDisplay();
+    }
+
+    private Runnable mFramesDecodedRunnable = new Runnable() {
+            public void run() {
+                updateDecodedFrames();
+            }
+        };
+
+    /**
+     * Called each time more frames of the sound file being loaded have
+     * been decoded.
+     */
+    private void updateDecodedFrames() {
+        if (mSoundFile == null || !mWaveformView.hasSoundFile()) {
+            return;
+        }
+        int oldMaxPos = mMaxPos;
+        mWaveformView.updateFrameGains();
+        mMaxPos = mWaveformView.maxPos();
+
+        // If the end marker is stuck at the end of the decoded part of the
+        // file, let it follow the decoding up to its default position.
+        int defaultEndPos = mWaveformView.secondsToPixels(15.0);
+        if (mEndPos == oldMaxPos && mEndPos < defaultEndPos) {
+            mEndPos = Math.min(defaultEndPos, mMaxPos);
+        }
+        if (mIsRecording) {
+            // Keep the audio being recorded in view.
+            setOffsetGoalNoUpdate(mMaxPos - mWidth);
+        }
+
+        updateCaption();
+        updateDisplay();
+    }
+
+    /**
+     * Show the peak and RMS levels (between 0 and 1) of the audio being
+     * recorded, on a logarithmic scale covering the last 60dB.
+     */
+    private void updateLevelMeter(float peak, float rms) {
+        mLevelMeter.setProgress(levelToPercent(rms));
+        mLevelMeter.setSecondaryProgress(levelToPercent(peak));
+    }
+
+    private int levelToPercent(float level) {
+        if (level <= 0) {
+            return 0;
+        }
+        double decibels = 20 * Math.log10(level);
+        return (int)Math.max(0, Math.min(100, 100 + decibels * 100 / 60));
+    }
+
+    /**
+     * Called once the whole sound file has been decoded.
+     */
+    private void finishDecodingSoundFile() {
+        mIsDecoding = false;
+        updateDecodedFrames();
+        invalidateOptionsMenu();
+        // Get the encoder ready while the user is editing, so that saving starts right away.
+        mSoundFile.warmUpEncoder();
+    }
+
+    private void updateCaption() {
         mCaption =
             mSoundFile.getFiletype() + ", " +
             mSoundFile.getSampleRate() + " Hz, " +
             mSoundFile.getAvgBitrateKbps() + " kbps, " +
             formatTime(mMaxPos) + " " +
             getResources().getString(R.string.time_seconds);
+        if (mIsDecoding) {
+            mCaption += " (" +
+                getResources().getString(R.string.progress_dialog_loading) + " " +
+                (int)(100 * mLoadingProgress) + "%)";
+        }
         mInfo.setText(mCaption);
-
-        updateDisplay();
     }
 
     private synchronized void updateDisplay() {
@@ -264,6 +264,8 @@ public class RingdroidSelectActivity
         // TODO(nfaralli): do we really need a "Show all audio" item now?
         menu.findItem(R.id.action_show_all_audio).setVisible(true);
         menu.findItem(R.id.action_show_all_audio).setEnabled(!mShowAll);
+        menu.findItem(R.id.action_encode_while_recording).setChecked(
+            RecordingSettings.getEncodeWhileRecording(this));
         return true;
     }
 
@@ -280,6 +282,12 @@ public class RingdroidSelectActivity
             mShowAll = true;
             refreshListView();
             return true;
+        case R.id.action_recording_settings:
+            new RecordingSettingsDialog(this, getResources()).show();
+            return true;
+        case R.id.action_encode_while_recording:
+            RecordingSettings.setEncodeWhileRecording(this, !item.isChecked());
+            return true;
         default:
             return false;
         }
@@ -16,11 +16,15 @@
 
 package com.ringdroid;
 
+import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
+import android.os.Build;
+import android.util.Log;
 
 import com.ringdroid.soundfile.SoundFile;
 
@@ -29,39 +33,56 @@ class SamplePlayer {
         public void onCompletion();
     };
 
-    private ShortBuffer mSamples;
+    private SoundFile mSoundFile;
     private int mSampleRate;
     private int mChannels;
     private int mNumSamples;  // Number of samples per channel.
     private AudioTrack mAudioTrack;
     private short[] mBuffer;
+    private ShortBuffer mBufferWrapper;  // wraps mBuffer.
+    // Used instead of mBuffer to play high resolution samples as float, on API 21+.
+    private float[] mFloatBuffer;
+    private FloatBuffer mFloatBufferWrapper;  // wraps mFloatBuffer.
     private int mPlaybackStart;  // Start offset, in samples.
     private Thread mPlayThread;
     private boolean mKeepPlaying;
     private OnCompletionListener mListener;
 
-    public SamplePlayer(ShortBuffer samples, int sampleRate, int channels, int numSamples) {
-        mSamples = samples;
-        mSampleRate = sampleRate;
-        mChannels = channels;
-        mNumSamples = numSamples;
+    // The samples are pulled from soundFile with SoundFile.readSamples(), so that only the
+    // samples which are actually played need to be decoded. High resolution samples are played as
+    // float if the device supports it (API 21+), and as 16 bits PCM otherwise.
+    public SamplePlayer(SoundFile soundFile) {
+        mSoundFile = soundFile;
+        mSampleRate = soundFile.getSampleRate();
+        mChannels = soundFile.getChannels();
+        mNumSamples = soundFile.getNumSamples();
         mPlaybackStart = 0;
 
+        boolean playFloat = soundFile.getEncoding() != AudioFormat.ENCODING_PCM_16BIT &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        int encoding = playFloat ? AudioFormat.ENCODING_PCM_FLOAT : AudioFormat.ENCODING_PCM_16BIT;
+        int bytesPerValue = playFloat ? 4 : 2;
         int bufferSize = AudioTrack.getMinBufferSize(
                 mSampleRate,
                 mChannels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO,
-                AudioFormat.ENCODING_PCM_16BIT);
-        // make sure minBufferSize can contain at least 1 second of audio (16 bits sample).
-        if (bufferSize < mChannels * mSampleRate * 2) {
-            bufferSize = mChannels * mSampleRate * 2;
+                encoding);
+        // make sure minBufferSize can contain at least 1 second of audio.
+        if (bufferSize < mChannels * mSampleRate * bytesPerValue) {
+            bufferSize = mChannels * mSampleRate * bytesPerValue;
+        }
+        if (playFloat) {
+            mFloatBuffer = new float[bufferSize / bytesPerValue];  // bufferSize is in Bytes.
+            mFloatBufferWrapper = FloatBuffer.wrap(mFloatBuffer);
+        } else {
+            mBuffer = new short[bufferSize / bytesPerValue];  // bufferSize is in Bytes.
+            mBufferWrapper = ShortBuffer.wrap(mBuffer);
         }
-        mBuffer = new short[bufferSize/2]; // bufferSize is in Bytes.
         mAudioTrack = new AudioTrack(
                 AudioManager.STREAM_MUSIC,
                 mSampleRate,
                 mChannels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO,
-                AudioFormat.ENCODING_PCM_16BIT,
-                mBuffer.length * 2,
+                encoding,
+                bufferSize,
                 AudioTrack.MODE_STREAM);
         // Check when player played all the given data and notify user if mListener is set.
         mAudioTrack.setNotificationMarkerPosition(mNumSamples - 1);  // Set the marker to the end.
@@ -83,10 +104,6 @@ class SamplePlayer {
         mListener = null;
     }
 
-    public SamplePlayer(SoundFile sf) {
-        this(sf.getSamples(), sf.getSampleRate(), sf.getChannels(), sf.getNumSamples());
-    }
-
     public void setOnCompletionListener(OnCompletionListener listener) {
         mListener = listener;
     }
@@ -110,21 +127,38 @@ class SamplePlayer {
         // (Assumes mChannels = 1 or 2).
         mPlayThread = new Thread () {
             public void run() {
-                int position = mPlaybackStart * mChannels;
-                mSamples.position(position);
-                int limit = mNumSamples * mChannels;
-                while (mSamples.position() < limit && mKeepPlaying) {
-                    int numSamplesLeft = limit - mSamples.position();
-                    if(numSamplesLeft >= mBuffer.length) {
-                        mSamples.get(mBuffer);
-                    } else {
-                        for(int i=numSamplesLeft; i<mBuffer.length; i++) {
+                int position = mPlaybackStart;  // in samples per channel.
+                int bufferLength = mBuffer != null ? mBuffer.length : mFloatBuffer.length;
+                while (position < mNumSamples && mKeepPlaying) {
+                    int numSamples = Math.min(bufferLength / mChannels, mNumSamples - position);
+                    int numRead;
+                    try {
+                        if (mBuffer != null) {
+                            mBufferWrapper.clear();
+                            numRead = mSoundFile.readSamples(position, numSamples, mBufferWrapper);
+                        } else {
+                            mFloatBufferWrapper.clear();
+                            numRead = mSoundFile.readSamples(
+                                    position, numSamples, mFloatBufferWrapper);
+                        }
+                    } catch (IOException e) {
+                        Log.e("Ringdroid", "Failed to read samples: " + e);
+                        break;
+                    }
+                    position += numSamples;
+                    if (mBuffer != null) {
+                        for(int i=numRead * mChannels; i<mBuffer.length; i++) {
                             mBuffer[i] = 0;
                         }
-                        mSamples.get(mBuffer, 0, numSamplesLeft);
+                        // TODO(nfaralli): use the write method that takes a ByteBuffer as argument.
+                        mAudioTrack.write(mBuffer, 0, mBuffer.length);
+                    } else {
+                        for (int i = numRead * mChannels; i < mFloatBuffer.length; i++) {
+                            mFloatBuffer[i] = 0;
+                        }
+                        mAudioTrack.write(mFloatBuffer, 0, mFloatBuffer.length,
+                                AudioTrack.WRITE_BLOCKING);
                     }
-                    // TODO(nfaralli): use the write method that takes a ByteBuffer as argument.
-                    mAudioTrack.write(mBuffer, 0, mBuffer.length);
                 }
             }
         };
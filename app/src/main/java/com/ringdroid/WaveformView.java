@@ -30,10 +30,16 @@ import android.view.View;
 
 import com.ringdroid.soundfile.SoundFile;
 
+import java.io.IOException;
+import java.nio.ShortBuffer;
+
 /**
  * WaveformView is an Android view that displays a visual representation
- * of an audio waveform.  It retrieves the frame gains from a CheapSoundFile
- * object and recomputes the shape contour at several zoom levels.
+ * of an audio waveform.  It retrieves the minimum and maximum of each
+ * block of samples from a SoundFile object, and keeps them in a peak
+ * pyramid, from which the real peaks of the samples covered by each pixel
+ * can be drawn at any zoom level.  When zoomed in enough, the samples
+ * themselves are drawn.
  *
  * This class doesn't handle selection or any of the touch interactions
  * directly, so it exposes a listener interface.  The class that embeds
@@ -50,28 +56,49 @@ public class WaveformView extends View {
         public void waveformTouchEnd();
         public void waveformFling(float x);
         public void waveformDraw();
-        public void waveformZoomIn();
-        public void waveformZoomOut();
+        public void waveformZoom(float factor);
     };
 
     // Colors
     private Paint mGridPaint;
     private Paint mSelectedLinePaint;
     private Paint mUnselectedLinePaint;
+    private Paint mSelectedRmsPaint;
+    private Paint mUnselectedRmsPaint;
     private Paint mUnselectedBkgndLinePaint;
     private Paint mBorderLinePaint;
     private Paint mPlaybackLinePaint;
     private Paint mTimecodePaint;
 
+    // Zoom limits, in samples per pixel.
+    private static final double MIN_SAMPLES_PER_PIXEL = 1.0;
+    private static final double MIN_MAX_SAMPLES_PER_PIXEL = 8 * 1024;
+
     private SoundFile mSoundFile;
-    private int[] mLenByZoomLevel;
-    private double[][] mValuesByZoomLevel;
-    private double[] mZoomFactorByZoomLevel;
-    private int[] mHeightsAtThisZoomLevel;
-    private int mZoomLevel;
-    private int mNumZoomLevels;
+    // Minimum and maximum of each block of samples (averaged over the channels). The blocks of
+    // the frames whose gains are only approximations get the gain of their frame instead.
+    private PeakPyramid mPeaks;
+    private PeakPyramid mRmsPeaks;  // RMS value of each frame (as its maximum, minimum 0).
+    private int mNumExactPeakFrames;  // number of first frames drawn from exact peaks.
+    private double mSamplesPerPixel;  // zoom level.
+    // Heights above and below the center line of the pixels being drawn, and height of their RMS
+    // level (drawn on both sides).
+    private int[] mHeights;
+    private int[] mDepths;
+    private int[] mRmsHeights;
+    // Samples read from mSoundFile to be drawn, for the samples mCachedSamplesStart to
+    // mCachedSamplesEnd (excluded), fewer past the end of the file. They are read in the
+    // background by mSampleLoader, and drawn from the peak pyramid until then.
+    private ShortBuffer mCachedSamples;
+    private int mCachedSamplesStart;
+    private int mCachedSamplesEnd;
+    private Thread mSampleLoader;
+    private boolean mCannotReadSamples;
     private int mSampleRate;
     private int mSamplesPerFrame;
+    // The samples are drawn instead of the peak pyramid up to this number of samples per pixel,
+    // so that a pixel never covers less than a block of the pyramid.
+    private int mSamplesPerBlock;
     private int mOffset;
     private int mSelectionStart;
     private int mSelectionEnd;
@@ -99,6 +126,12 @@ public class WaveformView extends View {
         mUnselectedLinePaint = new Paint();
         mUnselectedLinePaint.setAntiAlias(false);
         mUnselectedLinePaint.setColor(res.getColor(R.color.waveform_unselected));
+        mSelectedRmsPaint = new Paint();
+        mSelectedRmsPaint.setAntiAlias(false);
+        mSelectedRmsPaint.setColor(res.getColor(R.color.waveform_selected_rms));
+        mUnselectedRmsPaint = new Paint();
+        mUnselectedRmsPaint.setAntiAlias(false);
+        mUnselectedRmsPaint.setColor(res.getColor(R.color.waveform_unselected_rms));
         mUnselectedBkgndLinePaint = new Paint();
         mUnselectedBkgndLinePaint.setAntiAlias(false);
         mUnselectedBkgndLinePaint.setColor(res.getColor(R.color.waveform_unselected_bkgnd_overlay));
@@ -135,16 +168,12 @@ public class WaveformView extends View {
                     return true;
                 }
                 public boolean onScale(ScaleGestureDetector d) {
+                    // The zoom follows the fingers continuously.
                     float scale = Math.abs(d.getCurrentSpanX());
-                    Log.v("Ringdroid", "Scale " + (scale - mInitialScaleSpan));
-                    if (scale - mInitialScaleSpan > 40) {
-                        mListener.waveformZoomIn();
-                        mInitialScaleSpan = scale;
-                    }
-                    if (scale - mInitialScaleSpan < -40) {
-                        mListener.waveformZoomOut();
-                        mInitialScaleSpan = scale;
+                    if (mInitialScaleSpan > 0 && scale > 0) {
+                        mListener.waveformZoom(scale / mInitialScaleSpan);
                     }
+                    mInitialScaleSpan = scale;
                     return true;
                 }
                 public void onScaleEnd(ScaleGestureDetector d) {
@@ -154,9 +183,9 @@ public class WaveformView extends View {
         );
 
         mSoundFile = null;
-        mLenByZoomLevel = null;
-        mValuesByZoomLevel = null;
-        mHeightsAtThisZoomLevel = null;
+        mPeaks = null;
+        mRmsPeaks = null;
+        mCachedSamples = null;
         mOffset = 0;
         mPlaybackPos = -1;
         mSelectionStart = 0;
@@ -194,67 +223,92 @@ public class WaveformView extends View {
         mSoundFile = soundFile;
         mSampleRate = mSoundFile.getSampleRate();
         mSamplesPerFrame = mSoundFile.getSamplesPerFrame();
-        computeDoublesForAllZoomLevels();
-        mHeightsAtThisZoomLevel = null;
+        mSamplesPerBlock = mSoundFile.getSamplesPerBlock();
+        mCachedSamples = null;
+        mCannotReadSamples = false;
+        mPeaks = null;
+        mRmsPeaks = null;
+        computePeaks();
+        // Pick the zoom level from the final length of the file, which may still be decoding.
+        int numFrames = mSoundFile.getExpectedNumFrames();
+        if (numFrames > 5000) {
+            mSamplesPerPixel = 4 * mSamplesPerFrame;
+        } else if (numFrames > 1000) {
+            mSamplesPerPixel = 2 * mSamplesPerFrame;
+        } else if (numFrames > 300) {
+            mSamplesPerPixel = mSamplesPerFrame;
+        } else {
+            mSamplesPerPixel = mSamplesPerFrame / 2;
+        }
     }
 
-    public boolean isInitialized() {
-        return mInitialized;
+    /**
+     * Called when new frames of a sound file decoded in streaming mode are
+     * available. Keeps the current zoom level, offset and selection.
+     */
+    public void updateFrameGains() {
+        if (mCachedSamples != null && mCachedSamples.limit() / mSoundFile.getChannels() <
+                mCachedSamplesEnd - mCachedSamplesStart) {
+            // The samples past the end of the file when they were read may be available now.
+            mCachedSamples = null;
+        }
+        computePeaks();
+        invalidate();
     }
 
-    public int getZoomLevel() {
-        return mZoomLevel;
+    public boolean isInitialized() {
+        return mInitialized;
     }
 
-    public void setZoomLevel(int zoomLevel) {
-        while (mZoomLevel > zoomLevel) {
-            zoomIn();
-        }
-        while (mZoomLevel < zoomLevel) {
-            zoomOut();
-        }
+    /**
+     * The zoom level, as a number of samples (per channel) per pixel.
+     */
+    public double getZoomLevel() {
+        return mSamplesPerPixel;
     }
 
-    public boolean canZoomIn() {
-        return (mZoomLevel > 0);
+    public void setZoomLevel(double samplesPerPixel) {
+        zoom((float)(mSamplesPerPixel / samplesPerPixel));
     }
 
-    public void zoomIn() {
-        if (canZoomIn()) {
-            mZoomLevel--;
-            mSelectionStart *= 2;
-            mSelectionEnd *= 2;
-            mHeightsAtThisZoomLevel = null;
-            int offsetCenter = mOffset + getMeasuredWidth() / 2;
-            offsetCenter *= 2;
-            mOffset = offsetCenter - getMeasuredWidth() / 2;
-            if (mOffset < 0)
-                mOffset = 0;
-            invalidate();
+    /**
+     * Zoom in (if factor > 1) or out (if factor < 1) by the given factor,
+     * within the zoom limits, keeping the center of the view in place.
+     */
+    public void zoom(float factor) {
+        if (mPeaks == null) {
+            return;
         }
+        double samplesPerPixel = mSamplesPerPixel / factor;
+        samplesPerPixel = Math.min(samplesPerPixel, getMaxSamplesPerPixel());
+        samplesPerPixel = Math.max(samplesPerPixel, MIN_SAMPLES_PER_PIXEL);
+        double scale = mSamplesPerPixel / samplesPerPixel;
+        if (scale == 1.0) {
+            return;
+        }
+        mSamplesPerPixel = samplesPerPixel;
+        mSelectionStart = (int)(mSelectionStart * scale + 0.5);
+        mSelectionEnd = (int)(mSelectionEnd * scale + 0.5);
+        int offsetCenter = mOffset + getMeasuredWidth() / 2;
+        offsetCenter = (int)(offsetCenter * scale + 0.5);
+        mOffset = offsetCenter - getMeasuredWidth() / 2;
+        if (mOffset < 0)
+            mOffset = 0;
+        invalidate();
     }
 
-    public boolean canZoomOut() {
-        return (mZoomLevel < mNumZoomLevels - 1);
-    }
-
-    public void zoomOut() {
-        if (canZoomOut()) {
-            mZoomLevel++;
-            mSelectionStart /= 2;
-            mSelectionEnd /= 2;
-            int offsetCenter = mOffset + getMeasuredWidth() / 2;
-            offsetCenter /= 2;
-            mOffset = offsetCenter - getMeasuredWidth() / 2;
-            if (mOffset < 0)
-                mOffset = 0;
-            mHeightsAtThisZoomLevel = null;
-            invalidate();
+    // Zooming out stops once the whole file fits in the view.
+    private double getMaxSamplesPerPixel() {
+        double samplesPerPixel = MIN_MAX_SAMPLES_PER_PIXEL;
+        if (mPeaks != null && getMeasuredWidth() > 0) {
+            samplesPerPixel = Math.max(samplesPerPixel,
+                    (double)mPeaks.getLength() * mSamplesPerBlock / getMeasuredWidth());
         }
+        return samplesPerPixel;
     }
 
     public int maxPos() {
-        return mLenByZoomLevel[mZoomLevel];
+        return (int)(mPeaks.getLength() * (double)mSamplesPerBlock / mSamplesPerPixel);
     }
 
     public int secondsToFrames(double seconds) {
@@ -262,25 +316,21 @@ public class WaveformView extends View {
     }
 
     public int secondsToPixels(double seconds) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
-        return (int)(z * seconds * mSampleRate / mSamplesPerFrame + 0.5);
+        return (int)(seconds * mSampleRate / mSamplesPerPixel + 0.5);
     }
 
     public double pixelsToSeconds(int pixels) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
-        return (pixels * (double)mSamplesPerFrame / (mSampleRate * z));
+        return (pixels * mSamplesPerPixel / mSampleRate);
     }
 
     public int millisecsToPixels(int msecs) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
-        return (int)((msecs * 1.0 * mSampleRate * z) /
-                     (1000.0 * mSamplesPerFrame) + 0.5);
+        return (int)((msecs * 1.0 * mSampleRate) /
+                     (1000.0 * mSamplesPerPixel) + 0.5);
     }
 
     public int pixelsToMillisecs(int pixels) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
-        return (int)(pixels * (1000.0 * mSamplesPerFrame) /
-                     (mSampleRate * z) + 0.5);
+        return (int)(pixels * (1000.0 * mSamplesPerPixel) /
+                     mSampleRate + 0.5);
     }
 
     public void setParameters(int start, int end, int offset) {
@@ -310,7 +360,6 @@ public class WaveformView extends View {
     }
 
     public void recomputeHeights(float density) {
-        mHeightsAtThisZoomLevel = null;
         mDensity = density;
         mTimecodePaint.setTextSize((int)(12 * density));
 
@@ -329,18 +378,17 @@ public class WaveformView extends View {
         if (mSoundFile == null)
             return;
 
-        if (mHeightsAtThisZoomLevel == null)
-            computeIntsForThisZoomLevel();
-
         // Draw waveform
         int measuredWidth = getMeasuredWidth();
         int measuredHeight = getMeasuredHeight();
         int start = mOffset;
-        int width = mHeightsAtThisZoomLevel.length - start;
+        int width = maxPos() - start;
         int ctr = measuredHeight / 2;
 
         if (width > measuredWidth)
             width = measuredWidth;
+        if (width > 0)
+            computeHeights(start, width);
 
         // Draw grid
         double onePixelInSecs = pixelsToSeconds(1);
@@ -363,19 +411,30 @@ public class WaveformView extends View {
         // Draw waveform
         for (i = 0; i < width; i++) {
             Paint paint;
+            Paint rmsPaint;
             if (i + start >= mSelectionStart &&
                 i + start < mSelectionEnd) {
                 paint = mSelectedLinePaint;
+                rmsPaint = mSelectedRmsPaint;
             } else {
                 drawWaveformLine(canvas, i, 0, measuredHeight,
                                  mUnselectedBkgndLinePaint);
                 paint = mUnselectedLinePaint;
+                rmsPaint = mUnselectedRmsPaint;
             }
             drawWaveformLine(
                 canvas, i,
-                ctr - mHeightsAtThisZoomLevel[start + i],
-                ctr + 1 + mHeightsAtThisZoomLevel[start + i],
+                ctr - mHeights[i],
+                ctr + 1 + mDepths[i],
                 paint);
+            // The RMS level is drawn over the peaks, within them.
+            if (mRmsHeights[i] > 0) {
+                drawWaveformLine(
+                    canvas, i,
+                    ctr - Math.min(mRmsHeights[i], mHeights[i]),
+                    ctr + 1 + Math.min(mRmsHeights[i], mDepths[i]),
+                    rmsPaint);
+            }
 
             if (i + start == mPlaybackPos) {
                 canvas.drawLine(i, 0, i, measuredHeight, mPlaybackLinePaint);
@@ -443,148 +502,188 @@ public class WaveformView extends View {
     }
 
     /**
-     * Called once when a new sound file is added
+     * Called once when a new sound file is added, and each time more frames
+     * have been decoded. Only the peaks of the frames which changed are
+     * updated: the approximations which have been replaced, and the new
+     * frames.
      */
-    private void computeDoublesForAllZoomLevels() {
+    private void computePeaks() {
         int numFrames = mSoundFile.getNumFrames();
+        int numExactFrames = mSoundFile.getNumExactFrames();
         int[] frameGains = mSoundFile.getFrameGains();
-        double[] smoothedGains = new double[numFrames];
-        if (numFrames == 1) {
-            smoothedGains[0] = frameGains[0];
-        } else if (numFrames == 2) {
-            smoothedGains[0] = frameGains[0];
-            smoothedGains[1] = frameGains[1];
-        } else if (numFrames > 2) {
-            smoothedGains[0] = (double)(
-                (frameGains[0] / 2.0) +
-                (frameGains[1] / 2.0));
-            for (int i = 1; i < numFrames - 1; i++) {
-                smoothedGains[i] = (double)(
-                    (frameGains[i - 1] / 3.0) +
-                    (frameGains[i    ] / 3.0) +
-                    (frameGains[i + 1] / 3.0));
-            }
-            smoothedGains[numFrames - 1] = (double)(
-                (frameGains[numFrames - 2] / 2.0) +
-                (frameGains[numFrames - 1] / 2.0));
+        byte[] frameRms = mSoundFile.getFrameRms();
+        short[] blockPeaks = mSoundFile.getBlockPeaks();
+        // The blocks are assumed to be contiguous, i.e. the frames to hold a whole number of them.
+        int blocksPerFrame = mSoundFile.getBlocksPerFrame();
+        // The arrays may have been trimmed since the number of frames was read.
+        numFrames = Math.min(numFrames, Math.min(frameGains.length, frameRms.length));
+        numFrames = Math.min(numFrames, blockPeaks.length / (2 * blocksPerFrame));
+        numExactFrames = Math.min(numExactFrames, numFrames);
+
+        int first;
+        int last;
+        if (mPeaks == null) {
+            mPeaks = new PeakPyramid();
+            mRmsPeaks = new PeakPyramid();
+            first = 0;
+            last = numFrames;
+        } else {
+            int numPeakFrames = mRmsPeaks.getLength();
+            first = Math.min(Math.min(mNumExactPeakFrames, numPeakFrames), numFrames);
+            last = numFrames != numPeakFrames ? numFrames : Math.max(numExactFrames, first);
+            mPeaks.setLength(numFrames * blocksPerFrame);
+            mRmsPeaks.setLength(numFrames);
         }
 
-        // Make sure the range is no more than 0 - 255
-        double maxGain = 1.0;
-        for (int i = 0; i < numFrames; i++) {
-            if (smoothedGains[i] > maxGain) {
-                maxGain = smoothedGains[i];
+        if (first < last) {
+            // The exact peaks are used as they are.
+            int exactEnd = Math.max(Math.min(last, numExactFrames), first);
+            mPeaks.set(first * blocksPerFrame, blockPeaks, first * blocksPerFrame,
+                    (exactEnd - first) * blocksPerFrame);
+            // The approximate gains are square roots of the peak of their frame.
+            if (exactEnd < last) {
+                short[] peaks = new short[2 * (last - exactEnd) * blocksPerFrame];
+                for (int i = exactEnd; i < last; i++) {
+                    int gain = frameGains[i];
+                    short peak = (short)Math.min(gain * gain, Short.MAX_VALUE);
+                    int j = 2 * (i - exactEnd) * blocksPerFrame;
+                    for (int k = 0; k < blocksPerFrame; k++) {
+                        peaks[j++] = (short)-peak;
+                        peaks[j++] = peak;
+                    }
+                }
+                mPeaks.set(exactEnd * blocksPerFrame, peaks, 0, (last - exactEnd) * blocksPerFrame);
             }
+            // The RMS levels are square roots of the RMS values.
+            short[] rmsPeaks = new short[2 * (last - first)];
+            for (int i = first; i < last; i++) {
+                int level = frameRms[i] & 0xFF;
+                rmsPeaks[2 * (i - first) + 1] = (short)Math.min(level * level, Short.MAX_VALUE);
+            }
+            mRmsPeaks.set(first, rmsPeaks, 0, last - first);
         }
-        double scaleFactor = 1.0;
-        if (maxGain > 255.0) {
-            scaleFactor = 255 / maxGain;
-        }
-
-        // Build histogram of 256 bins and figure out the new scaled max
-        maxGain = 0;
-        int gainHist[] = new int[256];
-        for (int i = 0; i < numFrames; i++) {
-            int smoothedGain = (int)(smoothedGains[i] * scaleFactor);
-            if (smoothedGain < 0)
-                smoothedGain = 0;
-            if (smoothedGain > 255)
-                smoothedGain = 255;
-
-            if (smoothedGain > maxGain)
-                maxGain = smoothedGain;
-
-            gainHist[smoothedGain]++;
-        }
-
-        // Re-calibrate the min to be 5%
-        double minGain = 0;
-        int sum = 0;
-        while (minGain < 255 && sum < numFrames / 20) {
-            sum += gainHist[(int)minGain];
-            minGain++;
-        }
+        mNumExactPeakFrames = numExactFrames;
 
-        // Re-calibrate the max to be 99%
-        sum = 0;
-        while (maxGain > 2 && sum < numFrames / 100) {
-            sum += gainHist[(int)maxGain];
-            maxGain--;
-        }
+        mInitialized = true;
+    }
 
-        // Compute the heights
-        double[] heights = new double[numFrames];
-        double range = maxGain - minGain;
-        for (int i = 0; i < numFrames; i++) {
-            double value = (smoothedGains[i] * scaleFactor - minGain) / range;
-            if (value < 0.0)
-                value = 0.0;
-            if (value > 1.0)
-                value = 1.0;
-            heights[i] = value * value;
+    /**
+     * Compute the heights of the width pixels starting at pixel start, from
+     * the peak pyramids, or from the samples themselves when zoomed in
+     * enough. Each pixel gets the minimum and maximum of all the blocks it
+     * covers (at least one).
+     */
+    private void computeHeights(int start, int width) {
+        if (mHeights == null || mHeights.length < width) {
+            mHeights = new int[width];
+            mDepths = new int[width];
+            mRmsHeights = new int[width];
         }
-
-        mNumZoomLevels = 5;
-        mLenByZoomLevel = new int[5];
-        mZoomFactorByZoomLevel = new double[5];
-        mValuesByZoomLevel = new double[5][];
-
-        // Level 0 is doubled, with interpolated values
-        mLenByZoomLevel[0] = numFrames * 2;
-        mZoomFactorByZoomLevel[0] = 2.0;
-        mValuesByZoomLevel[0] = new double[mLenByZoomLevel[0]];
-        if (numFrames > 0) {
-            mValuesByZoomLevel[0][0] = 0.5 * heights[0];
-            mValuesByZoomLevel[0][1] = heights[0];
+        int halfHeight = (getMeasuredHeight() / 2) - 1;
+        if (mSamplesPerPixel <= mSamplesPerBlock &&
+                computeHeightsFromSamples(start, width, halfHeight)) {
+            return;
         }
-        for (int i = 1; i < numFrames; i++) {
-            mValuesByZoomLevel[0][2 * i] = 0.5 * (heights[i - 1] + heights[i]);
-            mValuesByZoomLevel[0][2 * i + 1] = heights[i];
+        double blocksPerPixel = mSamplesPerPixel / mSamplesPerBlock;
+        double framesPerPixel = mSamplesPerPixel / mSamplesPerFrame;
+        for (int i = 0; i < width; i++) {
+            int first = (int)((start + i) * blocksPerPixel);
+            int last = Math.max((int)((start + i + 1) * blocksPerPixel), first + 1);
+            mHeights[i] = Math.max(mPeaks.getMax(first, last), 0) * halfHeight / 32768;
+            mDepths[i] = -Math.min(mPeaks.getMin(first, last), 0) * halfHeight / 32768;
+            first = (int)((start + i) * framesPerPixel);
+            last = Math.max((int)((start + i + 1) * framesPerPixel), first + 1);
+            mRmsHeights[i] = mRmsPeaks.getMax(first, last) * halfHeight / 32768;
         }
+    }
 
-        // Level 1 is normal
-        mLenByZoomLevel[1] = numFrames;
-        mValuesByZoomLevel[1] = new double[mLenByZoomLevel[1]];
-        mZoomFactorByZoomLevel[1] = 1.0;
-        for (int i = 0; i < mLenByZoomLevel[1]; i++) {
-            mValuesByZoomLevel[1][i] = heights[i];
+    /**
+     * Compute the heights of the width pixels starting at pixel start from
+     * the minimum, maximum and RMS value of their samples (averaged over the
+     * channels).
+     * Return false if the samples have not been read yet.
+     */
+    private boolean computeHeightsFromSamples(int start, int width, int halfHeight) {
+        int channels = mSoundFile.getChannels();
+        int firstSample = (int)(start * mSamplesPerPixel);
+        int endSample = (int)((start + width) * mSamplesPerPixel) + 1;
+        if (mCachedSamples == null || firstSample < mCachedSamplesStart ||
+                endSample > mCachedSamplesEnd) {
+            loadSamples(firstSample, endSample);
+            return false;
         }
-
-        // 3 more levels are each halved
-        for (int j = 2; j < 5; j++) {
-            mLenByZoomLevel[j] = mLenByZoomLevel[j - 1] / 2;
-            mValuesByZoomLevel[j] = new double[mLenByZoomLevel[j]];
-            mZoomFactorByZoomLevel[j] = mZoomFactorByZoomLevel[j - 1] / 2.0;
-            for (int i = 0; i < mLenByZoomLevel[j]; i++) {
-                mValuesByZoomLevel[j][i] =
-                    0.5 * (mValuesByZoomLevel[j - 1][2 * i] +
-                           mValuesByZoomLevel[j - 1][2 * i + 1]);
+        int numCachedSamples = mCachedSamples.limit() / channels;
+        for (int i = 0; i < width; i++) {
+            int first = (int)((start + i) * mSamplesPerPixel) - mCachedSamplesStart;
+            int last = (int)((start + i + 1) * mSamplesPerPixel) - mCachedSamplesStart;
+            last = Math.min(Math.max(last, first + 1), numCachedSamples);
+            int min = 0;
+            int max = 0;
+            long sumOfSquares = 0;
+            if (first < last) {
+                min = Integer.MAX_VALUE;
+                max = Integer.MIN_VALUE;
             }
+            for (int j = first; j < last; j++) {
+                int value = 0;
+                for (int k = 0; k < channels; k++) {
+                    value += mCachedSamples.get(j * channels + k);
+                }
+                value /= channels;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sumOfSquares += value * value;
+            }
+            mHeights[i] = max * halfHeight / 32768;
+            mDepths[i] = -min * halfHeight / 32768;
+            int rms = first < last ? (int)Math.sqrt((double)sumOfSquares / (last - first)) : 0;
+            mRmsHeights[i] = rms * halfHeight / 32768;
         }
-
-        if (numFrames > 5000) {
-            mZoomLevel = 3;
-        } else if (numFrames > 1000) {
-            mZoomLevel = 2;
-        } else if (numFrames > 300) {
-            mZoomLevel = 1;
-        } else {
-            mZoomLevel = 0;
-        }
-
-        mInitialized = true;
+        return true;
     }
 
     /**
-     * Called the first time we need to draw when the zoom level has changed
-     * or the screen is resized
+     * Read the samples firstSample to endSample (excluded) in the
+     * background, with half a view on each side so that scrolling does not
+     * read samples each time, and redraw the view once they are read.
+     * Reading the samples may need to decode them, which must not block the
+     * UI thread. Only one range is read at a time: the next draw asks for
+     * the samples it needs once it is done.
      */
-    private void computeIntsForThisZoomLevel() {
-        int halfHeight = (getMeasuredHeight() / 2) - 1;
-        mHeightsAtThisZoomLevel = new int[mLenByZoomLevel[mZoomLevel]];
-        for (int i = 0; i < mLenByZoomLevel[mZoomLevel]; i++) {
-            mHeightsAtThisZoomLevel[i] =
-                (int)(mValuesByZoomLevel[mZoomLevel][i] * halfHeight);
+    private void loadSamples(int firstSample, int endSample) {
+        if (mSampleLoader != null || mCannotReadSamples) {
+            return;
         }
+        int margin = (endSample - firstSample) / 2;
+        final int cacheStart = Math.max(firstSample - margin, 0);
+        final int cacheEnd = endSample + margin;
+        final SoundFile soundFile = mSoundFile;
+        mSampleLoader = new Thread() {
+            public void run() {
+                int numSamples = cacheEnd - cacheStart;
+                ShortBuffer samples = ShortBuffer.allocate(numSamples * soundFile.getChannels());
+                try {
+                    soundFile.readSamples(cacheStart, numSamples, samples);
+                    samples.flip();
+                } catch (IOException e) {
+                    Log.w("Ringdroid", "Cannot read the samples to draw: " + e);
+                    samples = null;
+                }
+                final ShortBuffer result = samples;
+                post(new Runnable() {
+                    public void run() {
+                        mSampleLoader = null;
+                        if (soundFile == mSoundFile) {
+                            mCachedSamples = result;
+                            mCachedSamplesStart = cacheStart;
+                            mCachedSamplesEnd = cacheEnd;
+                            mCannotReadSamples = result == null;
+                        }
+                        invalidate();
+                    }
+                });
+            }
+        };
+        mSampleLoader.start();
     }
 }
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Builds the index of the access units of an AAC stream without decoding it. This is the
+ * read-side counterpart of the Atom class of MP4Header.
+ *
+ * The stream can either be in an MP4 container (m4a, 3gp), in which case the index comes from the
+ * sample table of the first audio track (moov.trak.mdia.minf.stbl: stsz, stco or co64, stsc and
+ * stts), or be an ADTS stream (aac), in which case the ADTS headers are scanned.
+ *
+ * For each access unit, the scanner gives its offset and size in the file, its timestamp, and its
+ * global gain, read from the first channel element of the access unit. The global gains are used
+ * to compute approximate frame gains, relative to the loudest access unit of the stream.
+ */
+class AACScanner {
+    private static final int[] SAMPLE_RATES = {
+        96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+    // Syntactic elements of a raw data block.
+    private static final int ID_SCE = 0;  // single channel element.
+    private static final int ID_CPE = 1;  // channel pair element.
+    private static final int ID_LFE = 3;  // low frequency element.
+    private static final int EIGHT_SHORT_SEQUENCE = 2;
+
+    private MappedByteBuffer mData;
+    private int mTimeScale;  // number of timestamp units per second.
+    private int mChannels;
+    private int mNumAccessUnits;
+    private long[] mOffsets;
+    private int[] mSizes;
+    private long[] mTimestamps;  // start of each access unit, in mTimeScale units.
+    private long mDuration;  // in mTimeScale units.
+    private int[] mGlobalGains;  // -1 for silent access units.
+
+    // Index the whole file. Throw an IOException if file is neither an MP4 file containing an AAC
+    // track nor an ADTS stream.
+    public AACScanner(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() > Integer.MAX_VALUE) {
+                throw new IOException("File too large");
+            }
+            mData = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+        } finally {
+            in.close();
+        }
+        if (isADTS(0)) {
+            scanADTS();
+        } else {
+            parseMP4();
+        }
+        mData = null;
+        if (mNumAccessUnits == 0) {
+            throw new IOException("No AAC access unit found in " + file);
+        }
+    }
+
+    public int getTimeScale() {
+        return mTimeScale;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getNumAccessUnits() {
+        return mNumAccessUnits;
+    }
+
+    // Offsets in the file of the access units (excluding the ADTS headers, if any).
+    public long[] getOffsets() {
+        return mOffsets;
+    }
+
+    // Sizes of the access units in bytes (excluding the ADTS headers, if any).
+    public int[] getSizes() {
+        return mSizes;
+    }
+
+    // Timestamps of the access units, in getTimeScale() units.
+    public long[] getTimestamps() {
+        return mTimestamps;
+    }
+
+    // Duration of the stream, in getTimeScale() units.
+    public long getDuration() {
+        return mDuration;
+    }
+
+    // Approximate gains of frames of samplesPerFrame samples, once decoded at sampleRate. The gain
+    // of such a frame is the maximum gain of the access units it overlaps, using the same scale
+    // as the frame gains of SoundFile.
+    public int[] getFrameGains(int sampleRate, int samplesPerFrame) {
+        double framesPerUnit = (double)sampleRate / mTimeScale / samplesPerFrame;
+        int[] frameGains = new int[(int)Math.ceil(mDuration * framesPerUnit)];
+        int maxGlobalGain = 0;
+        for (int i = 0; i < mNumAccessUnits; i++) {
+            maxGlobalGain = Math.max(maxGlobalGain, mGlobalGains[i]);
+        }
+        for (int i = 0; i < mNumAccessUnits; i++) {
+            if (mGlobalGains[i] < 0) {
+                continue;  // silent.
+            }
+            // The global gain is the log2 of the scale of the spectral coefficients, in 1/4 steps.
+            int gain = (int)(Math.sqrt(32767) *
+                    Math.pow(2, (mGlobalGains[i] - maxGlobalGain) / 8.0));
+            long end = (i + 1 < mNumAccessUnits) ? mTimestamps[i + 1] : mDuration;
+            int first = (int)(mTimestamps[i] * framesPerUnit);
+            int last = (int)Math.min(Math.ceil(end * framesPerUnit), frameGains.length) - 1;
+            for (int j = first; j <= last; j++) {
+                frameGains[j] = Math.max(frameGains[j], gain);
+            }
+        }
+        return frameGains;
+    }
+
+    private boolean isADTS(int offset) {
+        return offset + 7 <= mData.capacity() && (mData.get(offset) & 0xFF) == 0xFF &&
+                (mData.get(offset + 1) & 0xF6) == 0xF0;  // sync word and layer 0.
+    }
+
+    private void scanADTS() throws IOException {
+        int fileSize = mData.capacity();
+        int capacity = 1024;
+        allocate(capacity);
+        int offset = 0;
+        long timestamp = 0;
+        while (isADTS(offset)) {
+            boolean hasCRC = (mData.get(offset + 1) & 1) == 0;
+            int sampleRateIndex = getBits(offset, 18, 4);
+            int frameLen = getBits(offset, 30, 13);  // header included.
+            int numBlocks = getBits(offset, 54, 2) + 1;
+            int headerSize = hasCRC ? 9 : 7;
+            if (sampleRateIndex >= SAMPLE_RATES.length || frameLen <= headerSize ||
+                    offset + frameLen > fileSize) {
+                break;
+            }
+            if (mNumAccessUnits == 0) {
+                mTimeScale = SAMPLE_RATES[sampleRateIndex];
+                mChannels = getBits(offset, 23, 3);
+            }
+            if (mNumAccessUnits == capacity) {
+                capacity *= 2;
+                allocate(capacity);
+            }
+            // An ADTS frame containing several raw data blocks is indexed as one access unit.
+            mOffsets[mNumAccessUnits] = offset + headerSize;
+            mSizes[mNumAccessUnits] = frameLen - headerSize;
+            mTimestamps[mNumAccessUnits] = timestamp;
+            mGlobalGains[mNumAccessUnits] = getGlobalGain(offset + headerSize, mNumAccessUnits);
+            mNumAccessUnits++;
+            timestamp += 1024 * numBlocks;
+            offset += frameLen;
+        }
+        mDuration = timestamp;
+        allocate(mNumAccessUnits);
+    }
+
+    private void parseMP4() throws IOException {
+        int moov = findBox(0, mData.capacity(), "moov");
+        if (moov < 0) {
+            throw new IOException("No moov box found");
+        }
+        // Find the first audio track.
+        int stbl = -1;
+        int offset = getPayload(moov);
+        while (true) {
+            int trak = findBox(offset, getEnd(moov), "trak");
+            if (trak < 0) {
+                throw new IOException("No audio track found");
+            }
+            int mdia = findBox(getPayload(trak), getEnd(trak), "mdia");
+            int hdlr = findBox(mdia, "hdlr");
+            if (hdlr >= 0 && getType(getPayload(hdlr) + 8) == getType("soun")) {
+                int mdhd = findBox(mdia, "mdhd");
+                if (mdhd < 0) {
+                    throw new IOException("No mdhd box found");
+                }
+                int version = mData.get(getPayload(mdhd));
+                mTimeScale = mData.getInt(getPayload(mdhd) + (version == 1 ? 20 : 12));
+                stbl = findBox(findBox(mdia, "minf"), "stbl");
+                break;
+            }
+            offset = getEnd(trak);
+        }
+        int stsd = findBox(stbl, "stsd");
+        int stsz = findBox(stbl, "stsz");
+        int stsc = findBox(stbl, "stsc");
+        int stts = findBox(stbl, "stts");
+        int stco = findBox(stbl, "stco");
+        int co64 = findBox(stbl, "co64");
+        if (stsd < 0 || stsz < 0 || stsc < 0 || stts < 0 || (stco < 0 && co64 < 0) ||
+                mTimeScale <= 0) {
+            throw new IOException("Incomplete sample table");
+        }
+        // First sample description: size, type, 6 reserved bytes, data reference index, 8 bytes
+        // of version, revision and vendor, then the number of channels.
+        int entry = getPayload(stsd) + 8;
+        if (getType(entry + 4) != getType("mp4a")) {
+            throw new IOException("Not an AAC track");
+        }
+        mChannels = mData.getShort(entry + 24) & 0xFFFF;
+
+        // Sample sizes.
+        int sampleSize = mData.getInt(getPayload(stsz) + 4);
+        mNumAccessUnits = getCount(stsz, 12, sampleSize == 0 ? 4 : 0);
+        if ((long)mNumAccessUnits * Math.max(sampleSize, 1) > mData.capacity()) {
+            throw new IOException("Invalid number of samples");
+        }
+        allocate(mNumAccessUnits);
+        for (int i = 0; i < mNumAccessUnits; i++) {
+            mSizes[i] = sampleSize != 0 ? sampleSize : mData.getInt(getPayload(stsz) + 12 + 4 * i);
+        }
+
+        // Timestamps.
+        int numEntries = getCount(stts, 8, 8);
+        int sample = 0;
+        long timestamp = 0;
+        for (int i = 0; i < numEntries; i++) {
+            int count = mData.getInt(getPayload(stts) + 8 + 8 * i);
+            int delta = mData.getInt(getPayload(stts) + 12 + 8 * i);
+            for (int j = 0; j < count && sample < mNumAccessUnits; j++) {
+                mTimestamps[sample++] = timestamp;
+                timestamp += delta & 0xFFFFFFFFL;
+            }
+        }
+        while (sample < mNumAccessUnits) {
+            mTimestamps[sample++] = timestamp;  // not covered by stts.
+        }
+        mDuration = timestamp;
+
+        // Offsets: the samples are grouped in chunks, and the number of samples per chunk is
+        // given by runs of chunks in stsc.
+        int chunkOffsets = co64 >= 0 ? co64 : stco;
+        int offsetSize = co64 >= 0 ? 8 : 4;
+        int numChunks = getCount(chunkOffsets, 8, offsetSize);
+        numEntries = getCount(stsc, 8, 12);
+        sample = 0;
+        for (int i = 0; i < numEntries; i++) {
+            int firstChunk = mData.getInt(getPayload(stsc) + 8 + 12 * i) - 1;
+            int samplesPerChunk = mData.getInt(getPayload(stsc) + 12 + 12 * i);
+            int lastChunk = numChunks;
+            if (i + 1 < numEntries) {
+                lastChunk = Math.min(mData.getInt(getPayload(stsc) + 20 + 12 * i) - 1, numChunks);
+            }
+            for (int chunk = Math.max(firstChunk, 0); chunk < lastChunk; chunk++) {
+                int position = getPayload(chunkOffsets) + 8 + offsetSize * chunk;
+                long chunkOffset = offsetSize == 8 ?
+                        mData.getLong(position) : (mData.getInt(position) & 0xFFFFFFFFL);
+                for (int j = 0; j < samplesPerChunk && sample < mNumAccessUnits; j++) {
+                    mOffsets[sample] = chunkOffset;
+                    chunkOffset += mSizes[sample++];
+                }
+            }
+        }
+        if (sample < mNumAccessUnits) {
+            throw new IOException("Inconsistent sample table");
+        }
+
+        for (int i = 0; i < mNumAccessUnits; i++) {
+            if (mOffsets[i] + mSizes[i] > mData.capacity()) {
+                throw new IOException("Access unit out of the file");
+            }
+            mGlobalGains[i] = getGlobalGain((int)mOffsets[i], i);
+        }
+    }
+
+    // Return the global gain of the first channel element of the raw data block of access unit
+    // index, starting at offset. Return -1 if the block is silent, or the global gain of the
+    // previous access unit if it cannot be found.
+    private int getGlobalGain(int offset, int index) {
+        int previous = index > 0 ? mGlobalGains[index - 1] : -1;
+        if (offset + 8 > mData.capacity()) {
+            return previous;
+        }
+        int id = getBits(offset, 0, 3);
+        int bit = 7;  // skip the element id and instance tag.
+        int globalGain;
+        int maxSfb;
+        if (id == ID_SCE || id == ID_LFE) {
+            globalGain = getBits(offset, bit, 8);
+            maxSfb = getMaxSfb(offset, bit + 8);
+        } else if (id == ID_CPE) {
+            boolean commonWindow = getBits(offset, bit++, 1) == 1;
+            if (commonWindow) {
+                maxSfb = getMaxSfb(offset, bit);
+                boolean eightShort = getBits(offset, bit + 1, 2) == EIGHT_SHORT_SEQUENCE;
+                int numWindowGroups = 1;
+                if (eightShort) {
+                    // Each 0 bit of scale_factor_grouping starts a new window group.
+                    int grouping = getBits(offset, bit + 8, 7);
+                    numWindowGroups += 7 - Integer.bitCount(grouping);
+                    bit += 15;
+                } else {
+                    bit += 11;  // assuming no prediction data, as in AAC LC.
+                }
+                int msMaskPresent = getBits(offset, bit, 2);
+                bit += 2;
+                if (msMaskPresent == 1) {
+                    bit += numWindowGroups * maxSfb;
+                }
+                globalGain = getBits(offset, bit, 8);
+            } else {
+                globalGain = getBits(offset, bit, 8);
+                maxSfb = getMaxSfb(offset, bit + 8);
+            }
+        } else {
+            return previous;
+        }
+        return maxSfb == 0 ? -1 : globalGain;
+    }
+
+    // Return the max_sfb field of the ics_info starting at bit bit.
+    private int getMaxSfb(int offset, int bit) {
+        int windowSequence = getBits(offset, bit + 1, 2);
+        if (windowSequence == EIGHT_SHORT_SEQUENCE) {
+            return getBits(offset, bit + 4, 4);
+        }
+        return getBits(offset, bit + 4, 6);
+    }
+
+    // Return the numBits bits (at most 24) starting at bit bit of the data starting at offset,
+    // most significant bit first.
+    private int getBits(int offset, int bit, int numBits) {
+        int index = offset + bit / 8;
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value <<= 8;
+            if (index + i < mData.capacity()) {
+                value |= mData.get(index + i) & 0xFF;
+            }
+        }
+        return (value >>> (32 - bit % 8 - numBits)) & ((1 << numBits) - 1);
+    }
+
+    // Return the offset of the first box of type type found between start and end, or -1.
+    private int findBox(int start, int end, String type) throws IOException {
+        int offset = start;
+        while (offset + 8 <= end) {
+            if (getType(offset + 4) == getType(type)) {
+                return offset;
+            }
+            offset = getEnd(offset);
+        }
+        return -1;
+    }
+
+    // Return the offset of the child box of type type of the box starting at parent, or -1.
+    private int findBox(int parent, String type) throws IOException {
+        if (parent < 0) {
+            return -1;
+        }
+        return findBox(getPayload(parent), getEnd(parent), type);
+    }
+
+    // Return the offset of the payload of the box starting at offset.
+    private int getPayload(int offset) {
+        return offset + (mData.getInt(offset) == 1 ? 16 : 8);  // 64 bits size.
+    }
+
+    // Return the offset of the first byte following the box starting at offset.
+    private int getEnd(int offset) throws IOException {
+        long size = mData.getInt(offset) & 0xFFFFFFFFL;
+        if (size == 1) {
+            size = mData.getLong(offset + 8);
+        } else if (size == 0) {
+            size = mData.capacity() - offset;  // last box of the file.
+        }
+        if (size < 8 || offset + size > mData.capacity()) {
+            throw new IOException("Invalid box size");
+        }
+        return (int)(offset + size);
+    }
+
+    // Return the number of entries of the full box starting at box, checking that the entries
+    // (entrySize bytes each, starting headerSize bytes after the payload) fit in the box.
+    private int getCount(int box, int headerSize, int entrySize) throws IOException {
+        int count = mData.getInt(getPayload(box) + headerSize - 4);
+        if (count < 0 || (long)count * entrySize > getEnd(box) - getPayload(box) - headerSize) {
+            throw new IOException("Invalid number of entries");
+        }
+        return count;
+    }
+
+    private int getType(int offset) {
+        return mData.getInt(offset);
+    }
+
+    private static int getType(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) |
+                type.charAt(3);
+    }
+
+    // (Re)allocate the index for capacity access units.
+    private void allocate(int capacity) {
+        if (mOffsets == null) {
+            mOffsets = new long[capacity];
+            mSizes = new int[capacity];
+            mTimestamps = new long[capacity];
+            mGlobalGains = new int[capacity];
+        } else {
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mSizes = Arrays.copyOf(mSizes, capacity);
+            mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+            mGlobalGains = Arrays.copyOf(mGlobalGains, capacity);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Captures 16 bits PCM audio on a dedicated high-priority thread, which does nothing but read
+ * the samples from AudioRecord straight into a CaptureRing. The samples are consumed on another
+ * thread (storage, frame gains, UI updates), so that the capture never waits for it.
+ *
+ * If the consumer falls behind by more than the capacity of the ring, the samples captured in
+ * the meantime are dropped rather than blocking the capture. The overruns of the AudioRecord
+ * buffer itself (when the capture thread does not get to run for longer than this buffer lasts)
+ * are estimated from the time between two reads. Both are counted so that they can be checked.
+ */
+class AudioCapture {
+    private static final int RING_SECONDS = 4;
+    private static final int READ_SAMPLES = 1024;  // samples (per channel) read at a time.
+
+    private int mChannels;
+    private AudioRecord mAudioRecord;
+    private long mBufferDurationNs;  // time it takes to fill the buffer of mAudioRecord.
+    private CaptureRing mRing;
+    private Thread mThread;
+    private volatile Thread mConsumer;  // thread waiting for samples, if any.
+    private volatile boolean mCapturing;
+    private volatile boolean mFinished;  // true once the capture thread has stopped.
+    private volatile int mNumOverruns;
+    private volatile long mNumDroppedSamples;
+
+    // Create the AudioRecord capturing mono or stereo audio at sampleRate Hz from audioSource (one
+    // of the MediaRecorder.AudioSource constants). Throw an IllegalArgumentException if the device
+    // cannot record in this format or from this source.
+    public AudioCapture(int sampleRate, int channels, int audioSource) {
+        mChannels = channels;
+        int channelConfig =
+                channels == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        int bufferSize = AudioRecord.getMinBufferSize(
+                sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        // make sure the buffer can contain at least 1 second of audio (16 bits sample).
+        if (bufferSize < sampleRate * channels * 2) {
+            bufferSize = sampleRate * channels * 2;
+        }
+        mBufferDurationNs = 1000000000L * bufferSize / (sampleRate * channels * 2);
+        mAudioRecord = new AudioRecord(
+                audioSource,
+                sampleRate,
+                channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT,
+                bufferSize);
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            mAudioRecord.release();
+            throw new IllegalArgumentException(String.format(
+                    "Cannot record %d Hz, %d channels from audio source %d",
+                    sampleRate, channels, audioSource));
+        }
+        mRing = new CaptureRing(RING_SECONDS * sampleRate * channels * 2);
+    }
+
+    // Start recording, and start the capture thread.
+    public void start() {
+        mCapturing = true;
+        mAudioRecord.startRecording();
+        mThread = new Thread("Ringdroid capture") {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                try {
+                    capture();
+                } finally {
+                    mFinished = true;
+                    wakeConsumer();
+                }
+            }
+        };
+        mThread.start();
+    }
+
+    // Stop the capture thread and release the AudioRecord. The samples captured until then can
+    // still be consumed.
+    public void stop() {
+        mCapturing = false;
+        boolean interrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mAudioRecord.stop();
+        mAudioRecord.release();
+        Log.i("Ringdroid", String.format("capture: %d overruns, %d dropped samples",
+                mNumOverruns, mNumDroppedSamples));
+    }
+
+    // Consumer side: wait until captured samples are available, and return a view of at most
+    // maxSize bytes of them (whole samples, in little endian order). Return null once the
+    // capture has stopped and all its samples have been consumed. The samples must be given
+    // back with release() before the next call.
+    public ByteBuffer waitForSamples(int maxSize) {
+        int sampleSize = 2 * mChannels;
+        mConsumer = Thread.currentThread();
+        while (true) {
+            boolean finished = mFinished;  // read before the ring.
+            if (mRing.getAvailable() > 0) {
+                // The positions in the ring always fall on whole samples, as its capacity and
+                // the sizes read from AudioRecord (whole frames) are multiples of the sample size.
+                return mRing.getReadRegion(maxSize - maxSize % sampleSize);
+            }
+            if (finished) {
+                mConsumer = null;
+                return null;
+            }
+            LockSupport.parkNanos(this, 20000000L);  // woken up by the capture thread.
+        }
+    }
+
+    // Consumer side: give the size bytes returned by the last waitForSamples() back to the ring.
+    public void release(int size) {
+        mRing.commitRead(size);
+    }
+
+    // Number of times the AudioRecord buffer most likely overflowed, because the capture thread
+    // did not read it for longer than it lasts.
+    public int getNumOverruns() {
+        return mNumOverruns;
+    }
+
+    // Number of samples (per channel) captured but dropped because the ring was full.
+    public long getNumDroppedSamples() {
+        return mNumDroppedSamples;
+    }
+
+    private void capture() {
+        int readSize = READ_SAMPLES * mChannels * 2;
+        ByteBuffer scratch = null;  // used to drop samples when the ring is full.
+        long lastReadTime = System.nanoTime();
+        while (mCapturing) {
+            ByteBuffer region = mRing.getWriteRegion(readSize);
+            boolean dropping = region.capacity() == 0;
+            if (dropping) {
+                if (scratch == null) {
+                    scratch = ByteBuffer.allocateDirect(readSize);
+                }
+                region = scratch;
+                region.clear();
+            }
+            long readTime = System.nanoTime();
+            if (readTime - lastReadTime > mBufferDurationNs) {
+                mNumOverruns++;
+            }
+            int size = mAudioRecord.read(region, region.capacity());
+            lastReadTime = System.nanoTime();
+            if (size < 0) {
+                Log.w("Ringdroid", "AudioRecord.read() failed: " + size);
+                break;
+            }
+            if (dropping) {
+                mNumDroppedSamples += size / (2 * mChannels);
+            } else {
+                mRing.commitWrite(size);
+                wakeConsumer();
+            }
+        }
+    }
+
+    private void wakeConsumer() {
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Lock-free ring buffer of bytes between a single producer thread and a single consumer thread,
+ * e.g. the thread capturing audio and the thread storing it.
+ *
+ * The bytes are held in a direct buffer, so that the producer can have them written there by
+ * native code (e.g. AudioRecord.read()) without any copy. Each side gets a view of a contiguous
+ * region of the ring, fills or consumes it, and then commits it. The read and write positions
+ * only ever increase, each one is only written by one side, and they are volatile: committing a
+ * region publishes its content to the other side.
+ */
+class CaptureRing {
+    private ByteBuffer mBuffer;
+    private int mMask;  // capacity - 1, the capacity being a power of 2.
+    private volatile long mWritePosition;  // only written by the producer.
+    private volatile long mReadPosition;  // only written by the consumer.
+
+    // Create a ring holding at least minCapacity bytes.
+    public CaptureRing(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(minCapacity, 2) - 1) << 1;
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+        mMask = capacity - 1;
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    // Number of bytes written and not consumed yet.
+    public int getAvailable() {
+        return (int)(mWritePosition - mReadPosition);
+    }
+
+    // Producer side: return a view of the free space following the bytes written so far, of at
+    // most maxSize bytes and starting at position 0 of the view. It is empty if the ring is full.
+    public ByteBuffer getWriteRegion(int maxSize) {
+        long writePosition = mWritePosition;
+        int free = getCapacity() - (int)(writePosition - mReadPosition);
+        return getRegion(writePosition, Math.min(free, maxSize));
+    }
+
+    // Producer side: make the first size bytes of the last write region available to the
+    // consumer.
+    public void commitWrite(int size) {
+        mWritePosition += size;
+    }
+
+    // Consumer side: return a view of the bytes following the ones consumed so far, of at most
+    // maxSize bytes and in little endian order. It is empty if the ring is empty.
+    public ByteBuffer getReadRegion(int maxSize) {
+        long readPosition = mReadPosition;
+        int available = (int)(mWritePosition - readPosition);
+        ByteBuffer region = getRegion(readPosition, Math.min(available, maxSize));
+        region.order(ByteOrder.LITTLE_ENDIAN);
+        return region;
+    }
+
+    // Consumer side: give the first size bytes of the last read region back to the producer.
+    public void commitRead(int size) {
+        mReadPosition += size;
+    }
+
+    // Return a view of the size bytes starting at position, clipped to the end of the buffer.
+    private ByteBuffer getRegion(long position, int size) {
+        int offset = (int)(position & mMask);
+        ByteBuffer region = mBuffer.duplicate();
+        region.limit(offset + Math.min(size, getCapacity() - offset));
+        region.position(offset);
+        return region.slice();
+    }
+}
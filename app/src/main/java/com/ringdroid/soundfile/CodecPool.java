@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Process-wide pool of idle MediaCodec instances, so that decoders and encoders are reused across
+ * loads, exports and the verification of saved files instead of being instantiated each time
+ * (which takes from tens to hundreds of milliseconds for some hardware codecs).
+ *
+ * The idle codecs are kept stopped, i.e. in the uninitialized state, per MIME type and direction,
+ * and can be configured again with any format. Codecs are only given back to the pool after a
+ * successful run: a codec which failed is released. As codec instances are a limited resource
+ * shared with the other apps, only a few idle codecs are kept, and releaseIdleCodecs() should be
+ * called once they are not expected to be needed anymore.
+ */
+class CodecPool {
+    private static final int MAX_IDLE_CODECS = 4;
+
+    private static class IdleCodec {
+        private MediaCodec mCodec;
+        private String mMimeType;
+        private boolean mIsEncoder;
+    }
+
+    // Idle codecs, from the least to the most recently used.
+    private static final ArrayList<IdleCodec> sIdleCodecs = new ArrayList<IdleCodec>();
+    // MIME types of the encoders being warmed up. Guarded by sIdleCodecs.
+    private static final HashSet<String> sWarmingUp = new HashSet<String>();
+    // Incremented by releaseIdleCodecs(), so that the encoders whose warm up started before are
+    // released rather than kept. Guarded by sIdleCodecs.
+    private static int sGeneration;
+
+    // Return a stopped decoder for mimeType, reusing an idle one if possible.
+    public static MediaCodec acquireDecoder(String mimeType) throws IOException {
+        return acquire(mimeType, false);
+    }
+
+    // Return a stopped encoder for mimeType, reusing an idle one if possible.
+    public static MediaCodec acquireEncoder(String mimeType) throws IOException {
+        return acquire(mimeType, true);
+    }
+
+    // Give codec, acquired from the pool, back to it. codec must have been stopped, and is
+    // released instead if it is not reusable (e.g. after an error), or if there are already
+    // enough idle codecs.
+    public static void release(MediaCodec codec, String mimeType, boolean isEncoder,
+                               boolean reusable) {
+        if (!reusable) {
+            codec.release();
+            return;
+        }
+        keep(codec, mimeType, isEncoder, -1);
+    }
+
+    // Instantiate an encoder for format in the background, and start it once so that its
+    // resources get loaded, unless an idle one is already available or being warmed up. The
+    // encoder is then kept in the pool for the next acquireEncoder(), unless releaseIdleCodecs()
+    // was called in the meantime.
+    public static void warmUpEncoder(final MediaFormat format) {
+        final String mimeType = format.getString(MediaFormat.KEY_MIME);
+        final int generation;
+        synchronized (sIdleCodecs) {
+            if (find(mimeType, true) >= 0 || !sWarmingUp.add(mimeType)) {
+                return;
+            }
+            generation = sGeneration;
+        }
+        new Thread("Ringdroid warm up " + mimeType) {
+            public void run() {
+                MediaCodec codec = null;
+                try {
+                    codec = create(mimeType, true);
+                    codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                    codec.start();
+                    codec.stop();
+                    keep(codec, mimeType, true, generation);
+                } catch (IOException e) {
+                    Log.w("Ringdroid", "Cannot warm up " + mimeType + " encoder: " + e);
+                } catch (RuntimeException e) {
+                    Log.w("Ringdroid", "Cannot warm up " + mimeType + " encoder: " + e);
+                    if (codec != null) {
+                        codec.release();
+                    }
+                } finally {
+                    synchronized (sIdleCodecs) {
+                        sWarmingUp.remove(mimeType);
+                    }
+                }
+            }
+        }.start();
+    }
+
+    // Release all the idle codecs, and the encoders being warmed up once they are ready.
+    public static void releaseIdleCodecs() {
+        ArrayList<IdleCodec> idleCodecs;
+        synchronized (sIdleCodecs) {
+            idleCodecs = new ArrayList<IdleCodec>(sIdleCodecs);
+            sIdleCodecs.clear();
+            sGeneration++;
+        }
+        for (IdleCodec idleCodec : idleCodecs) {
+            idleCodec.mCodec.release();
+        }
+    }
+
+    // Add codec to the idle codecs. If generation is not -1 and releaseIdleCodecs() was called
+    // since sGeneration had this value, codec is released instead.
+    private static void keep(MediaCodec codec, String mimeType, boolean isEncoder, int generation) {
+        IdleCodec idleCodec = new IdleCodec();
+        idleCodec.mCodec = codec;
+        idleCodec.mMimeType = mimeType;
+        idleCodec.mIsEncoder = isEncoder;
+        MediaCodec evicted = null;
+        synchronized (sIdleCodecs) {
+            if (generation != -1 && generation != sGeneration) {
+                evicted = codec;
+            } else {
+                sIdleCodecs.add(idleCodec);
+                if (sIdleCodecs.size() > MAX_IDLE_CODECS) {
+                    evicted = sIdleCodecs.remove(0).mCodec;
+                }
+            }
+        }
+        if (evicted != null) {
+            evicted.release();
+        }
+    }
+
+    private static MediaCodec acquire(String mimeType, boolean isEncoder) throws IOException {
+        synchronized (sIdleCodecs) {
+            int index = find(mimeType, isEncoder);
+            if (index >= 0) {
+                return sIdleCodecs.remove(index).mCodec;
+            }
+        }
+        return create(mimeType, isEncoder);
+    }
+
+    // Return the index of the most recently used idle codec matching mimeType and isEncoder, or
+    // -1 if there is none. Called with sIdleCodecs locked.
+    private static int find(String mimeType, boolean isEncoder) {
+        for (int i = sIdleCodecs.size() - 1; i >= 0; i--) {
+            IdleCodec idleCodec = sIdleCodecs.get(i);
+            if (idleCodec.mIsEncoder == isEncoder && idleCodec.mMimeType.equals(mimeType)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static MediaCodec create(String mimeType, boolean isEncoder) throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+        MediaCodec codec = isEncoder ?
+                MediaCodec.createEncoderByType(mimeType) : MediaCodec.createDecoderByType(mimeType);
+        Log.i("Ringdroid", String.format("create %s %s: %d ms", mimeType,
+                isEncoder ? "encoder" : "decoder", SystemClock.elapsedRealtime() - startTime));
+        return codec;
+    }
+}
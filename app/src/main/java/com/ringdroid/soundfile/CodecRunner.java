@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs a MediaCodec from the beginning to the end of a stream, feeding its input buffers and
+ * draining its output buffers through a Client.
+ *
+ * On API 23+, the codec is run asynchronously: its callbacks are handled on a dedicated
+ * HandlerThread as soon as buffers are available, and the calling thread just waits for the end
+ * of the stream. (setCallback() without a Handler, available from API 21, would deliver the
+ * callbacks on the looper of the thread which created the codec, i.e. the main thread here.)
+ * On older devices, the input and output buffers are polled with short timeouts.
+ * The wall time and the CPU time of the threads running the codec (the calling thread, and the
+ * callback thread in asynchronous mode) are logged. Other threads of the process (e.g. other
+ * codecs running at the same time) are not counted.
+ */
+class CodecRunner {
+    public interface Client {
+        /**
+         * Put the next input data in buffer (which has been cleared), and set the offset
+         * (always 0), size, presentation time and flags of this data in info. The last
+         * input buffer must have the MediaCodec.BUFFER_FLAG_END_OF_STREAM flag.
+         * Return false to stop the codec right away (e.g. if the operation got cancelled).
+         */
+        boolean readInput(ByteBuffer buffer, MediaCodec.BufferInfo info) throws IOException;
+
+        /**
+         * Consume the data output by the codec in buffer, from its position to its limit, and
+         * described by info. Only called for non-empty buffers.
+         * Return false to stop the codec right away (e.g. if all the expected output has been
+         * received).
+         */
+        boolean writeOutput(ByteBuffer buffer, MediaCodec.BufferInfo info) throws IOException;
+
+        /**
+         * Called when the format of the data output by the codec becomes known or changes,
+         * before the output buffers in this format are passed to writeOutput().
+         */
+        void setOutputFormat(MediaFormat format);
+    }
+
+    private MediaCodec mCodec;
+    private Client mClient;
+    private String mName;  // used in logs.
+
+    // State of an asynchronous run, guarded by mLock.
+    private final Object mLock = new Object();
+    private boolean mDone;
+    private boolean mInputDone;
+    private IOException mError;
+    private long mCallbackCpuTime;  // CPU time of the callback thread when done, in ms.
+
+    // Configure codec with format and flags, run it until the end of the stream (or until client
+    // stops it), and stop it. The codec is not released.
+    public static void run(MediaCodec codec, MediaFormat format, int flags, Client client,
+                           String name) throws IOException {
+        new CodecRunner(codec, client, name).run(format, flags,
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+    }
+
+    // Same as run(), polling the codec from the calling thread on all devices. Used for clients
+    // whose readInput() waits for its input to be produced, which would hold the callback thread
+    // (and so the output buffers, errors and cancellation) in asynchronous mode.
+    public static void runOnCallingThread(MediaCodec codec, MediaFormat format, int flags,
+                                          Client client, String name) throws IOException {
+        new CodecRunner(codec, client, name).run(format, flags, false);
+    }
+
+    private CodecRunner(MediaCodec codec, Client client, String name) {
+        mCodec = codec;
+        mClient = client;
+        mName = name;
+    }
+
+    private void run(MediaFormat format, int flags, boolean async) throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+        long startCpuTime = SystemClock.currentThreadTimeMillis();
+        try {
+            if (async) {
+                runAsync(format, flags);
+            } else {
+                mCodec.configure(format, null, null, flags);
+                mCodec.start();
+                try {
+                    runSync();
+                } finally {
+                    mCodec.stop();
+                }
+            }
+        } catch (RuntimeException e) {
+            // e.g. configure() or start() failing with an IllegalStateException or a
+            // CodecException. Reported like the errors of the callbacks, so that callers only have
+            // to clean up after IOExceptions. The codec should not be reused.
+            throw new IOException(e.toString());
+        }
+        long cpuTime = SystemClock.currentThreadTimeMillis() - startCpuTime;
+        synchronized (mLock) {
+            cpuTime += mCallbackCpuTime;
+        }
+        Log.i("Ringdroid", String.format("%s (%s): %d ms, %d ms of CPU time", mName,
+                async ? "async" : "sync", SystemClock.elapsedRealtime() - startTime, cpuTime));
+    }
+
+    private void runSync() throws IOException {
+        ByteBuffer[] inputBuffers = mCodec.getInputBuffers();
+        ByteBuffer[] outputBuffers = mCodec.getOutputBuffers();
+        MediaCodec.BufferInfo inputInfo = new MediaCodec.BufferInfo();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean inputDone = false;
+        while (true) {
+            int inputBufferIndex = mCodec.dequeueInputBuffer(100);
+            if (!inputDone && inputBufferIndex >= 0) {
+                ByteBuffer buffer = inputBuffers[inputBufferIndex];
+                buffer.clear();
+                if (!mClient.readInput(buffer, inputInfo)) {
+                    return;
+                }
+                mCodec.queueInputBuffer(inputBufferIndex, 0, inputInfo.size,
+                        inputInfo.presentationTimeUs, inputInfo.flags);
+                inputDone = (inputInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            }
+
+            int outputBufferIndex = mCodec.dequeueOutputBuffer(info, 100);
+            if (outputBufferIndex >= 0) {
+                ByteBuffer buffer = outputBuffers[outputBufferIndex];
+                buffer.position(info.offset);
+                buffer.limit(info.offset + info.size);
+                boolean keepGoing = info.size <= 0 || mClient.writeOutput(buffer, info);
+                buffer.clear();
+                mCodec.releaseOutputBuffer(outputBufferIndex, false);
+                if (!keepGoing || (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = mCodec.getOutputBuffers();
+            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mClient.setOutputFormat(mCodec.getOutputFormat());
+            }
+        }
+    }
+
+    private void runAsync(MediaFormat format, int flags) throws IOException {
+        HandlerThread thread = new HandlerThread("Ringdroid " + mName);
+        thread.start();
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                synchronized (mLock) {
+                    if (mDone || mInputDone) {
+                        return;
+                    }
+                    try {
+                        ByteBuffer buffer = codec.getInputBuffer(index);
+                        buffer.clear();
+                        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                        if (!mClient.readInput(buffer, info)) {
+                            finish(null);
+                            return;
+                        }
+                        codec.queueInputBuffer(
+                                index, 0, info.size, info.presentationTimeUs, info.flags);
+                        mInputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                    } catch (IOException e) {
+                        finish(e);
+                    } catch (RuntimeException e) {
+                        finish(new IOException(e.toString()));
+                    }
+                }
+            }
+
+            @Override
+            public void onOutputBufferAvailable(
+                    MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                synchronized (mLock) {
+                    if (mDone) {
+                        return;
+                    }
+                    try {
+                        boolean keepGoing = info.size <= 0 ||
+                                mClient.writeOutput(codec.getOutputBuffer(index), info);
+                        codec.releaseOutputBuffer(index, false);
+                        if (!keepGoing ||
+                                (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            finish(null);
+                        }
+                    } catch (IOException e) {
+                        finish(e);
+                    } catch (RuntimeException e) {
+                        finish(new IOException(e.toString()));
+                    }
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                synchronized (mLock) {
+                    finish(new IOException(e.toString()));
+                }
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                // Subsequent data will conform to new format.
+                synchronized (mLock) {
+                    if (!mDone) {
+                        mClient.setOutputFormat(format);
+                    }
+                }
+            }
+        }, new Handler(thread.getLooper()));
+        try {
+            mCodec.configure(format, null, null, flags);
+            mCodec.start();
+            boolean interrupted = false;
+            synchronized (mLock) {
+                while (!mDone) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            // The callbacks do not use the codec anymore. Clear the callback, so that the codec can
+            // be reused (see CodecPool) in synchronous mode.
+            mCodec.stop();
+            mCodec.setCallback(null);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            thread.quit();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    // Called by the callbacks with mLock held, once the codec should be stopped.
+    private void finish(IOException error) {
+        if (mError == null) {
+            mError = error;
+        }
+        if (!mDone) {
+            // The callback thread was created for this run, so all its CPU time was used by it.
+            mCallbackCpuTime = SystemClock.currentThreadTimeMillis();
+        }
+        mDone = true;
+        mLock.notifyAll();
+    }
+}
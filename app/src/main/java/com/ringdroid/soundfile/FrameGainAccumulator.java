@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Computes the frame gains of a stream of 16 bits PCM samples (interleaved channels) as the
+ * samples get decoded or recorded, in the same pass as the one storing them.
+ *
+ * The samples can be added in buffers of any size (e.g. the output buffers of a codec): a frame
+ * can straddle several buffers. The gain of a frame is the square root of the maximum over its
+ * samples of the average absolute value of their channels. Their RMS level is the square root of
+ * their RMS value over all channels, on the same scale. The minimum and maximum of each block of
+ * SampleAnalyzer.SAMPLES_PER_BLOCK samples are kept as well. The frames are analyzed by
+ * SampleAnalyzer.
+ */
+class FrameGainAccumulator {
+    private int mChannels;
+    private int mSamplesPerFrame;
+    private SampleAnalyzer.FrameStats mStats;
+    private int mNumFrames;
+    // Samples of the current (incomplete) frame.
+    private short[] mFrame;
+    private int mNumFrameValues;
+
+    public FrameGainAccumulator(int channels, int samplesPerFrame, int expectedNumFrames) {
+        mChannels = channels;
+        mSamplesPerFrame = samplesPerFrame;
+        mStats = new SampleAnalyzer.FrameStats(Math.max(expectedNumFrames, 16), samplesPerFrame);
+        mFrame = new short[samplesPerFrame * channels];
+    }
+
+    // Add the samples of bytes (16 bits little endian), from its position to its limit, which
+    // must contain whole samples. The position of bytes is not changed.
+    public void add(ByteBuffer bytes) {
+        ByteBuffer duplicate = bytes.duplicate();
+        duplicate.order(ByteOrder.LITTLE_ENDIAN);
+        add(duplicate.asShortBuffer());
+    }
+
+    // Add the length values of samples starting at offset, which must contain whole samples.
+    public void add(short[] samples, int offset, int length) {
+        add(ShortBuffer.wrap(samples, offset, length));
+    }
+
+    // Complete the current frame, if it holds any sample. Called once all the samples have been
+    // added.
+    public void finish() {
+        if (mNumFrameValues > 0) {
+            mStats.ensureCapacity(mNumFrames + 1);
+            SampleAnalyzer.analyzeFrame(
+                    mFrame, 0, mNumFrameValues / mChannels, mChannels, mStats, mNumFrames++);
+            mNumFrameValues = 0;
+        }
+    }
+
+    // Number of frames whose gain has been computed so far.
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    // Copy the gains of the frames first to last (excluded) to dest, at the same index.
+    public void getFrameGains(int[] dest, int first, int last) {
+        System.arraycopy(mStats.mGains, first, dest, first, last - first);
+    }
+
+    // Copy the RMS levels of the frames first to last (excluded) to dest, at the same index.
+    public void getFrameRms(byte[] dest, int first, int last) {
+        mStats.getRmsLevels(dest, first, last);
+    }
+
+    // Copy the block peaks (see SampleAnalyzer.FrameStats) of the frames first to last
+    // (excluded) to dest, at the same index.
+    public void getBlockPeaks(short[] dest, int first, int last) {
+        mStats.getBlockPeaks(dest, first, last);
+    }
+
+    private void add(ShortBuffer samples) {
+        int frameSize = mFrame.length;
+        if (mNumFrameValues > 0) {
+            // Complete the current frame first.
+            int n = Math.min(samples.remaining(), frameSize - mNumFrameValues);
+            samples.get(mFrame, mNumFrameValues, n);
+            mNumFrameValues += n;
+            if (mNumFrameValues < frameSize) {
+                return;
+            }
+            mStats.ensureCapacity(mNumFrames + 1);
+            SampleAnalyzer.analyzeFrame(
+                    mFrame, 0, mSamplesPerFrame, mChannels, mStats, mNumFrames++);
+            mNumFrameValues = 0;
+        }
+        // The whole frames are analyzed straight from samples.
+        int numFrames = samples.remaining() / frameSize;
+        if (numFrames > 0) {
+            mStats.ensureCapacity(mNumFrames + numFrames);
+            SampleAnalyzer.analyze(
+                    samples, mChannels, mSamplesPerFrame, numFrames, mStats, mNumFrames);
+            mNumFrames += numFrames;
+            samples.position(samples.position() + numFrames * frameSize);
+        }
+        // Keep the rest for the next frame.
+        mNumFrameValues = samples.remaining();
+        samples.get(mFrame, 0, mNumFrameValues);
+    }
+}
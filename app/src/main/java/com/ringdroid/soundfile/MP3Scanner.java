@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Scans the frame headers of an MP3 (MPEG 1, 2 or 2.5 layer III) file without decoding it.
+ *
+ * For each MP3 frame, the scanner gives its offset and length in the file, and an approximate
+ * gain computed from the global gains found in the side information of the frame. Scanning a
+ * file only takes a fraction of the time needed to decode it, so the approximate gains can be
+ * used to show the waveform of the file while it is being decoded.
+ *
+ * The approximate gains use the same scale as the frame gains of SoundFile, i.e. the square
+ * root of the peak value of the 16 bits samples.
+ */
+class MP3Scanner {
+    private static final int[] BITRATES_MPEG1 = {
+        0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+    private static final int[] BITRATES_MPEG2 = {
+        0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160};
+    private static final int[] SAMPLE_RATES_MPEG1 = {44100, 48000, 32000};
+
+    // The global gain of a granule is the log2 of its quantizer step size, in 1/4 steps. Global
+    // gains around GLOBAL_GAIN_FULL_SCALE are typical of loud passages.
+    private static final int GLOBAL_GAIN_FULL_SCALE = 180;
+    private static final int[] GAINS = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            double gain = Math.sqrt(32767) * Math.pow(2, (i - GLOBAL_GAIN_FULL_SCALE) / 8.0);
+            GAINS[i] = (int)Math.min(gain, Math.sqrt(32767));
+        }
+    }
+
+    private MappedByteBuffer mData;
+    private int mSampleRate;
+    private int mChannels;
+    private int mSamplesPerFrame;  // number of samples per channel in each MP3 frame.
+    private int mNumFrames;
+    private int[] mFrameOffsets;
+    private int[] mFrameLens;
+    private int[] mFrameGains;
+
+    // Scan the whole file. Throw an IOException if file is not an MP3 file.
+    public MP3Scanner(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            mData = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(in.length(), Integer.MAX_VALUE));
+        } finally {
+            in.close();
+        }
+        scan();
+        mData = null;
+        if (mNumFrames == 0) {
+            throw new IOException("No MP3 frame found in " + file);
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getSamplesPerFrame() {
+        return mSamplesPerFrame;
+    }
+
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    public int getNumSamples() {
+        return mNumFrames * mSamplesPerFrame;
+    }
+
+    // Offsets in the file of the MP3 frames, header included.
+    public int[] getFrameOffsets() {
+        return mFrameOffsets;
+    }
+
+    // Lengths of the MP3 frames in bytes, header included.
+    public int[] getFrameLens() {
+        return mFrameLens;
+    }
+
+    // Approximate gains of the MP3 frames.
+    public int[] getFrameGains() {
+        return mFrameGains;
+    }
+
+    // Approximate gains of frames of samplesPerFrame samples, as used by SoundFile. The gain of
+    // such a frame is the maximum gain of the MP3 frames it overlaps.
+    public int[] getFrameGains(int samplesPerFrame) {
+        long numSamples = (long)mNumFrames * mSamplesPerFrame;
+        int[] frameGains = new int[(int)((numSamples + samplesPerFrame - 1) / samplesPerFrame)];
+        for (int i = 0; i < mNumFrames; i++) {
+            long start = (long)i * mSamplesPerFrame;
+            int first = (int)(start / samplesPerFrame);
+            int last = (int)((start + mSamplesPerFrame - 1) / samplesPerFrame);
+            for (int j = first; j <= last; j++) {
+                frameGains[j] = Math.max(frameGains[j], mFrameGains[i]);
+            }
+        }
+        return frameGains;
+    }
+
+    private void scan() {
+        int fileSize = mData.capacity();
+        int offset = skipID3v2Tag();
+        int capacity = 1024;
+        mFrameOffsets = new int[capacity];
+        mFrameLens = new int[capacity];
+        mFrameGains = new int[capacity];
+        int header = 0;  // header of the first frame, used to validate the following ones.
+        boolean firstFrame = true;
+        while (offset + 4 <= fileSize) {
+            int frameLen = getFrameLen(offset, header);
+            if (frameLen <= 0 || offset + frameLen > fileSize) {
+                // Lost sync (e.g. garbage between frames or an ID3v1 tag at the end). Look for
+                // the next frame, making sure it is followed by another one.
+                offset = findNextFrame(offset + 1, header);
+                if (offset < 0) {
+                    break;
+                }
+                continue;
+            }
+            if (header == 0) {
+                header = mData.getInt(offset);
+                setFormat(header);
+            }
+            if (firstFrame && isInfoFrame(offset)) {
+                // The Xing/Info/VBRI frame of VBR files only contains metadata, and decoders do
+                // not output any sample for it.
+                firstFrame = false;
+                offset += frameLen;
+                continue;
+            }
+            firstFrame = false;
+            if (mNumFrames == capacity) {
+                capacity *= 2;
+                mFrameOffsets = Arrays.copyOf(mFrameOffsets, capacity);
+                mFrameLens = Arrays.copyOf(mFrameLens, capacity);
+                mFrameGains = Arrays.copyOf(mFrameGains, capacity);
+            }
+            mFrameOffsets[mNumFrames] = offset;
+            mFrameLens[mNumFrames] = frameLen;
+            mFrameGains[mNumFrames] = getGain(offset);
+            mNumFrames++;
+            offset += frameLen;
+        }
+        mFrameOffsets = Arrays.copyOf(mFrameOffsets, mNumFrames);
+        mFrameLens = Arrays.copyOf(mFrameLens, mNumFrames);
+        mFrameGains = Arrays.copyOf(mFrameGains, mNumFrames);
+    }
+
+    // Return the offset of the first byte following the ID3v2 tag, if any.
+    private int skipID3v2Tag() {
+        if (mData.capacity() < 10 || mData.get(0) != 'I' || mData.get(1) != 'D' ||
+                mData.get(2) != '3') {
+            return 0;
+        }
+        // The size is a 28 bits synchsafe integer, not including the header and footer.
+        int size = ((mData.get(6) & 0x7F) << 21) | ((mData.get(7) & 0x7F) << 14) |
+                ((mData.get(8) & 0x7F) << 7) | (mData.get(9) & 0x7F);
+        boolean hasFooter = (mData.get(5) & 0x10) != 0;
+        return 10 + size + (hasFooter ? 10 : 0);
+    }
+
+    // Return the length of the frame starting at offset, or -1 if there is no valid layer III
+    // frame header at offset. If refHeader is not 0, the frame must also have the same version,
+    // layer and sample rate as the frame with header refHeader.
+    private int getFrameLen(int offset, int refHeader) {
+        if (offset + 4 > mData.capacity()) {
+            return -1;
+        }
+        int header = mData.getInt(offset);  // big endian.
+        if ((header & 0xFFE00000) != 0xFFE00000) {
+            return -1;  // no sync.
+        }
+        if (refHeader != 0 && (header & 0xFFFE0C00) != (refHeader & 0xFFFE0C00)) {
+            return -1;  // not the same stream.
+        }
+        int version = (header >> 19) & 3;  // 0: MPEG 2.5, 1: reserved, 2: MPEG 2, 3: MPEG 1.
+        int layer = (header >> 17) & 3;  // 1: layer III.
+        int bitrateIndex = (header >> 12) & 0xF;
+        int sampleRateIndex = (header >> 10) & 3;
+        int padding = (header >> 9) & 1;
+        if (version == 1 || layer != 1 || bitrateIndex == 0 || bitrateIndex == 15 ||
+                sampleRateIndex == 3) {
+            // Free format bit rates are not supported.
+            return -1;
+        }
+        int sampleRate = SAMPLE_RATES_MPEG1[sampleRateIndex];
+        if (version == 3) {
+            return 144000 * BITRATES_MPEG1[bitrateIndex] / sampleRate + padding;
+        }
+        sampleRate /= (version == 2) ? 2 : 4;
+        return 72000 * BITRATES_MPEG2[bitrateIndex] / sampleRate + padding;
+    }
+
+    // Return the offset of the first valid frame found at or after offset, or -1 if none. To avoid
+    // false positives, the frame must be followed by another frame, an ID3v1 tag or the end of the
+    // file.
+    private int findNextFrame(int offset, int refHeader) {
+        int fileSize = mData.capacity();
+        for (; offset + 4 <= fileSize; offset++) {
+            if ((mData.get(offset) & 0xFF) != 0xFF) {
+                continue;
+            }
+            int frameLen = getFrameLen(offset, refHeader);
+            if (frameLen <= 0) {
+                continue;
+            }
+            int header = refHeader != 0 ? refHeader : mData.getInt(offset);
+            int next = offset + frameLen;
+            if (next == fileSize || matches(next, "TAG") || getFrameLen(next, header) > 0) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private void setFormat(int header) {
+        int version = (header >> 19) & 3;
+        int sampleRateIndex = (header >> 10) & 3;
+        mSampleRate = SAMPLE_RATES_MPEG1[sampleRateIndex];
+        if (version == 2) {
+            mSampleRate /= 2;
+        } else if (version == 0) {
+            mSampleRate /= 4;
+        }
+        mChannels = ((header >> 6) & 3) == 3 ? 1 : 2;
+        mSamplesPerFrame = (version == 3) ? 1152 : 576;
+    }
+
+    // Return the offset of the side information of the frame starting at offset.
+    private int getSideInfoOffset(int offset) {
+        int header = mData.getInt(offset);
+        boolean hasCRC = ((header >> 16) & 1) == 0;
+        return offset + 4 + (hasCRC ? 2 : 0);
+    }
+
+    // Return the size of the side information, which depends on the version and number of
+    // channels.
+    private int getSideInfoSize() {
+        if (mSamplesPerFrame == 1152) {
+            return mChannels == 1 ? 17 : 32;
+        }
+        return mChannels == 1 ? 9 : 17;
+    }
+
+    private boolean isInfoFrame(int offset) {
+        int tagOffset = getSideInfoOffset(offset) + getSideInfoSize();
+        if (matches(tagOffset, "Xing") || matches(tagOffset, "Info")) {
+            return true;
+        }
+        return matches(offset + 36, "VBRI");  // always 32 bytes after the header.
+    }
+
+    private boolean matches(int offset, String tag) {
+        if (offset + tag.length() > mData.capacity()) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (mData.get(offset + i) != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Return the approximate gain of the frame starting at offset, i.e. the gain corresponding to
+    // the maximum global gain of its granules. Granules with no data are silent.
+    private int getGain(int offset) {
+        int sideInfo = getSideInfoOffset(offset);
+        int bitOffset;  // offset of the first granule in the side information, in bits.
+        int granuleSize;  // in bits.
+        int numGranules;
+        if (mSamplesPerFrame == 1152) {
+            bitOffset = 9 + (mChannels == 1 ? 5 : 3) + 4 * mChannels;
+            granuleSize = 59;
+            numGranules = 2 * mChannels;
+        } else {
+            bitOffset = 8 + (mChannels == 1 ? 1 : 2);
+            granuleSize = 63;
+            numGranules = mChannels;
+        }
+        int gain = 0;
+        for (int i = 0; i < numGranules; i++) {
+            int part23Length = getBits(sideInfo, bitOffset, 12);
+            int globalGain = getBits(sideInfo, bitOffset + 21, 8);
+            if (part23Length > 0) {
+                gain = Math.max(gain, GAINS[globalGain]);
+            }
+            bitOffset += granuleSize;
+        }
+        return gain;
+    }
+
+    // Return the numBits bits (at most 24) starting at bit bitOffset of the data starting at
+    // offset, most significant bit first.
+    private int getBits(int offset, int bitOffset, int numBits) {
+        int index = offset + bitOffset / 8;
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value <<= 8;
+            if (index + i < mData.capacity()) {
+                value |= mData.get(index + i) & 0xFF;
+            }
+        }
+        return (value >>> (32 - bitOffset % 8 - numBits)) & ((1 << numBits) - 1);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.util.Log;
+
+/**
+ * On-disk cache of decoded PCM samples, so that reopening a file does not require decoding it
+ * again.
+ *
+ * Entries are keyed by the path, size and modification time of the input file. Each entry is
+ * made of two files: <key>.pcm contains the raw 16 bits samples, and <key>.info contains the
+ * format of the samples and the frame gains. The total size of the cache is capped, and the least
+ * recently used entries are evicted first (the modification time of the .info file is updated
+ * each time the entry is used).
+ */
+class PCMCache {
+    private static final int MAGIC = 0x52445043;  // "RDPC"
+    private static final int VERSION = 1;
+    private static final String SAMPLES_SUFFIX = ".pcm";
+    private static final String INFO_SUFFIX = ".info";
+
+    private File mDir;
+    private long mMaxSize;  // in bytes.
+
+    // A cache hit.
+    public static class Entry {
+        public int mSampleRate;
+        public int mChannels;
+        public int mNumSamples;  // number of samples per channel.
+        public int[] mFrameGains;
+        public MappedByteBuffer mSamples;  // read-only mapping of the samples.
+    }
+
+    public PCMCache(File dir, long maxSize) {
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    // Return the file in which the samples decoded from inputFile should be stored before
+    // calling put(). Return null if the cache directory cannot be created.
+    public File getSamplesFile(File inputFile) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            return null;
+        }
+        return new File(mDir, getKey(inputFile) + SAMPLES_SUFFIX);
+    }
+
+    // Return the cached samples of inputFile, or null if they are not in the cache.
+    public Entry get(File inputFile) {
+        String key = getKey(inputFile);
+        File infoFile = new File(mDir, key + INFO_SUFFIX);
+        File samplesFile = new File(mDir, key + SAMPLES_SUFFIX);
+        if (!infoFile.exists()) {
+            return null;
+        }
+        Entry entry = new Entry();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(infoFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                    !in.readUTF().equals(inputFile.getAbsolutePath())) {
+                throw new IOException("Invalid cache entry " + infoFile);
+            }
+            entry.mSampleRate = in.readInt();
+            entry.mChannels = in.readInt();
+            entry.mNumSamples = in.readInt();
+            entry.mFrameGains = new int[in.readInt()];
+            for (int i = 0; i < entry.mFrameGains.length; i++) {
+                entry.mFrameGains[i] = in.readInt();
+            }
+            long size = (long)entry.mNumSamples * entry.mChannels * 2;
+            if (samplesFile.length() != size) {
+                throw new IOException("Invalid cached samples " + samplesFile);
+            }
+            RandomAccessFile samples = new RandomAccessFile(samplesFile, "r");
+            try {
+                entry.mSamples = samples.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } finally {
+                samples.close();
+            }
+        } catch (IOException e) {
+            Log.w("Ringdroid", "Discarding cache entry: " + e);
+            infoFile.delete();
+            samplesFile.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        infoFile.setLastModified(System.currentTimeMillis());  // most recently used.
+        return entry;
+    }
+
+    // Add the samples of inputFile to the cache. The samples must have been written to the file
+    // returned by getSamplesFile() beforehand.
+    public void put(File inputFile, int sampleRate, int channels, int numSamples,
+                    int[] frameGains) {
+        String key = getKey(inputFile);
+        File infoFile = new File(mDir, key + INFO_SUFFIX);
+        File samplesFile = new File(mDir, key + SAMPLES_SUFFIX);
+        if (samplesFile.length() > mMaxSize) {
+            // Too big for the cache.
+            samplesFile.delete();
+            return;
+        }
+        // Write the .info file under a temporary name first, so that an entry is never visible
+        // before it is complete.
+        File tmpFile = new File(mDir, key + INFO_SUFFIX + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(inputFile.getAbsolutePath());
+            out.writeInt(sampleRate);
+            out.writeInt(channels);
+            out.writeInt(numSamples);
+            out.writeInt(frameGains.length);
+            for (int gain : frameGains) {
+                out.writeInt(gain);
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(infoFile)) {
+                throw new IOException("Cannot rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            Log.w("Ringdroid", "Failed to add cache entry: " + e);
+            tmpFile.delete();
+            samplesFile.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        evict();
+    }
+
+    // Delete the least recently used entries until the cache size is below the cap.
+    private void evict() {
+        File[] infoFiles = mDir.listFiles();
+        if (infoFiles == null) {
+            return;
+        }
+        long totalSize = 0;
+        int numEntries = 0;
+        for (File file : infoFiles) {
+            if (file.getName().endsWith(INFO_SUFFIX)) {
+                totalSize += file.length() + getSamplesFileForInfo(file.getName()).length();
+                infoFiles[numEntries++] = file;
+            } else if (!file.getName().endsWith(SAMPLES_SUFFIX)) {
+                file.delete();  // left over temporary file.
+            }
+        }
+        infoFiles = Arrays.copyOf(infoFiles, numEntries);
+        // Oldest first.
+        Arrays.sort(infoFiles, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long t1 = f1.lastModified();
+                long t2 = f2.lastModified();
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < numEntries && totalSize > mMaxSize; i++) {
+            File samplesFile = getSamplesFileForInfo(infoFiles[i].getName());
+            totalSize -= infoFiles[i].length() + samplesFile.length();
+            infoFiles[i].delete();
+            samplesFile.delete();
+        }
+        // Remove the samples which have no .info file (e.g. if the app died before writing it).
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SAMPLES_SUFFIX)) {
+                String key = name.substring(0, name.length() - SAMPLES_SUFFIX.length());
+                if (!new File(mDir, key + INFO_SUFFIX).exists() &&
+                        System.currentTimeMillis() - file.lastModified() > 24 * 3600 * 1000) {
+                    // Only delete old files, as this one could be being decoded right now.
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    // Return the .pcm file corresponding to the .info file infoFileName.
+    private File getSamplesFileForInfo(String infoFileName) {
+        String key = infoFileName.substring(0, infoFileName.length() - INFO_SUFFIX.length());
+        return new File(mDir, key + SAMPLES_SUFFIX);
+    }
+
+    // The key identifying an input file: a hash of its path, size and modification time.
+    static String getKey(File inputFile) {
+        String id = inputFile.getAbsolutePath() + "\n" + inputFile.length() + "\n" +
+                inputFile.lastModified();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(id.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder();
+            for (byte b : hash) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(id.hashCode());
+        } catch (java.io.UnsupportedEncodingException e) {
+            return Integer.toHexString(id.hashCode());
+        }
+    }
+}
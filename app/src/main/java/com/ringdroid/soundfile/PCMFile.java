@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Disk-backed storage for PCM samples.
+ *
+ * The samples are written to an app-private scratch file through a memory mapping of that file,
+ * so that they do not use any space on the Java heap. Growing the mapping does not copy the
+ * samples already written: they stay in the file and are part of the new mapping.
+ * Once all the samples have been written, finish() returns a read-only mapping of the samples
+ * and deletes the scratch file. The mapping remains valid until it is garbage collected.
+ * A PCMFile can also write the samples to a file which is kept, after a header of a given size
+ * (e.g. a WAV file being recorded, see RecordingFile).
+ */
+class PCMFile {
+    private static final String PREFIX = "pcm";
+    private static final String SUFFIX = ".raw";
+
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private int mHeaderSize;  // number of bytes before the samples in the file.
+    private boolean mIsScratchFile;
+
+    // Create a new scratch file in the directory dir.
+    public PCMFile(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        mFile = File.createTempFile(PREFIX, SUFFIX, dir);
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        mIsScratchFile = true;
+    }
+
+    // Create the file file (which is truncated if it exists), whose samples start after headerSize
+    // bytes. The file is not deleted by finish().
+    public PCMFile(File file, int headerSize) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        mChannel.truncate(0);
+        mHeaderSize = headerSize;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    // Return a read/write mapping of the first size bytes of samples, growing the file if needed.
+    // Data written through previous mappings is preserved.
+    public MappedByteBuffer map(int size) throws IOException {
+        return mChannel.map(FileChannel.MapMode.READ_WRITE, mHeaderSize, size);
+    }
+
+    // Return a read/write mapping of the size bytes of samples starting at offset, growing the
+    // file if needed.
+    public MappedByteBuffer map(long offset, int size) throws IOException {
+        return mChannel.map(FileChannel.MapMode.READ_WRITE, mHeaderSize + offset, size);
+    }
+
+    // Write header at the beginning of the file, and write it to the storage device along with
+    // the rest of the file content written through the channel (but not through mappings, see
+    // MappedByteBuffer.force()).
+    public void writeHeader(byte[] header) throws IOException {
+        mChannel.write(ByteBuffer.wrap(header), 0);
+        mChannel.force(false);
+    }
+
+    // Truncate the samples to size bytes and return a read-only mapping of them.
+    // The file is closed, and deleted if it is a scratch file. This object should not be used
+    // afterward.
+    public MappedByteBuffer finish(int size) throws IOException {
+        return finish(size, null);
+    }
+
+    // Same as finish(size), but the scratch file is moved to destination instead of being deleted
+    // (if destination is not null).
+    public MappedByteBuffer finish(int size, File destination) throws IOException {
+        MappedByteBuffer buffer;
+        try {
+            mChannel.truncate(mHeaderSize + size);
+            buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, mHeaderSize, size);
+            if (!mIsScratchFile) {
+                mRandomAccessFile.close();
+                return buffer;
+            }
+            if (destination != null && mFile.renameTo(destination)) {
+                mFile = destination;
+                mRandomAccessFile.close();
+                return buffer;
+            }
+        } catch (IOException e) {
+            if (mIsScratchFile) {
+                delete();
+            } else {
+                mRandomAccessFile.close();  // keep what has been written so far.
+            }
+            throw e;
+        }
+        delete();
+        return buffer;
+    }
+
+    // Close and delete the scratch file. Existing mappings remain valid.
+    public void delete() {
+        try {
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            // Nothing else to do, the file is deleted anyway.
+        }
+        mFile.delete();
+    }
+
+    // Delete all the scratch files left in the directory dir, e.g. after a crash.
+    public static void deleteScratchFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+}
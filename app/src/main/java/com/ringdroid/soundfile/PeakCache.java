@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.util.Log;
+
+/**
+ * On-disk cache of peak summaries, i.e. the frame gains, RMS levels and block peaks (see
+ * SampleAnalyzer.FrameStats) of the files which have been decoded at least once. A summary is
+ * about 50 kB per minute of audio at 44.1kHz, so that it can be read in a few milliseconds to
+ * display the waveform of a file before (or while) decoding it.
+ *
+ * Summaries are keyed the same way as the entries of PCMCache. Each summary is stored in a
+ * <key>.pk file with the following format (big endian):
+ *   'R' 'D' 'P' 'K'           magic
+ *   version                   1 byte
+ *   sample rate               4 bytes
+ *   number of channels        4 bytes
+ *   samples per frame         4 bytes
+ *   number of frames          4 bytes
+ *   frame gains               1 unsigned byte per frame
+ *   frame RMS levels          1 unsigned byte per frame
+ *   block peaks               minimum and maximum (2 bytes each) per block of each frame
+ * A frame gain or RMS level is the square root of a 16 bits sample, so it always fits in one
+ * byte. The number of blocks per frame is given by SampleAnalyzer.getBlocksPerFrame().
+ * Summaries written by older versions are ignored.
+ */
+class PeakCache {
+    private static final byte[] MAGIC = new byte[] {'R', 'D', 'P', 'K'};
+    private static final byte VERSION = 3;
+    private static final int HEADER_SIZE = 21;
+    private static final String SUFFIX = ".pk";
+    private static final int MAX_NUM_SUMMARIES = 1000;
+
+    private File mDir;
+
+    // A peak summary.
+    public static class Summary {
+        public int[] mFrameGains;
+        public byte[] mFrameRms;
+        public short[] mBlockPeaks;
+    }
+
+    public PeakCache(File dir) {
+        mDir = dir;
+    }
+
+    // Return the summary of inputFile, or null if there is no summary for this file or if it does
+    // not match the given format.
+    public Summary get(File inputFile, int sampleRate, int channels, int samplesPerFrame) {
+        File file = new File(mDir, PCMCache.getKey(inputFile) + SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] bytes = new byte[(int)file.length()];
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w("Ringdroid", "Failed to read peak summary: " + e);
+            return null;
+        }
+        ByteBuffer summary = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE ||
+                !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)) {
+            file.delete();
+            return null;
+        }
+        summary.position(MAGIC.length);
+        if (summary.get() != VERSION ||
+                summary.getInt() != sampleRate ||
+                summary.getInt() != channels ||
+                summary.getInt() != samplesPerFrame) {
+            return null;
+        }
+        int numFrames = summary.getInt();
+        int numPeaks = numFrames * SampleAnalyzer.getBlocksPerFrame(samplesPerFrame) * 2;
+        if (numFrames < 0 || summary.remaining() != 2 * numFrames + 2 * numPeaks) {
+            file.delete();
+            return null;
+        }
+        Summary result = new Summary();
+        result.mFrameGains = new int[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            result.mFrameGains[i] = summary.get() & 0xFF;
+        }
+        result.mFrameRms = new byte[numFrames];
+        summary.get(result.mFrameRms);
+        result.mBlockPeaks = new short[numPeaks];
+        summary.asShortBuffer().get(result.mBlockPeaks);
+        file.setLastModified(System.currentTimeMillis());  // most recently used.
+        return result;
+    }
+
+    // Store the gains, RMS levels and block peaks of the first numFrames frames of inputFile.
+    public void put(File inputFile, int sampleRate, int channels, int samplesPerFrame,
+                    int[] frameGains, byte[] frameRms, short[] blockPeaks, int numFrames) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            return;
+        }
+        int numPeaks = numFrames * SampleAnalyzer.getBlocksPerFrame(samplesPerFrame) * 2;
+        ByteBuffer summary = ByteBuffer.allocate(HEADER_SIZE + 2 * numFrames + 2 * numPeaks);
+        summary.put(MAGIC);
+        summary.put(VERSION);
+        summary.putInt(sampleRate);
+        summary.putInt(channels);
+        summary.putInt(samplesPerFrame);
+        summary.putInt(numFrames);
+        for (int i = 0; i < numFrames; i++) {
+            summary.put((byte)Math.min(frameGains[i], 255));
+        }
+        summary.put(frameRms, 0, numFrames);
+        summary.asShortBuffer().put(blockPeaks, 0, numPeaks);
+        String key = PCMCache.getKey(inputFile);
+        File tmpFile = new File(mDir, key + SUFFIX + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            try {
+                out.write(summary.array());
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(new File(mDir, key + SUFFIX))) {
+                throw new IOException("Cannot rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            Log.w("Ringdroid", "Failed to write peak summary: " + e);
+            tmpFile.delete();
+            return;
+        }
+        evict();
+    }
+
+    // Only keep the MAX_NUM_SUMMARIES most recently used summaries.
+    private void evict() {
+        File[] files = mDir.listFiles();
+        if (files == null || files.length <= MAX_NUM_SUMMARIES) {
+            return;
+        }
+        // Oldest first.
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long t1 = f1.lastModified();
+                long t2 = f2.lastModified();
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length - MAX_NUM_SUMMARIES; i++) {
+            files[i].delete();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+/**
+ * Decodes arbitrary ranges of samples of a file, seeking the extractor to the beginning of each
+ * range instead of decoding the file from its beginning.
+ *
+ * The extractor and decoder are kept between calls to read(), so that reading consecutive ranges
+ * (e.g. while playing or exporting a selection) does not require any seek. The decoded samples
+ * which have not been read yet are kept for the next call. The decoder comes from CodecPool, and
+ * is given back to it by release().
+ */
+class RangeDecoder {
+    // Number of samples decoded (and dropped) before the beginning of a range after a seek. The
+    // first frames decoded after a seek are not reliable: e.g. AAC frames overlap with the previous
+    // one, and MP3 frames may use data from the previous frames (bit reservoir).
+    public static final int PREROLL_SAMPLES = 4096;
+
+    private File mInputFile;
+    private int mSampleRate;
+    private int mChannels;
+
+    private MediaExtractor mExtractor;
+    private MediaCodec mCodec;
+    private String mMimeType;
+    private boolean mIsAAC;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private MediaCodec.BufferInfo mInfo;
+    private boolean mFirstSampleData;
+    private boolean mDoneReading;  // true once the end of stream has been queued to the decoder.
+    private boolean mDone;  // true once the decoder has output its last samples.
+
+    // Samples decoded but not read yet, from mPending's position to its limit. mPending is a view
+    // of the output buffer mPendingIndex of the decoder, which is only released once all its
+    // samples have been read, so that they are copied only once, directly to their destination.
+    private ShortBuffer mPending;
+    private int mPendingIndex;
+    // Index of the next sample (per channel) output by the decoder, or -1 right after a seek,
+    // until the timestamp of the first decoded buffer is known.
+    private long mNextSample;
+
+    public RangeDecoder(File inputFile, int sampleRate, int channels) {
+        mInputFile = inputFile;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mPendingIndex = -1;
+    }
+
+    // Decode the numSamples samples (per channel) starting at sample startSample and put them in
+    // dest. Return the number of samples (per channel) actually decoded, which is less than
+    // numSamples past the end of the file. If the decoder fails, it is dropped, and an
+    // IOException is thrown.
+    public synchronized int read(long startSample, int numSamples, ShortBuffer dest)
+            throws IOException {
+        try {
+            return decode(startSample, numSamples, dest);
+        } catch (RuntimeException e) {
+            // e.g. IllegalStateException or MediaCodec.CodecException.
+            discard();
+            throw new IOException(e.toString());
+        }
+    }
+
+    private int decode(long startSample, int numSamples, ShortBuffer dest) throws IOException {
+        if (mCodec == null) {
+            open();
+        }
+        if (mNextSample != startSample) {
+            seek(startSample);
+        }
+        int numRead = 0;
+        while (numRead < numSamples) {
+            if (mPendingIndex < 0) {
+                if (!decodeNextBuffer()) {
+                    break;  // end of stream.
+                }
+                continue;
+            }
+            long wanted = startSample + numRead;
+            int numAvailable = mPending.remaining() / mChannels;
+            if (mNextSample < wanted) {
+                // Decoded from the sync point preceding the range, or pre-roll: skip them.
+                int numSkipped = (int)Math.min(wanted - mNextSample, numAvailable);
+                mPending.position(mPending.position() + numSkipped * mChannels);
+                mNextSample += numSkipped;
+            } else if (mNextSample > wanted) {
+                // The decoder output starts after the range (e.g. leading encoder delay): pad
+                // with silence.
+                int numSilent = (int)Math.min(mNextSample - wanted, numSamples - numRead);
+                for (int i = 0; i < numSilent * mChannels; i++) {
+                    dest.put((short)0);
+                }
+                numRead += numSilent;
+            } else {
+                int n = Math.min(numAvailable, numSamples - numRead);
+                ShortBuffer samples = mPending.duplicate();
+                samples.limit(samples.position() + n * mChannels);
+                dest.put(samples);
+                mPending.position(samples.limit());
+                mNextSample += n;
+                numRead += n;
+            }
+            if (mPendingIndex >= 0 && !mPending.hasRemaining()) {
+                releasePending();
+            }
+        }
+        return numRead;
+    }
+
+    // Release the extractor and decoder. They will be created again if read() is called.
+    public synchronized void release() {
+        if (mCodec != null) {
+            releasePending();
+            mCodec.stop();
+            CodecPool.release(mCodec, mMimeType, false, true);
+            mCodec = null;
+        }
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+        mNextSample = -1;
+    }
+
+    // Release the extractor and decoder after an error, without giving the decoder back to the
+    // pool.
+    private void discard() {
+        if (mCodec != null) {
+            CodecPool.release(mCodec, mMimeType, false, false);
+            mCodec = null;
+        }
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+        mPendingIndex = -1;
+        mPending = null;
+        mNextSample = -1;
+    }
+
+    // Give the output buffer holding the pending samples back to the decoder.
+    private void releasePending() {
+        if (mPendingIndex >= 0) {
+            mOutputBuffers[mPendingIndex].clear();
+            mCodec.releaseOutputBuffer(mPendingIndex, false);
+            mPendingIndex = -1;
+            mPending = null;
+        }
+    }
+
+    private void open() throws IOException {
+        mExtractor = new MediaExtractor();
+        mExtractor.setDataSource(mInputFile.getPath());
+        MediaFormat format = null;
+        int i;
+        for (i = 0; i < mExtractor.getTrackCount(); i++) {
+            format = mExtractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                mExtractor.selectTrack(i);
+                break;
+            }
+        }
+        if (i == mExtractor.getTrackCount()) {
+            mExtractor.release();
+            mExtractor = null;
+            throw new IOException("No audio track found in " + mInputFile);
+        }
+        mMimeType = format.getString(MediaFormat.KEY_MIME);
+        mIsAAC = mMimeType.equals("audio/mp4a-latm");
+        try {
+            mCodec = CodecPool.acquireDecoder(mMimeType);
+            mCodec.configure(format, null, null, 0);
+            mCodec.start();
+        } catch (IOException e) {
+            discard();
+            throw e;
+        } catch (RuntimeException e) {
+            discard();
+            throw new IOException(e.toString());
+        }
+        mInputBuffers = mCodec.getInputBuffers();
+        mOutputBuffers = mCodec.getOutputBuffers();
+        mInfo = new MediaCodec.BufferInfo();
+        mFirstSampleData = true;
+        mDoneReading = false;
+        mDone = false;
+        mPendingIndex = -1;
+        mNextSample = 0;
+    }
+
+    private void seek(long startSample) {
+        long seekSample = Math.max(startSample - PREROLL_SAMPLES, 0);
+        mExtractor.seekTo(
+                seekSample * 1000000 / mSampleRate, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        releasePending();
+        mCodec.flush();
+        mDoneReading = false;
+        mDone = false;
+        if (seekSample == 0) {
+            // Count the samples from the beginning of the stream, as ReadFile() does.
+            mFirstSampleData = true;
+            mNextSample = 0;
+        } else {
+            mNextSample = -1;
+        }
+    }
+
+    // Decode the next buffer of samples, and keep it as mPending. Return false at the end of the
+    // stream.
+    private boolean decodeNextBuffer() {
+        int numTriesAfterEndOfInput = 0;
+        while (!mDone) {
+            int inputBufferIndex = mCodec.dequeueInputBuffer(100);
+            if (!mDoneReading && inputBufferIndex >= 0) {
+                int sampleSize = mExtractor.readSampleData(mInputBuffers[inputBufferIndex], 0);
+                if (mFirstSampleData && mIsAAC && sampleSize == 2) {
+                    // Skip the 2 bytes of codec specific data, as in ReadFile(), and use the input
+                    // buffer for the next sample instead.
+                    mExtractor.advance();
+                    sampleSize = mExtractor.readSampleData(mInputBuffers[inputBufferIndex], 0);
+                }
+                mFirstSampleData = false;
+                if (sampleSize < 0) {
+                    mCodec.queueInputBuffer(
+                            inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mDoneReading = true;
+                } else {
+                    mCodec.queueInputBuffer(
+                            inputBufferIndex, 0, sampleSize, mExtractor.getSampleTime(), 0);
+                    mExtractor.advance();
+                }
+            }
+
+            int outputBufferIndex = mCodec.dequeueOutputBuffer(mInfo, 100);
+            if (outputBufferIndex >= 0) {
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    mDone = true;
+                }
+                if (mInfo.size > 0) {
+                    ByteBuffer outputBuffer = mOutputBuffers[outputBufferIndex];
+                    outputBuffer.position(mInfo.offset);
+                    outputBuffer.limit(mInfo.offset + mInfo.size);
+                    mPending = outputBuffer.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+                    mPendingIndex = outputBufferIndex;
+                    if (mNextSample < 0) {
+                        mNextSample = mInfo.presentationTimeUs * mSampleRate / 1000000;
+                    }
+                    return true;
+                }
+                mCodec.releaseOutputBuffer(outputBufferIndex, false);
+            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = mCodec.getOutputBuffers();
+            } else if (mDoneReading && ++numTriesAfterEndOfInput > 1000) {
+                // Some decoders never flag the end of stream (see ReadFile()). Give up after
+                // waiting for a while.
+                mDone = true;
+            }
+        }
+        return false;
+    }
+}
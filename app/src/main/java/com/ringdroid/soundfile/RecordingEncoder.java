@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * Encodes 16 bits PCM samples to an .m4a file (AAC) while they are being recorded, so that the
+ * whole recording can be saved without encoding it again.
+ *
+ * The samples are handed over by the recording thread through a CaptureRing, and encoded on a
+ * dedicated thread by an encoder from CodecPool. This thread polls the encoder (see
+ * CodecRunner.runOnCallingThread()) since it waits for the samples to be recorded. The AAC
+ * stream is appended to a temporary file as it gets encoded, and the .m4a file (whose header
+ * needs the sizes of all the AAC frames) is only written by finish(). Mono recordings are
+ * encoded as stereo, like SoundFile.WriteFile() does.
+ */
+class RecordingEncoder {
+    private static final int RING_SECONDS = 4;
+    private static final int FRAME_SIZE = 1024;  // samples (per channel) per AAC frame.
+    private static final int NUM_PADDING_FRAMES = 2;  // Cf. priming frames for AAC.
+    // Number of samples (per channel) decoded from the .m4a file before the first recorded one:
+    // the AAC encoder delays its output by one frame.
+    public static final int PRIMING_SAMPLES = FRAME_SIZE;
+
+    private File mFile;
+    private File mStreamFile;  // AAC stream encoded so far.
+    private int mSampleRate;
+    private int mChannels;  // of the recorded samples.
+    private MediaFormat mFormat;
+    private CaptureRing mRing;
+    private Thread mThread;
+    private volatile Thread mConsumer;  // encoding thread waiting for samples, if any.
+    private volatile boolean mInputDone;  // true once all the samples have been put.
+    private volatile boolean mCancelled;
+    private volatile boolean mEncoderDone;  // true once the encoding thread has stopped.
+    private IOException mError;  // read once mThread has been joined.
+
+    // Written by the encoding thread only.
+    private OutputStream mStream;
+    private int[] mFrameSizes = new int[256];
+    private int mNumFrames;
+
+    // Create an encoder writing the samples (sampleRate Hz, channels channels) to file, using
+    // format, the format of the AAC stream.
+    public RecordingEncoder(File file, int sampleRate, int channels, MediaFormat format) {
+        mFile = file;
+        mStreamFile = new File(file.getPath() + ".tmp");
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mFormat = format;
+        mRing = new CaptureRing(RING_SECONDS * sampleRate * channels * 2);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    // Start the encoding thread.
+    public void start() throws IOException {
+        mStream = new BufferedOutputStream(new FileOutputStream(mStreamFile));
+        mThread = new Thread("Ringdroid recording encoder") {
+            public void run() {
+                try {
+                    encode();
+                } finally {
+                    mEncoderDone = true;
+                    if (mCancelled) {
+                        deleteFiles();
+                    }
+                }
+            }
+        };
+        mThread.start();
+    }
+
+    // Queue the samples of bytes (16 bits little endian), from its position to its limit, for
+    // encoding. The position of bytes is not changed. Never waits, so that the encoder cannot
+    // delay the recording: throw an IOException if the encoder stopped, or if it is so far
+    // behind that the samples do not fit in the ring. The encoder should then be cancelled.
+    public void put(ByteBuffer bytes) throws IOException {
+        ByteBuffer src = bytes.duplicate();
+        while (src.hasRemaining()) {
+            if (mEncoderDone) {
+                throw new IOException("The recording encoder stopped");
+            }
+            ByteBuffer region = mRing.getWriteRegion(src.remaining());
+            int size = region.capacity();
+            if (size == 0) {
+                throw new IOException("The recording encoder fell behind");
+            }
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + size);
+            region.put(chunk);
+            src.position(src.position() + size);
+            mRing.commitWrite(size);
+            wake(mConsumer);
+        }
+    }
+
+    // Encode the samples put so far, pad the last frame, and write the .m4a file. Return the
+    // file.
+    public File finish() throws IOException {
+        mInputDone = true;
+        join();
+        if (mError != null) {
+            deleteFiles();
+            throw mError;
+        }
+        int numChannels = mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        int bitrate = mFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+        byte[] header = MP4Header.getMP4Header(
+                mSampleRate, numChannels, Arrays.copyOf(mFrameSizes, mNumFrames), bitrate);
+        if (header == null) {
+            deleteFiles();
+            throw new IOException("Invalid AAC stream");
+        }
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(header);
+            appendFile(mStreamFile, out);
+        } catch (IOException e) {
+            out.close();
+            deleteFiles();
+            throw e;
+        }
+        out.close();
+        mStreamFile.delete();
+        return mFile;
+    }
+
+    // Number of samples (per channel) the .m4a file decodes to, priming samples and padding
+    // included. Only valid once finish() returned.
+    public int getNumEncodedSamples() {
+        return mNumFrames * FRAME_SIZE;
+    }
+
+    // Stop encoding, and delete the files. Does not wait for the encoding thread, which deletes
+    // them once it stops.
+    public void cancel() {
+        mCancelled = true;
+        wake(mConsumer);
+    }
+
+    // Append the content of file to out, 4kB at a time.
+    public static void appendFile(File file, OutputStream out) throws IOException {
+        byte[] buffer = new byte[4096];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int size;
+            while ((size = in.read(buffer)) > 0) {
+                out.write(buffer, 0, size);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void join() {
+        wake(mConsumer);
+        boolean interrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deleteFiles() {
+        mStreamFile.delete();
+        mFile.delete();
+    }
+
+    private void encode() {
+        String mimeType = mFormat.getString(MediaFormat.KEY_MIME);
+        MediaCodec codec = null;
+        boolean reusable = false;
+        try {
+            codec = CodecPool.acquireEncoder(mimeType);
+            CodecRunner.runOnCallingThread(codec, mFormat, MediaCodec.CONFIGURE_FLAG_ENCODE,
+                    new EncoderClient(), "encode recording");
+            reusable = !mCancelled;
+        } catch (IOException e) {
+            mError = e;
+        } catch (RuntimeException e) {
+            mError = new IOException(e.toString());
+        } finally {
+            if (codec != null) {
+                CodecPool.release(codec, mimeType, true, reusable);
+            }
+            try {
+                mStream.close();
+            } catch (IOException e) {
+                if (mError == null) {
+                    mError = e;
+                }
+            }
+        }
+        if (mError != null) {
+            Log.w("Ringdroid", "Failed to encode recording: " + mError);
+        }
+    }
+
+    private static void wake(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // Feeds the samples of mRing to the encoder, 1 AAC frame at a time, and appends the encoded
+    // frames to mStream.
+    private class EncoderClient implements CodecRunner.Client {
+        private byte[] mFrame = new byte[FRAME_SIZE * mChannels * 2];
+        private byte[] mEncodedFrame = new byte[0];
+        private int mNumInputFrames;
+        private int mNumPaddingFramesLeft = NUM_PADDING_FRAMES;
+
+        @Override
+        public boolean readInput(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            // Wait for a whole frame, or for the end of the recording.
+            mConsumer = Thread.currentThread();
+            while (mRing.getAvailable() < mFrame.length && !mInputDone && !mCancelled) {
+                LockSupport.parkNanos(this, 20000000L);  // woken up by the recording thread.
+            }
+            mConsumer = null;
+            if (mCancelled) {
+                return false;
+            }
+            int frameSize = mChannels == 1 ? 2 * mFrame.length : mFrame.length;
+            if (frameSize > buffer.remaining()) {
+                // Input buffer is smaller than one frame. This should never happen.
+                info.set(0, 0, 0, 0);
+                return true;
+            }
+            int size = 0;
+            while (size < mFrame.length && mRing.getAvailable() > 0) {
+                ByteBuffer region = mRing.getReadRegion(mFrame.length - size);
+                int regionSize = region.remaining();
+                region.get(mFrame, size, regionSize);
+                mRing.commitRead(regionSize);
+                size += regionSize;
+            }
+            if (size == 0) {
+                if (mNumPaddingFramesLeft == 0) {
+                    info.set(0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    return true;
+                }
+                mNumPaddingFramesLeft--;
+            }
+            Arrays.fill(mFrame, size, mFrame.length, (byte)0);  // pad the last frame.
+            if (mChannels == 1) {
+                // Duplicate the samples to encode a stereo stream.
+                for (int i = 0; i < mFrame.length; i += 2) {
+                    buffer.put(mFrame[i]);
+                    buffer.put(mFrame[i + 1]);
+                    buffer.put(mFrame[i]);
+                    buffer.put(mFrame[i + 1]);
+                }
+            } else {
+                buffer.put(mFrame);
+            }
+            long presentationTime = (long)(((mNumInputFrames++) * FRAME_SIZE * 1e6) / mSampleRate);
+            info.set(0, frameSize, presentationTime, 0);
+            return true;
+        }
+
+        @Override
+        public boolean writeOutput(ByteBuffer buffer, MediaCodec.BufferInfo info)
+                throws IOException {
+            if (info.presentationTimeUs < 0) {
+                return true;
+            }
+            if (mNumFrames == mFrameSizes.length) {
+                mFrameSizes = Arrays.copyOf(mFrameSizes, 2 * mNumFrames);
+            }
+            mFrameSizes[mNumFrames++] = info.size;
+            if (mEncodedFrame.length < info.size) {
+                mEncodedFrame = new byte[info.size];
+            }
+            buffer.get(mEncodedFrame, 0, info.size);
+            mStream.write(mEncodedFrame, 0, info.size);
+            return true;
+        }
+
+        @Override
+        public void setOutputFormat(MediaFormat format) {
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.util.HashSet;
+
+import android.util.Log;
+
+/**
+ * App-private WAV file to which 16 bits PCM samples are written as they get recorded, so that the
+ * length of a recording is only bounded by the storage space, and a recording survives a crash.
+ *
+ * The samples are appended through the PCMFile of the file (i.e. through memory mappings, see
+ * SampleStore), after a standard WAV header. sync() is called regularly while recording: it
+ * writes the samples recorded so far to the storage device, and only then updates the lengths in
+ * the header, so that the file always is a valid WAV file holding all the samples synced so far.
+ * A file left behind by a recording which did not finish, or which was still being edited when
+ * the app died, can be found with findInterrupted() and opened like any other WAV file.
+ */
+class RecordingFile {
+    private static final String PREFIX = "recording";
+    private static final String SUFFIX = ".wav";
+    private static final String ENCODED_SUFFIX = ".m4a";
+    private static final int HEADER_SIZE = 44;
+
+    // Files of the recordings of this process which have not been deleted yet.
+    private static final HashSet<File> sFilesInUse = new HashSet<File>();
+
+    private PCMFile mPCMFile;
+    private int mSampleRate;
+    private int mChannels;
+
+    // Create a new recording file in the directory dir.
+    public RecordingFile(File dir, int sampleRate, int channels) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mPCMFile = new PCMFile(File.createTempFile(PREFIX, SUFFIX, dir), HEADER_SIZE);
+        synchronized (sFilesInUse) {
+            sFilesInUse.add(mPCMFile.getFile());
+        }
+        writeHeader(0);
+    }
+
+    // The PCMFile the samples are appended to, e.g. by a SampleStore.
+    public PCMFile getPCMFile() {
+        return mPCMFile;
+    }
+
+    public File getFile() {
+        return mPCMFile.getFile();
+    }
+
+    // The .m4a file the recording can be encoded to while it is being recorded (see
+    // RecordingEncoder), next to the WAV file and deleted along with it.
+    public File getEncodedFile() {
+        String name = getFile().getName();
+        return new File(getFile().getParentFile(),
+                name.substring(0, name.length() - SUFFIX.length()) + ENCODED_SUFFIX);
+    }
+
+    // Write the samples appended to samples so far to the storage device, and then make them part
+    // of the WAV file.
+    public void sync(SampleStore samples) throws IOException {
+        samples.force();
+        writeHeader(samples.getNumSamples());
+    }
+
+    // Complete the WAV file with numSamples samples (per channel), and return a read-only mapping
+    // of the samples. The file is kept until delete() is called.
+    public MappedByteBuffer finish(int numSamples) throws IOException {
+        writeHeader(numSamples);
+        return mPCMFile.finish(numSamples * mChannels * 2);
+    }
+
+    // Delete the file once the recording is not needed anymore. Existing mappings remain valid.
+    public void delete() {
+        File file = mPCMFile.getFile();
+        synchronized (sFilesInUse) {
+            sFilesInUse.remove(file);
+        }
+        file.delete();
+        getEncodedFile().delete();
+    }
+
+    // Return a recording file left behind in the directory dir (e.g. after a crash), with only the
+    // samples synced before the app stopped, or null if there is none. Empty recording files are
+    // deleted, and so are the other files (e.g. partially encoded ones) of the recordings left
+    // behind.
+    public static File findInterrupted(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return null;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(PREFIX)) {
+                continue;
+            }
+            File wavFile = file;
+            if (!name.endsWith(SUFFIX)) {
+                int end = name.indexOf('.');
+                wavFile = new File(dir, (end < 0 ? name : name.substring(0, end)) + SUFFIX);
+            }
+            synchronized (sFilesInUse) {
+                if (sFilesInUse.contains(wavFile)) {
+                    continue;
+                }
+            }
+            if (wavFile != file) {
+                file.delete();
+                continue;
+            }
+            try {
+                if (truncate(file)) {
+                    return file;
+                }
+            } catch (IOException e) {
+                Log.w("Ringdroid", "Cannot recover " + file + ": " + e);
+            }
+            file.delete();
+        }
+        return null;
+    }
+
+    private void writeHeader(int numSamples) throws IOException {
+        mPCMFile.writeHeader(WAVHeader.getWAVHeader(
+                mSampleRate, mChannels, numSamples, SampleFormat.PCM_16BIT));
+    }
+
+    // Drop the samples of the recording file file which are past the length in its header (they
+    // may not have reached the storage device, and the file grows by whole chunks). Return false
+    // if it holds no sample.
+    private static boolean truncate(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "rw");
+        try {
+            if (in.length() < HEADER_SIZE) {
+                return false;
+            }
+            in.seek(HEADER_SIZE - 4);
+            long size = Integer.reverseBytes(in.readInt()) & 0xFFFFFFFFL;
+            if (size == 0) {
+                return false;
+            }
+            in.setLength(Math.min(HEADER_SIZE + size, in.length()));
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import android.os.Build;
+
+/**
+ * Computes statistics (gain, minimum, maximum and RMS value) of frames of 16 bits PCM samples
+ * (interleaved channels), and the minimum and maximum of the average of the channels over
+ * blocks of SAMPLES_PER_BLOCK samples of each frame (the peaks drawn by the waveform).
+ *
+ * The samples are copied by blocks of several frames into a short[] with bulk reads, and each
+ * frame is then analyzed in a single loop over this array. Long runs of frames are split between
+ * the cores of the device with fork/join (on API 21+, where ForkJoinPool is available).
+ */
+class SampleAnalyzer {
+    public static final int SAMPLES_PER_BLOCK = 256;  // per channel.
+
+    // Statistics of consecutive frames. The arrays are indexed by frame, and may be longer than
+    // the number of frames analyzed so far.
+    public static class FrameStats {
+        // Square root of the maximum over the samples of the frame of the average absolute value
+        // of their channels (the historical "frame gain" of SoundFile).
+        public int[] mGains;
+        public short[] mMin;  // minimum value of the frame, over all its channels.
+        public short[] mMax;  // maximum value of the frame, over all its channels.
+        public int[] mRms;  // RMS value of the frame, over all its channels (0 to 32768).
+        // Minimum and maximum (interleaved) of the average of the channels over each block of
+        // SAMPLES_PER_BLOCK samples, mBlocksPerFrame blocks per frame. The last block of a frame
+        // may be shorter.
+        public short[] mBlockPeaks;
+        public final int mBlocksPerFrame;
+
+        public FrameStats(int numFrames, int samplesPerFrame) {
+            mGains = new int[numFrames];
+            mMin = new short[numFrames];
+            mMax = new short[numFrames];
+            mRms = new int[numFrames];
+            mBlocksPerFrame = getBlocksPerFrame(samplesPerFrame);
+            mBlockPeaks = new short[numFrames * mBlocksPerFrame * 2];
+        }
+
+        public int getCapacity() {
+            return mGains.length;
+        }
+
+        // Copy the RMS levels (see getLevel()) of frames first to last (excluded) to dest, at the
+        // same index.
+        public void getRmsLevels(byte[] dest, int first, int last) {
+            for (int i = first; i < last; i++) {
+                dest[i] = getLevel(mRms[i]);
+            }
+        }
+
+        // Copy the block peaks of frames first to last (excluded) to dest, at the same index.
+        public void getBlockPeaks(short[] dest, int first, int last) {
+            int frameSize = mBlocksPerFrame * 2;
+            System.arraycopy(mBlockPeaks, first * frameSize, dest, first * frameSize,
+                    (last - first) * frameSize);
+        }
+
+        // Make sure numFrames frames can be stored, making room for 10% more if needed.
+        public void ensureCapacity(int numFrames) {
+            if (numFrames <= mGains.length) {
+                return;
+            }
+            numFrames += numFrames / 10;
+            mGains = Arrays.copyOf(mGains, numFrames);
+            mMin = Arrays.copyOf(mMin, numFrames);
+            mMax = Arrays.copyOf(mMax, numFrames);
+            mRms = Arrays.copyOf(mRms, numFrames);
+            mBlockPeaks = Arrays.copyOf(mBlockPeaks, numFrames * mBlocksPerFrame * 2);
+        }
+    }
+
+    // Number of blocks of SAMPLES_PER_BLOCK samples (the last one possibly shorter) in a frame.
+    public static int getBlocksPerFrame(int samplesPerFrame) {
+        return (samplesPerFrame + SAMPLES_PER_BLOCK - 1) / SAMPLES_PER_BLOCK;
+    }
+
+    // Return the level of a value between 0 and 32768 on the same scale as the frame gains (its
+    // square root), which fits in an unsigned byte.
+    public static byte getLevel(int value) {
+        return (byte)Math.min((int)Math.sqrt(value), 255);
+    }
+
+    private static final int BLOCK_FRAMES = 16;  // number of frames copied at a time.
+    // Minimum number of frames analyzed by a fork/join task (~6sec at 44.1kHz).
+    private static final int TASK_FRAMES = 256;
+
+    private static ForkJoinPool sPool;  // lazily created.
+
+    // Analyze the numFrames frames of samplesPerFrame samples (per channel) of samples, from its
+    // position, and store their statistics in stats, from frame firstFrame on. The position of
+    // samples is not changed. The capacity of stats must be large enough.
+    public static void analyze(ShortBuffer samples, int channels, int samplesPerFrame,
+                               int numFrames, FrameStats stats, int firstFrame) {
+        if (numFrames >= 2 * TASK_FRAMES &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                Runtime.getRuntime().availableProcessors() > 1) {
+            getPool().invoke(new Task(samples.duplicate(), channels, samplesPerFrame, numFrames,
+                    stats, firstFrame));
+        } else {
+            analyzeSequentially(
+                    samples.duplicate(), channels, samplesPerFrame, numFrames, stats, firstFrame);
+        }
+    }
+
+    // Analyze the numSamples samples (per channel) of values, from index offset, as frame frame
+    // of stats. The blocks of the frame past numSamples are set to 0.
+    public static void analyzeFrame(short[] values, int offset, int numSamples, int channels,
+                                    FrameStats stats, int frame) {
+        int peak = frame * stats.mBlocksPerFrame * 2;
+        int peaksEnd = peak + stats.mBlocksPerFrame * 2;
+        if (numSamples == 0) {
+            stats.mGains[frame] = 0;
+            stats.mMin[frame] = 0;
+            stats.mMax[frame] = 0;
+            stats.mRms[frame] = 0;
+            Arrays.fill(stats.mBlockPeaks, peak, peaksEnd, (short)0);
+            return;
+        }
+        int maxValue = -1;
+        int min = Short.MAX_VALUE;
+        int max = Short.MIN_VALUE;
+        long sumOfSquares = 0;
+        int end = offset + numSamples * channels;
+        int blockSize = SAMPLES_PER_BLOCK * channels;
+        if (channels == 1) {
+            for (int block = offset; block < end; block += blockSize) {
+                int blockEnd = Math.min(block + blockSize, end);
+                int blockMin = Short.MAX_VALUE;
+                int blockMax = Short.MIN_VALUE;
+                for (int i = block; i < blockEnd; i++) {
+                    int value = values[i];
+                    if (value < blockMin) blockMin = value;
+                    if (value > blockMax) blockMax = value;
+                    sumOfSquares += value * value;
+                }
+                stats.mBlockPeaks[peak++] = (short)blockMin;
+                stats.mBlockPeaks[peak++] = (short)blockMax;
+                if (blockMin < min) min = blockMin;
+                if (blockMax > max) max = blockMax;
+            }
+            maxValue = Math.max(max, -min);
+        } else {
+            for (int block = offset; block < end; block += blockSize) {
+                int blockEnd = Math.min(block + blockSize, end);
+                int blockMin = Short.MAX_VALUE;
+                int blockMax = Short.MIN_VALUE;
+                for (int i = block; i < blockEnd; ) {
+                    int sum = 0;
+                    int absSum = 0;
+                    for (int k = 0; k < channels; k++) {
+                        int value = values[i++];
+                        if (value < min) min = value;
+                        if (value > max) max = value;
+                        sumOfSquares += value * value;
+                        sum += value;
+                        absSum += value < 0 ? -value : value;
+                    }
+                    sum /= channels;
+                    if (sum < blockMin) blockMin = sum;
+                    if (sum > blockMax) blockMax = sum;
+                    absSum /= channels;
+                    if (absSum > maxValue) maxValue = absSum;
+                }
+                stats.mBlockPeaks[peak++] = (short)blockMin;
+                stats.mBlockPeaks[peak++] = (short)blockMax;
+            }
+        }
+        Arrays.fill(stats.mBlockPeaks, peak, peaksEnd, (short)0);
+        stats.mGains[frame] = (int)Math.sqrt(maxValue);
+        stats.mMin[frame] = (short)min;
+        stats.mMax[frame] = (short)max;
+        stats.mRms[frame] = (int)Math.sqrt((double)sumOfSquares / (numSamples * channels));
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool();
+        }
+        return sPool;
+    }
+
+    private static void analyzeSequentially(ShortBuffer samples, int channels,
+                                            int samplesPerFrame, int numFrames, FrameStats stats,
+                                            int firstFrame) {
+        int frameSize = samplesPerFrame * channels;
+        short[] block = new short[Math.min(BLOCK_FRAMES, numFrames) * frameSize];
+        for (int frame = 0; frame < numFrames; frame += BLOCK_FRAMES) {
+            int n = Math.min(BLOCK_FRAMES, numFrames - frame);
+            samples.get(block, 0, n * frameSize);
+            for (int i = 0; i < n; i++) {
+                analyzeFrame(block, i * frameSize, samplesPerFrame, channels, stats,
+                        firstFrame + frame + i);
+            }
+        }
+    }
+
+    // Analyzes a range of frames, splitting it in two halves analyzed in parallel if it is long.
+    private static class Task extends RecursiveAction {
+        private ShortBuffer mSamples;
+        private int mChannels;
+        private int mSamplesPerFrame;
+        private int mNumFrames;
+        private FrameStats mStats;
+        private int mFirstFrame;
+
+        public Task(ShortBuffer samples, int channels, int samplesPerFrame, int numFrames,
+                    FrameStats stats, int firstFrame) {
+            mSamples = samples;
+            mChannels = channels;
+            mSamplesPerFrame = samplesPerFrame;
+            mNumFrames = numFrames;
+            mStats = stats;
+            mFirstFrame = firstFrame;
+        }
+
+        @Override
+        protected void compute() {
+            if (mNumFrames < 2 * TASK_FRAMES) {
+                analyzeSequentially(mSamples, mChannels, mSamplesPerFrame, mNumFrames, mStats,
+                        mFirstFrame);
+                return;
+            }
+            int half = mNumFrames / 2;
+            ShortBuffer secondHalf = mSamples.duplicate();
+            secondHalf.position(mSamples.position() + half * mSamplesPerFrame * mChannels);
+            invokeAll(new Task(mSamples, mChannels, mSamplesPerFrame, half, mStats, mFirstFrame),
+                    new Task(secondHalf, mChannels, mSamplesPerFrame, mNumFrames - half, mStats,
+                            mFirstFrame + half));
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Compact representations of 16 bits PCM samples (little endian, interleaved channels), used by
+ * SampleStore to keep more samples in memory. All of them can be decoded from any sample on.
+ *
+ * DELTA is lossless: the samples are split in blocks of BLOCK_SAMPLES samples. In each block, each
+ * channel is stored as its first value followed by the differences between consecutive values,
+ * packed with the number of bits needed by the largest difference of the block. The number of
+ * samples and the offset of each block are stored at the beginning of the data, for random access.
+ * MULAW stores each value on 8 bits (G.711 mu-law), and MONO_MULAW stores the average of the
+ * channels of each sample on 8 bits. Both are lossy, and only meant for listening to the samples
+ * or looking at their waveform.
+ */
+class SampleCodec {
+    public static final int PCM16 = 0;
+    public static final int DELTA = 1;
+    public static final int MULAW = 2;
+    public static final int MONO_MULAW = 3;
+
+    private static final int BLOCK_SAMPLES = 64;  // number of samples per channel per block.
+    private static final int MULAW_BIAS = 0x84;
+    private static final int MULAW_CLIP = 32635;
+    private static final short[] MULAW_VALUES = new short[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int u = ~i & 0xFF;
+            int exponent = (u >> 4) & 0x07;
+            int value = ((((u & 0x0F) << 3) + MULAW_BIAS) << exponent) - MULAW_BIAS;
+            MULAW_VALUES[i] = (short)((u & 0x80) != 0 ? -value : value);
+        }
+    }
+
+    // Approximate size of data encoded with encoding, relatively to its size as 16 bits PCM.
+    public static float getRatio(int encoding, int channels) {
+        switch (encoding) {
+            case DELTA:
+                return 0.75f;  // typical for music, not guaranteed.
+            case MULAW:
+                return 0.5f;
+            case MONO_MULAW:
+                return 0.5f / channels;
+            default:
+                return 1;
+        }
+    }
+
+    // Encode the 16 bits PCM samples of pcm (from 0 to its limit) with encoding. Return null if
+    // the encoded data would not be smaller than pcm.
+    public static ByteBuffer encode(int encoding, ByteBuffer pcm, int channels) {
+        int numSamples = pcm.limit() / (2 * channels);
+        ByteBuffer data;
+        switch (encoding) {
+            case DELTA:
+                data = encodeDelta(pcm, channels, numSamples);
+                break;
+            case MULAW:
+                data = ByteBuffer.allocate(numSamples * channels);
+                for (int i = 0; i < numSamples * channels; i++) {
+                    data.put(toMulaw(pcm.getShort(2 * i)));
+                }
+                break;
+            case MONO_MULAW:
+                data = ByteBuffer.allocate(numSamples);
+                for (int i = 0; i < numSamples; i++) {
+                    int value = 0;
+                    for (int c = 0; c < channels; c++) {
+                        value += pcm.getShort(2 * (i * channels + c));
+                    }
+                    data.put(toMulaw(value / channels));
+                }
+                break;
+            default:
+                return null;
+        }
+        if (data == null || data.position() >= pcm.limit()) {
+            return null;
+        }
+        data.flip();
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        return data;
+    }
+
+    // Decode the numSamples samples (per channel) starting at sample firstSample of data, encoded
+    // with encoding, and put them in dest as 16 bits PCM.
+    public static void decode(int encoding, ByteBuffer data, int channels, int firstSample,
+                              int numSamples, ShortBuffer dest) {
+        switch (encoding) {
+            case DELTA:
+                decodeDelta(data, channels, firstSample, numSamples, dest);
+                break;
+            case MULAW:
+                for (int i = firstSample * channels; i < (firstSample + numSamples) * channels;
+                        i++) {
+                    dest.put(MULAW_VALUES[data.get(i) & 0xFF]);
+                }
+                break;
+            case MONO_MULAW:
+                for (int i = firstSample; i < firstSample + numSamples; i++) {
+                    short value = MULAW_VALUES[data.get(i) & 0xFF];
+                    for (int c = 0; c < channels; c++) {
+                        dest.put(value);
+                    }
+                }
+                break;
+        }
+    }
+
+    private static byte toMulaw(int value) {
+        int sign = 0;
+        if (value < 0) {
+            sign = 0x80;
+            value = -value;
+        }
+        if (value > MULAW_CLIP) {
+            value = MULAW_CLIP;
+        }
+        value += MULAW_BIAS;
+        // Position of the highest bit set, among bits 7 to 14.
+        int exponent = 31 - Integer.numberOfLeadingZeros(value) - 7;
+        int mantissa = (value >> (exponent + 3)) & 0x0F;
+        return (byte)~(sign | (exponent << 4) | mantissa);
+    }
+
+    private static ByteBuffer encodeDelta(ByteBuffer pcm, int channels, int numSamples) {
+        int numBlocks = (numSamples + BLOCK_SAMPLES - 1) / BLOCK_SAMPLES;
+        int headerSize = 4 + 4 * numBlocks;
+        if (headerSize + numBlocks * channels * 3 >= pcm.limit()) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocate(pcm.limit());
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(numSamples);
+        data.position(headerSize);
+        for (int block = 0; block < numBlocks; block++) {
+            data.putInt(4 + 4 * block, data.position());
+            int first = block * BLOCK_SAMPLES;
+            int n = Math.min(BLOCK_SAMPLES, numSamples - first);
+            for (int c = 0; c < channels; c++) {
+                int index = first * channels + c;
+                int previous = pcm.getShort(2 * index);
+                int maxZigZag = 0;
+                for (int i = 1; i < n; i++) {
+                    int value = pcm.getShort(2 * (index + i * channels));
+                    maxZigZag |= zigZag(value - previous);
+                    previous = value;
+                }
+                int bits = 32 - Integer.numberOfLeadingZeros(maxZigZag);
+                if (data.remaining() < 3 + ((n - 1) * bits + 7) / 8) {
+                    return null;  // not smaller than the PCM samples.
+                }
+                previous = pcm.getShort(2 * index);
+                data.putShort((short)previous);
+                data.put((byte)bits);
+                long bitBuffer = 0;
+                int numBits = 0;
+                for (int i = 1; i < n; i++) {
+                    int value = pcm.getShort(2 * (index + i * channels));
+                    bitBuffer |= (long)zigZag(value - previous) << numBits;
+                    numBits += bits;
+                    previous = value;
+                    while (numBits >= 8) {
+                        data.put((byte)bitBuffer);
+                        bitBuffer >>>= 8;
+                        numBits -= 8;
+                    }
+                }
+                if (numBits > 0) {
+                    data.put((byte)bitBuffer);
+                }
+            }
+        }
+        // Only keep the encoded data.
+        ByteBuffer encoded = ByteBuffer.allocate(data.position());
+        data.flip();
+        encoded.put(data);
+        return encoded;
+    }
+
+    private static void decodeDelta(ByteBuffer data, int channels, int firstSample,
+                                    int numSamples, ShortBuffer dest) {
+        short[] samples = new short[BLOCK_SAMPLES * channels];
+        int sample = firstSample;
+        int endSample = firstSample + numSamples;
+        while (sample < endSample) {
+            int block = sample / BLOCK_SAMPLES;
+            int first = block * BLOCK_SAMPLES;
+            int n = decodeDeltaBlock(data, channels, block, samples);
+            int offset = sample - first;
+            int count = Math.min(n - offset, endSample - sample);
+            dest.put(samples, offset * channels, count * channels);
+            sample += count;
+        }
+    }
+
+    // Decode the block block of data into samples, and return its number of samples per channel.
+    private static int decodeDeltaBlock(ByteBuffer data, int channels, int block,
+                                        short[] samples) {
+        int position = data.getInt(4 + 4 * block);
+        int n = Math.min(BLOCK_SAMPLES, data.getInt(0) - block * BLOCK_SAMPLES);
+        for (int c = 0; c < channels; c++) {
+            int value = data.getShort(position);
+            int bits = data.get(position + 2);
+            position += 3;
+            samples[c] = (short)value;
+            long bitBuffer = 0;
+            int numBits = 0;
+            long mask = (1L << bits) - 1;
+            for (int i = 1; i < n; i++) {
+                while (numBits < bits) {
+                    bitBuffer |= (long)(data.get(position++) & 0xFF) << numBits;
+                    numBits += 8;
+                }
+                int zigZag = (int)(bitBuffer & mask);
+                bitBuffer >>>= bits;
+                numBits -= bits;
+                value += (zigZag >>> 1) ^ -(zigZag & 1);
+                samples[i * channels + c] = (short)value;
+            }
+            // The bits left in bitBuffer are the padding of the last byte of the channel.
+        }
+        return n;
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+}
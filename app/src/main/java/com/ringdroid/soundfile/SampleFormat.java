@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import android.media.AudioFormat;
+
+/**
+ * Formats of the PCM samples held by SoundFile (little endian, interleaved channels), and
+ * conversions between them.
+ *
+ * The samples are kept in the format they are decoded (or read) in, and are only converted when
+ * they leave SoundFile: to 16 bits PCM to compute the frame gains or for the consumers which only
+ * handle 16 bits samples, and to float for playback. Float samples are between -1 and 1.
+ */
+class SampleFormat {
+    public static final int PCM_16BIT = AudioFormat.ENCODING_PCM_16BIT;
+    public static final int PCM_FLOAT = AudioFormat.ENCODING_PCM_FLOAT;
+    // AudioFormat.ENCODING_PCM_24BIT_PACKED, only defined from API 31.
+    public static final int PCM_24BIT_PACKED = 21;
+
+    // Number of bytes of a sample of one channel.
+    public static int getBytesPerValue(int encoding) {
+        switch (encoding) {
+            case PCM_24BIT_PACKED:
+                return 3;
+            case PCM_FLOAT:
+                return 4;
+            default:
+                return 2;
+        }
+    }
+
+    // Convert the values of src (in encoding, from its position to its limit) to 16 bits PCM and
+    // put them in dest. The position of src is not changed.
+    public static void convert(ByteBuffer src, int encoding, ShortBuffer dest) {
+        ByteBuffer bytes = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (encoding == PCM_16BIT) {
+            dest.put(bytes.asShortBuffer());
+            return;
+        }
+        int bytesPerValue = getBytesPerValue(encoding);
+        for (int i = bytes.position(); i < bytes.limit(); i += bytesPerValue) {
+            if (encoding == PCM_24BIT_PACKED) {
+                dest.put((short)(bytes.getShort(i + 1)));  // the 2 most significant bytes.
+            } else {
+                dest.put(toShort(bytes.getFloat(i)));
+            }
+        }
+    }
+
+    // Convert the values of src (in encoding, from its position to its limit) to float and put
+    // them in dest. The position of src is not changed.
+    public static void convert(ByteBuffer src, int encoding, FloatBuffer dest) {
+        ByteBuffer bytes = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int bytesPerValue = getBytesPerValue(encoding);
+        for (int i = bytes.position(); i < bytes.limit(); i += bytesPerValue) {
+            dest.put(getFloat(bytes, i, encoding));
+        }
+    }
+
+    // Convert the values of src (in srcEncoding, from its position to its limit) to destEncoding
+    // and put them in dest, which must be in little endian order. The position of src is not
+    // changed.
+    public static void convert(ByteBuffer src, int srcEncoding, ByteBuffer dest,
+                               int destEncoding) {
+        ByteBuffer bytes = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (srcEncoding == destEncoding) {
+            dest.put(bytes);
+            return;
+        }
+        int bytesPerValue = getBytesPerValue(srcEncoding);
+        for (int i = bytes.position(); i < bytes.limit(); i += bytesPerValue) {
+            putValue(dest, getFloat(bytes, i, srcEncoding), destEncoding);
+        }
+    }
+
+    // Convert the values of src (from its position to its limit) to encoding and put them in dest,
+    // which must be in little endian order. The position of src is not changed.
+    public static void convert(FloatBuffer src, ByteBuffer dest, int encoding) {
+        for (int i = src.position(); i < src.limit(); i++) {
+            putValue(dest, src.get(i), encoding);
+        }
+    }
+
+    // Convert the values of src (16 bits PCM, from its position to its limit) to float and put
+    // them in dest. The position of src is not changed.
+    public static void convert(ShortBuffer src, FloatBuffer dest) {
+        for (int i = src.position(); i < src.limit(); i++) {
+            dest.put(src.get(i) / 32768.0f);
+        }
+    }
+
+    private static float getFloat(ByteBuffer bytes, int index, int encoding) {
+        switch (encoding) {
+            case PCM_24BIT_PACKED:
+                int value = (bytes.get(index) & 0xFF) | ((bytes.get(index + 1) & 0xFF) << 8) |
+                        (bytes.get(index + 2) << 16);
+                return value / 8388608.0f;
+            case PCM_FLOAT:
+                return bytes.getFloat(index);
+            default:
+                return bytes.getShort(index) / 32768.0f;
+        }
+    }
+
+    private static void putValue(ByteBuffer dest, float value, int encoding) {
+        switch (encoding) {
+            case PCM_24BIT_PACKED:
+                int v = Math.max(Math.min((int)(value * 8388608), 8388607), -8388608);
+                dest.put((byte)v);
+                dest.put((byte)(v >> 8));
+                dest.put((byte)(v >> 16));
+                break;
+            case PCM_FLOAT:
+                dest.putFloat(value);
+                break;
+            default:
+                dest.putShort(toShort(value));
+                break;
+        }
+    }
+
+    private static short toShort(float value) {
+        return (short)Math.max(Math.min((int)(value * 32768), 32767), -32768);
+    }
+}
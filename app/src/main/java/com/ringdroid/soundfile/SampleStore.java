@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Append-only store of PCM samples (little endian, interleaved channels) in one of the formats of
+ * SampleFormat, made of fixed-size chunks. The samples can be read as 16 bits PCM or as float,
+ * whatever their format.
+ *
+ * Appending samples only ever allocates a new chunk once the last one is full: the samples
+ * already stored are never copied. The chunks are allocated on the Java heap, or are mappings of
+ * consecutive regions of a PCMFile. Samples can be read at random positions, from any thread,
+ * while samples are being appended by another thread.
+ * A store can also be created around an existing buffer (e.g. the mapping of a WAV file or of a
+ * cached file), whose chunks are then slices of this buffer.
+ *
+ * Chunks allocated on the heap can be encoded with one of the compact representations of
+ * SampleCodec once they are full, to keep the memory used by the store within a budget. The
+ * representation of each chunk is chosen once it is full, from the memory used so far, and is
+ * transparently decoded when samples are read. Full chunks are encoded when more samples get
+ * appended. Chunks of high resolution samples are converted to 16 bits PCM before being encoded.
+ */
+class SampleStore {
+    // Number of samples (per channel) in a chunk. This is a multiple of the number of samples per
+    // frame used by SoundFile, so that frames never straddle two chunks.
+    public static final int CHUNK_SAMPLES = 1 << 18;  // ~6sec at 44.1kHz.
+    // Representation of the chunks holding the samples in the format of the store. For 16 bits
+    // stores, this is SampleCodec.PCM16.
+    private static final int NATIVE = -1;
+
+    private int mChannels;
+    private int mEncoding;  // format of the samples, one of the SampleFormat constants.
+    private int mSampleSize;  // in bytes, all channels included.
+    private int mChunkSize;  // in bytes.
+    private PCMFile mPCMFile;  // if not null, the chunks are mappings of this file.
+    private ByteBuffer mBuffer;  // the buffer the chunks are slices of, if any.
+    // The chunks. The array is replaced (not modified) when it grows. Only the last chunk is
+    // written to.
+    private volatile Chunk[] mChunks;
+    private int mNumChunks;
+    private long mSize;  // in bytes, in the format of the store.
+    private long mMemoryBudget = Long.MAX_VALUE;  // in bytes.
+    private long mExpectedSize;  // in bytes, in the format of the store. 0 if unknown.
+    private long mMemoryUsed;  // by the encoded chunks, in bytes.
+    private int mNumEncodedChunks;  // the chunks before this one cannot change anymore.
+    private int mNumForcedChunks;  // the chunks before this one have been written by force().
+    // Samples are only read up to mNumSamples, which is updated once they have been written.
+    private volatile int mNumSamples;
+
+    // Create an empty store of 16 bits samples, whose chunks are allocated on the heap if pcmFile
+    // is null, and in pcmFile otherwise.
+    public SampleStore(int channels, PCMFile pcmFile) {
+        this(channels, SampleFormat.PCM_16BIT, pcmFile);
+    }
+
+    // Same as SampleStore(channels, pcmFile), for samples in encoding.
+    public SampleStore(int channels, int encoding, PCMFile pcmFile) {
+        mChannels = channels;
+        mEncoding = encoding;
+        mSampleSize = channels * SampleFormat.getBytesPerValue(encoding);
+        mChunkSize = CHUNK_SAMPLES * mSampleSize;
+        mPCMFile = pcmFile;
+        mChunks = new Chunk[16];
+    }
+
+    // Create a read-only store holding the 16 bits samples of buffer, from its beginning to its
+    // limit.
+    public static SampleStore wrap(ByteBuffer buffer, int channels) {
+        return wrap(buffer, channels, SampleFormat.PCM_16BIT);
+    }
+
+    // Same as wrap(buffer, channels), for samples in encoding.
+    public static SampleStore wrap(ByteBuffer buffer, int channels, int encoding) {
+        SampleStore store = new SampleStore(channels, encoding, null);
+        store.mBuffer = buffer.duplicate();
+        store.mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        store.mBuffer.rewind();
+        int size = store.mBuffer.limit();
+        store.mNumChunks = (size + store.mChunkSize - 1) / store.mChunkSize;
+        Chunk[] chunks = new Chunk[Math.max(store.mNumChunks, 1)];
+        for (int i = 0; i < store.mNumChunks; i++) {
+            ByteBuffer bytes = store.mBuffer.duplicate();
+            bytes.limit((int)Math.min((long)(i + 1) * store.mChunkSize, size));
+            bytes.position(i * store.mChunkSize);
+            bytes = bytes.slice().order(ByteOrder.LITTLE_ENDIAN);
+            bytes.position(bytes.limit());
+            chunks[i] = new Chunk(store.getNativeEncoding(), bytes);
+        }
+        store.mChunks = chunks;
+        store.mSize = size;
+        store.mNumSamples = size / store.mSampleSize;
+        return store;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getEncoding() {
+        return mEncoding;
+    }
+
+    // Keep the heap memory used by the samples within budget bytes, encoding the chunks once they
+    // are full if needed. expectedSize is the expected size of all the samples in the format of
+    // the store, or 0 if unknown (e.g. while recording), in which case the representation of each
+    // chunk only depends on the memory left.
+    public void setMemoryBudget(long budget, long expectedSize) {
+        mMemoryBudget = budget;
+        mExpectedSize = expectedSize;
+    }
+
+    // Number of samples (per channel) in the store.
+    public int getNumSamples() {
+        return mNumSamples;
+    }
+
+    // Write the samples appended so far to the PCMFile of the store to the storage device (see
+    // MappedByteBuffer.force()), so that they are not lost if the device crashes.
+    public void force() {
+        Chunk[] chunks = mChunks;
+        for (int i = mNumForcedChunks; i < mNumChunks; i++) {
+            if (chunks[i].mData instanceof MappedByteBuffer) {
+                ((MappedByteBuffer)chunks[i].mData).force();
+            }
+        }
+        // The last chunk may still be appended to.
+        mNumForcedChunks = Math.max(mNumChunks - 1, 0);
+    }
+
+    // Size of the samples in the store, in bytes, in the format of the store.
+    public long getSize() {
+        return mSize;
+    }
+
+    // Append the bytes of src, from its position to its limit, which must contain whole samples
+    // in the format of the store.
+    public void put(ByteBuffer src) throws IOException {
+        encodeFullChunks();
+        while (src.hasRemaining()) {
+            ByteBuffer chunk = getLastChunk();
+            int n = Math.min(src.remaining(), chunk.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            chunk.put(part);
+            src.position(src.position() + n);
+            mSize += n;
+        }
+        mNumSamples = (int)(mSize / mSampleSize);
+    }
+
+    // Append length values of src, starting at offset, which must contain whole samples. The
+    // store must hold 16 bits samples.
+    public void put(short[] src, int offset, int length) throws IOException {
+        encodeFullChunks();
+        while (length > 0) {
+            ByteBuffer chunk = getLastChunk();
+            int n = Math.min(length, chunk.remaining() / 2);
+            chunk.asShortBuffer().put(src, offset, n);
+            chunk.position(chunk.position() + 2 * n);
+            offset += n;
+            length -= n;
+            mSize += 2 * n;
+        }
+        mNumSamples = (int)(mSize / mSampleSize);
+    }
+
+    // Copy the numSamples samples (per channel) starting at sample startSample to dest, as 16
+    // bits PCM. Return the number of samples actually copied, which is less than numSamples past
+    // the end of the store.
+    public int read(int startSample, int numSamples, ShortBuffer dest) {
+        return read(startSample, numSamples, dest, null);
+    }
+
+    // Same as read(startSample, numSamples, dest), converting the samples to float.
+    public int read(int startSample, int numSamples, FloatBuffer dest) {
+        return read(startSample, numSamples, null, dest);
+    }
+
+    // Return all the samples of the store in a single buffer, as 16 bits PCM in little endian
+    // order. The samples are copied (and decoded) in a new buffer, unless the store was created
+    // by wrap() around 16 bits samples.
+    public ByteBuffer getBytes() {
+        ByteBuffer bytes;
+        if (mBuffer != null && mEncoding == SampleFormat.PCM_16BIT) {
+            bytes = mBuffer.duplicate();
+        } else {
+            bytes = ByteBuffer.allocate(mNumSamples * mChannels * 2);
+            bytes.order(ByteOrder.LITTLE_ENDIAN);
+            read(0, mNumSamples, bytes.asShortBuffer());
+        }
+        bytes.order(ByteOrder.LITTLE_ENDIAN);
+        return bytes;
+    }
+
+    // Copy samples to shorts (as 16 bits PCM) if it is not null, and to floats otherwise.
+    private int read(int startSample, int numSamples, ShortBuffer shorts, FloatBuffer floats) {
+        int endSample = (int)Math.min((long)startSample + numSamples, mNumSamples);
+        Chunk[] chunks = mChunks;
+        int sample = startSample;
+        while (sample < endSample) {
+            int offset = sample % CHUNK_SAMPLES;
+            int n = Math.min(endSample - sample, CHUNK_SAMPLES - offset);
+            Chunk chunk = chunks[sample / CHUNK_SAMPLES];
+            if (chunk.mEncoding == NATIVE || chunk.mEncoding == SampleCodec.PCM16) {
+                int sampleSize = chunk.mEncoding == NATIVE ? mSampleSize : mChannels * 2;
+                int encoding = chunk.mEncoding == NATIVE ? mEncoding : SampleFormat.PCM_16BIT;
+                ByteBuffer bytes = chunk.mData.duplicate();
+                bytes.order(ByteOrder.LITTLE_ENDIAN);
+                bytes.limit((offset + n) * sampleSize);
+                bytes.position(offset * sampleSize);
+                if (shorts != null) {
+                    SampleFormat.convert(bytes, encoding, shorts);
+                } else {
+                    SampleFormat.convert(bytes, encoding, floats);
+                }
+            } else if (shorts != null) {
+                SampleCodec.decode(chunk.mEncoding, chunk.mData, mChannels, offset, n, shorts);
+            } else {
+                ShortBuffer values = ShortBuffer.allocate(n * mChannels);
+                SampleCodec.decode(chunk.mEncoding, chunk.mData, mChannels, offset, n, values);
+                values.flip();
+                SampleFormat.convert(values, floats);
+            }
+            sample += n;
+        }
+        return Math.max(endSample - startSample, 0);
+    }
+
+    // Representation of the chunks holding samples in the format of the store.
+    private int getNativeEncoding() {
+        return mEncoding == SampleFormat.PCM_16BIT ? SampleCodec.PCM16 : NATIVE;
+    }
+
+    // Return the last chunk, allocating a new one if it is full.
+    private ByteBuffer getLastChunk() throws IOException {
+        if (mBuffer != null) {
+            throw new IOException("Cannot append samples to a wrapped buffer");
+        }
+        // The last chunk can only be written to if it has not been encoded.
+        if (mNumChunks > mNumEncodedChunks && mChunks[mNumChunks - 1].mData.hasRemaining()) {
+            return mChunks[mNumChunks - 1].mData;
+        }
+        ByteBuffer bytes;
+        if (mPCMFile != null) {
+            bytes = mPCMFile.map((long)mNumChunks * mChunkSize, mChunkSize);
+        } else {
+            bytes = ByteBuffer.allocate(mChunkSize);
+        }
+        bytes.order(ByteOrder.LITTLE_ENDIAN);
+        Chunk[] chunks = mChunks;
+        if (mNumChunks == chunks.length) {
+            // Only the references to the chunks are copied.
+            chunks = Arrays.copyOf(chunks, 2 * mNumChunks);
+        }
+        chunks[mNumChunks++] = new Chunk(getNativeEncoding(), bytes);
+        mChunks = chunks;
+        return bytes;
+    }
+
+    // Encode the full chunks allocated on the heap, which have not been encoded yet.
+    private void encodeFullChunks() {
+        if (mPCMFile != null || mBuffer != null) {
+            return;
+        }
+        Chunk[] chunks = mChunks;
+        while (mNumEncodedChunks < mNumChunks && !chunks[mNumEncodedChunks].mData.hasRemaining()) {
+            chunks[mNumEncodedChunks] =
+                    encode(chunks[mNumEncodedChunks], (long)mNumEncodedChunks * mChunkSize);
+            mNumEncodedChunks++;
+        }
+    }
+
+    // Return chunk, which is full and starts at byte offset, encoded with the least compact
+    // representation that should keep the memory used within the budget.
+    private Chunk encode(Chunk chunk, long offset) {
+        long remainingSize = Math.max(mExpectedSize - offset, mChunkSize);
+        float ratio = (float)(mMemoryBudget - mMemoryUsed) / remainingSize;
+        if (chunk.mEncoding == NATIVE && ratio >= 1) {
+            return keep(chunk);
+        }
+        // The ratios of SampleCodec are relative to 16 bits samples.
+        float pcm16Ratio = 2.0f * mChannels / mSampleSize;
+        int[] encodings = {SampleCodec.PCM16, SampleCodec.DELTA, SampleCodec.MULAW};
+        int encoding = SampleCodec.MONO_MULAW;
+        for (int e : encodings) {
+            if (ratio >= SampleCodec.getRatio(e, mChannels) * pcm16Ratio) {
+                encoding = e;
+                break;
+            }
+        }
+        ByteBuffer pcm = chunk.mData.duplicate();
+        pcm.order(ByteOrder.LITTLE_ENDIAN);
+        pcm.flip();
+        if (chunk.mEncoding == NATIVE) {
+            // High resolution samples: convert them to 16 bits PCM first.
+            ByteBuffer pcm16 = ByteBuffer.allocate(CHUNK_SAMPLES * mChannels * 2);
+            pcm16.order(ByteOrder.LITTLE_ENDIAN);
+            SampleFormat.convert(pcm, mEncoding, pcm16, SampleFormat.PCM_16BIT);
+            pcm16.flip();
+            pcm = pcm16;
+            chunk = new Chunk(SampleCodec.PCM16, pcm16);
+        }
+        ByteBuffer data = null;
+        if (encoding != SampleCodec.PCM16) {
+            data = SampleCodec.encode(encoding, pcm, mChannels);
+        }
+        if (data != null) {
+            chunk = new Chunk(encoding, data);
+        }
+        return keep(chunk);
+    }
+
+    // Account for the memory used by chunk, which will not change anymore, and return it.
+    private Chunk keep(Chunk chunk) {
+        mMemoryUsed += chunk.mData.capacity();
+        return chunk;
+    }
+
+    // A chunk of samples, and the representation they are stored with.
+    private static class Chunk {
+        private final int mEncoding;  // one of the SampleCodec constants.
+        private final ByteBuffer mData;
+
+        public Chunk(int encoding, ByteBuffer data) {
+            mEncoding = encoding;
+            mData = data;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Decodes a file in several time segments in parallel, each segment being decoded by its own
+ * thread and decoder instance, directly into a PCMFile.
+ *
+ * Each segment is decoded by a RangeDecoder, which seeks the extractor a bit before the beginning
+ * of the segment and drops the samples decoded before it. The samples of each segment are
+ * written at their final position in the file, so that the segments do not need to be stitched
+ * together afterward. The segments are aligned on frames, and the gains of their frames are
+ * computed as they get decoded.
+ * The duration of the file is only an estimate: the last segment is decoded until the end of the
+ * stream, growing the mapping if needed, and the file ends in the first segment which reaches the
+ * end of the stream.
+ */
+class SegmentedDecoder {
+    private static final int MAX_SEGMENTS = 8;
+    private static final int MIN_SEGMENT_DURATION = 20;  // in seconds.
+    // Number of decoder instances assumed to be available when the platform cannot tell.
+    private static final int DEFAULT_MAX_CODEC_INSTANCES = 2;
+    private static final int CHUNK_FRAMES = 16;  // number of frames decoded at a time.
+
+    private File mInputFile;
+    private int mSampleRate;
+    private int mChannels;
+    private int mSamplesPerFrame;
+    private PCMFile mPCMFile;
+    private Segment[] mSegments;
+    private volatile boolean mCancelled;
+
+    // Return the number of segments in which a stream of format format, containing numSamples
+    // samples (per channel), should be decoded: one per core, as long as the platform supports
+    // that many instances of the decoder and each segment lasts at least MIN_SEGMENT_DURATION
+    // seconds. A return value of 1 means that the stream should not be decoded in segments.
+    public static int getNumSegments(MediaFormat format, int numSamples, int sampleRate) {
+        int numSegments = Runtime.getRuntime().availableProcessors();
+        // Keep one decoder instance to read samples on demand (e.g. for playback) while decoding.
+        numSegments = Math.min(numSegments, getMaxCodecInstances(format) - 1);
+        numSegments = Math.min(numSegments, MAX_SEGMENTS);
+        numSegments = Math.min(numSegments, numSamples / (MIN_SEGMENT_DURATION * sampleRate));
+        return Math.max(numSegments, 1);
+    }
+
+    // Return the maximum number of instances of the decoder for format that can run concurrently.
+    private static int getMaxCodecInstances(MediaFormat format) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return DEFAULT_MAX_CODEC_INSTANCES;
+        }
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        String name = codecList.findDecoderForFormat(format);
+        if (name == null) {
+            return 1;
+        }
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            if (info.getName().equals(name)) {
+                try {
+                    return info.getCapabilitiesForType(mimeType).getMaxSupportedInstances();
+                } catch (IllegalArgumentException e) {
+                    break;
+                }
+            }
+        }
+        return 1;
+    }
+
+    public SegmentedDecoder(File inputFile, int sampleRate, int channels, int samplesPerFrame,
+                            PCMFile pcmFile) {
+        mInputFile = inputFile;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mSamplesPerFrame = samplesPerFrame;
+        mPCMFile = pcmFile;
+    }
+
+    // Map pcmFile for the expected number of samples (plus 5%) and start decoding numSegments
+    // segments of about expectedNumSamples / numSegments samples each. Return the mapping, which
+    // holds the samples as they get decoded (the last segment may however grow past it).
+    public ByteBuffer start(int expectedNumSamples, int numSegments) throws IOException {
+        long expectedSize = (long)expectedNumSamples * mChannels * 2;
+        expectedSize += expectedSize / 20;
+        ByteBuffer mapping = mPCMFile.map((int)Math.min(expectedSize, Integer.MAX_VALUE));
+        int numFrames = (expectedNumSamples + mSamplesPerFrame - 1) / mSamplesPerFrame;
+        int segmentLength = (numFrames + numSegments - 1) / numSegments * mSamplesPerFrame;
+        mSegments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            int start = i * segmentLength;
+            int end = (i < numSegments - 1) ? start + segmentLength : Integer.MAX_VALUE;
+            mSegments[i] = new Segment(mapping, start, end);
+        }
+        for (Segment segment : mSegments) {
+            segment.start();
+        }
+        return mapping;
+    }
+
+    // Wait for at most timeoutMs milliseconds for all the segments to be decoded. Return true if
+    // they are.
+    public boolean waitFor(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            for (Segment segment : mSegments) {
+                long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) {
+                    break;
+                }
+                segment.join(timeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Segment segment : mSegments) {
+            if (segment.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Stop decoding and wait for all the segment threads to finish.
+    public void cancel() {
+        mCancelled = true;
+        while (!waitFor(100)) {
+        }
+    }
+
+    // Carry on decoding the segments stopped by cancel(), from where they stopped. The samples
+    // and frame gains decoded before are kept.
+    public void resume() {
+        mCancelled = false;
+        for (int i = 0; i < mSegments.length; i++) {
+            if (mSegments[i].wasCancelled()) {
+                mSegments[i] = new Segment(mSegments[i]);
+                mSegments[i].start();
+            }
+        }
+    }
+
+    // Return the first error encountered while decoding a segment, if any. Should be called once
+    // waitFor() returned true.
+    public IOException getError() {
+        for (Segment segment : mSegments) {
+            if (segment.mError != null) {
+                return segment.mError;
+            }
+        }
+        return null;
+    }
+
+    // Return true if the decoded stream had to be truncated as it did not fit in a ByteBuffer.
+    public boolean isTruncated() {
+        for (Segment segment : mSegments) {
+            if (segment.mTruncated) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Total number of samples (per channel) decoded so far, in all segments.
+    public int getNumDecodedSamples() {
+        int numSamples = 0;
+        for (Segment segment : mSegments) {
+            numSamples += segment.mNumSamples;
+        }
+        return numSamples;
+    }
+
+    // Number of samples (per channel) decoded from the beginning of the file, without any gap.
+    // This is the number of samples in the file once all the segments have been decoded.
+    public int getNumSamples() {
+        for (Segment segment : mSegments) {
+            if (!segment.isComplete()) {
+                return segment.mStart + segment.mNumSamples;
+            }
+        }
+        return 0;  // not reached, the last segment is never complete.
+    }
+
+    // Number of frames whose gains are known, from the beginning of the file without any gap.
+    public int getNumFrames() {
+        for (Segment segment : mSegments) {
+            if (!segment.isComplete()) {
+                return segment.mStart / mSamplesPerFrame + segment.mNumFrames;
+            }
+        }
+        return 0;  // not reached, the last segment is never complete.
+    }
+
+    // Copy the gains, the RMS levels and the block peaks of frames firstFrame to lastFrame
+    // (excluded) into frameGains, frameRms and blockPeaks. lastFrame must not be greater than
+    // getNumFrames().
+    public void getFrameGains(int[] frameGains, byte[] frameRms, short[] blockPeaks,
+                              int firstFrame, int lastFrame) {
+        int frameSize = SampleAnalyzer.getBlocksPerFrame(mSamplesPerFrame) * 2;
+        for (Segment segment : mSegments) {
+            int segmentFirstFrame = segment.mStart / mSamplesPerFrame;
+            int segmentLastFrame = segmentFirstFrame + segment.mNumFrames;  // read before gains.
+            int[] gains = segment.mFrameGains;
+            int[] rms = segment.mFrameRms;
+            short[] peaks = segment.mBlockPeaks;
+            int first = Math.max(firstFrame, segmentFirstFrame);
+            int last = Math.min(lastFrame, segmentLastFrame);
+            if (first < last) {
+                System.arraycopy(gains, first - segmentFirstFrame, frameGains, first,
+                        last - first);
+                for (int i = first; i < last; i++) {
+                    frameRms[i] = SampleAnalyzer.getLevel(rms[i - segmentFirstFrame]);
+                }
+                System.arraycopy(peaks, (first - segmentFirstFrame) * frameSize, blockPeaks,
+                        first * frameSize, (last - first) * frameSize);
+            }
+        }
+    }
+
+    // Thread decoding the samples mStart to mEnd (excluded) into its own part of the PCMFile.
+    private class Segment extends Thread {
+        private final int mStart;
+        private final int mEnd;
+        private RangeDecoder mDecoder;
+        // Mapping starting at the first sample of the segment.
+        private ByteBuffer mBytes;
+        private ShortBuffer mSamples;
+        private SampleAnalyzer.FrameStats mStats;
+        // mFrameGains, mFrameRms and mBlockPeaks (the arrays of mStats) are always updated before
+        // mNumFrames, and all of them are read from other threads.
+        private volatile int[] mFrameGains;
+        private volatile int[] mFrameRms;
+        private volatile short[] mBlockPeaks;
+        private volatile int mNumFrames;
+        private volatile int mNumSamples;
+        // True if the end of the stream was reached before the end of the segment.
+        private volatile boolean mReachedEnd;
+        private volatile boolean mTruncated;
+        private volatile IOException mError;
+
+        public Segment(ByteBuffer mapping, int start, int end) {
+            mStart = start;
+            mEnd = end;
+            mDecoder = new RangeDecoder(mInputFile, mSampleRate, mChannels);
+            int firstByte = (int)Math.min((long)mStart * mChannels * 2, mapping.capacity());
+            ByteBuffer bytes = mapping.duplicate();
+            bytes.position(firstByte);
+            setBytes(bytes.slice());
+            int numFrames = (int)Math.min(
+                    (long)mEnd - mStart, mapping.capacity() / (mChannels * 2)) / mSamplesPerFrame;
+            mStats = new SampleAnalyzer.FrameStats(numFrames + 1, mSamplesPerFrame);
+            mFrameGains = mStats.mGains;
+            mFrameRms = mStats.mRms;
+            mBlockPeaks = mStats.mBlockPeaks;
+        }
+
+        // Create a segment carrying on with the decoding of segment, which was cancelled.
+        public Segment(Segment segment) {
+            mStart = segment.mStart;
+            mEnd = segment.mEnd;
+            mDecoder = new RangeDecoder(mInputFile, mSampleRate, mChannels);
+            mBytes = segment.mBytes;
+            mSamples = segment.mSamples;
+            mStats = segment.mStats;
+            mFrameGains = segment.mFrameGains;
+            mFrameRms = segment.mFrameRms;
+            mBlockPeaks = segment.mBlockPeaks;
+            mNumFrames = segment.mNumFrames;
+            mNumSamples = segment.mNumSamples;
+            mTruncated = segment.mTruncated;
+        }
+
+        // Return true once all the samples of the segment have been decoded (which is never the
+        // case of the segment which reached the end of the stream).
+        public boolean isComplete() {
+            return !isAlive() && mError == null && !mReachedEnd && mStart + mNumSamples >= mEnd;
+        }
+
+        // Return true if the segment was stopped by cancel() before being completely decoded.
+        public boolean wasCancelled() {
+            return !isAlive() && mError == null && !mReachedEnd && mStart + mNumSamples < mEnd;
+        }
+
+        @Override
+        public void run() {
+            try {
+                decode();
+            } catch (IOException e) {
+                mError = e;
+            } catch (RuntimeException e) {
+                // MediaCodec reports its failures (e.g. running out of instances) this way.
+                mError = new IOException(e.toString());
+            } finally {
+                mDecoder.release();
+            }
+        }
+
+        private void decode() throws IOException {
+            int chunkSize = CHUNK_FRAMES * mSamplesPerFrame;
+            while (!mCancelled && mStart + mNumSamples < mEnd) {
+                int numSamples = (int)Math.min(chunkSize, (long)mEnd - mStart - mNumSamples);
+                if (mSamples.remaining() < numSamples * mChannels && !grow(numSamples)) {
+                    numSamples = mSamples.remaining() / mChannels;
+                    mTruncated = true;
+                    if (numSamples == 0) {
+                        mReachedEnd = true;
+                        break;
+                    }
+                }
+                int numRead = mDecoder.read(mStart + mNumSamples, numSamples, mSamples);
+                mNumSamples += numRead;
+                if (numRead < numSamples) {
+                    mReachedEnd = true;
+                }
+                computeFrameGains(mReachedEnd);
+                if (mReachedEnd) {
+                    break;
+                }
+            }
+        }
+
+        // Grow the mapping of the segment so that it can hold numSamples more samples. Return
+        // false if this is not possible.
+        private boolean grow(int numSamples) throws IOException {
+            long firstByte = (long)mStart * mChannels * 2;
+            int position = mBytes.position();
+            int size = position + numSamples * mChannels * 2;
+            long newSize = Math.max((long)size + 5 * (1<<20), (long)mBytes.capacity() * 6 / 5);
+            newSize = Math.min(newSize, Integer.MAX_VALUE - firstByte);
+            if (newSize < size) {
+                Log.w("Ringdroid", "Decoded stream too large, truncating it.");
+                return false;
+            }
+            ByteBuffer bytes;
+            synchronized (mPCMFile) {
+                bytes = mPCMFile.map((int)(firstByte + newSize));
+            }
+            // The samples decoded so far stay in the file.
+            bytes.position((int)firstByte);
+            setBytes(bytes.slice());
+            mBytes.position(position);
+            mSamples.position(position / 2);
+            return true;
+        }
+
+        private void setBytes(ByteBuffer bytes) {
+            mBytes = bytes;
+            mBytes.order(ByteOrder.LITTLE_ENDIAN);
+            mSamples = mBytes.asShortBuffer();
+        }
+
+        // Compute the gains of the frames decoded since the last call. The last frame is only
+        // included if it is complete, unless includePartialFrame is true.
+        private void computeFrameGains(boolean includePartialFrame) {
+            int numFrames = mNumSamples / mSamplesPerFrame;
+            if (includePartialFrame && mNumSamples % mSamplesPerFrame != 0) {
+                numFrames++;
+            }
+            if (numFrames <= mNumFrames) {
+                return;
+            }
+            mStats.ensureCapacity(numFrames);
+            int frameSize = mSamplesPerFrame * mChannels;
+            int numCompleteFrames = mNumSamples / mSamplesPerFrame;
+            ShortBuffer samples = mSamples.duplicate();
+            samples.position(mNumFrames * frameSize);
+            SampleAnalyzer.analyze(samples, mChannels, mSamplesPerFrame,
+                    numCompleteFrames - mNumFrames, mStats, mNumFrames);
+            if (numFrames > numCompleteFrames) {
+                short[] frame = new short[frameSize];
+                int numSamples = mNumSamples - numCompleteFrames * mSamplesPerFrame;
+                samples.position(numCompleteFrames * frameSize);
+                samples.get(frame, 0, numSamples * mChannels);
+                SampleAnalyzer.analyzeFrame(
+                        frame, 0, numSamples, mChannels, mStats, numCompleteFrames);
+            }
+            mFrameGains = mStats.mGains;
+            mFrameRms = mStats.mRms;
+            mBlockPeaks = mStats.mBlockPeaks;
+            mNumFrames = numFrames;
+        }
+    }
+}
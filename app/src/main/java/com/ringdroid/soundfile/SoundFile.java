@@ -25,11 +25,11 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 import java.util.Arrays;
 
 import android.media.AudioFormat;
-import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
@@ -39,7 +39,23 @@ import android.os.Environment;
 import android.util.Log;
 
 public class SoundFile {
+    // App-private directory used to store data on disk. If null, everything is kept in memory.
+    private static File sCacheDir = null;
+    // Cache of decoded samples, stored in sCacheDir.
+    private static PCMCache sPCMCache = null;
+    // Peak summaries of the files decoded so far, stored in sCacheDir.
+    private static PeakCache sPeakCache = null;
+    // App-private directory the recordings are written to. If null, they are kept like decoded
+    // samples.
+    private static File sRecordingDir = null;
+    // True if the recordings are also encoded to AAC as they get recorded.
+    private static boolean sEncodeWhileRecording = false;
+    private static final long PCM_CACHE_MAX_SIZE = 256 * (1<<20);  // 256MB
+    // Heap memory available to the app, in MB, or 0 if unknown.
+    private static int sMemoryClass = 0;
+
     private ProgressListener mProgressListener = null;
+    private DecodeListener mDecodeListener = null;
     private File mInputFile = null;
 
     // Member variables representing frame data
@@ -49,18 +65,52 @@ public class SoundFile {
     private int mSampleRate;
     private int mChannels;
     private int mNumSamples;  // total number of samples per channel in audio file
-    private ByteBuffer mDecodedBytes;  // Raw audio data
-    private ShortBuffer mDecodedSamples;  // shared buffer with mDecodedBytes.
-    // mDecodedSamples has the following format:
+    private SampleStore mSamples;  // Raw audio data
+    // Format of the samples held by mSamples, one of the SampleFormat constants.
+    private int mEncoding = SampleFormat.PCM_16BIT;
+    // Number of samples per channel, starting from the first one, that can be read from mSamples.
+    // Updated as the file gets decoded. Samples are not kept when the file is decoded without a
+    // cache directory: they are then decoded again on demand by mRangeDecoder.
+    private volatile int mNumAvailableSamples;
+    private boolean mHasAllSamples;  // true once mSamples holds all the samples of the file.
+    private RangeDecoder mRangeDecoder;
+    // mSamples has the following format:
     // {s1c1, s1c2, ..., s1cM, s2c1, ..., s2cM, ..., sNc1, ..., sNcM}
     // where sicj is the ith sample of the jth channel (a sample is a signed short)
     // M is the number of channels (e.g. 2 for stereo) and N is the number of samples per channel.
 
     // Member variables for hack (making it work with old version, until app just uses the samples).
-    private int mNumFrames;
-    private int[] mFrameGains;
+    // mNumFrames and mFrameGains are volatile as they can be read from another thread while the
+    // file is being decoded in streaming mode. mFrameGains is always updated before mNumFrames.
+    private volatile int mNumFrames;
+    private volatile int[] mFrameGains;
+    // RMS level of each frame, on the same scale as the frame gains (0 if not known yet). It has
+    // the same length as mFrameGains, and is always updated before it.
+    private volatile byte[] mFrameRms;
+    // Minimum and maximum of each block of each frame (see getBlockPeaks()), 0 if not known yet.
+    // It holds as many frames as mFrameGains, and is always updated before mFrameRms.
+    private volatile short[] mBlockPeaks;
+    private int mExpectedNumFrames;
+    private int mNumDecodedFrames;  // number of frame gains computed from the decoded samples.
+    // Computes the frame gains from the samples as they get decoded or recorded.
+    private FrameGainAccumulator mFrameGainAccumulator;
+    // True while some of the published frame gains are approximations computed without decoding.
+    private volatile boolean mHasApproximateFrameGains;
+    // Number of published frame gains which are not approximations, while there are some.
+    private volatile int mNumExactFrames;
     private int[] mFrameLens;
     private int[] mFrameOffsets;
+    // True if decoding was stopped before the end of the file (see isPartial()).
+    private boolean mIsPartial;
+    // The decoding which was stopped, if it can be resumed. Guarded by this.
+    private Decoding mStoppedDecoding;
+    private RecordingFile mRecordingFile;  // file holding the recorded samples, if any.
+    private File mEncodedRecording;  // .m4a file holding the whole recording, if any.
+    private int mNumEncodedRecordingSamples;  // number of samples mEncodedRecording decodes to.
+    private int mNumRecordingOverruns;
+    private long mNumDroppedSamples;
+    private volatile float mRecordingPeak;
+    private volatile float mRecordingRms;
 
     // Progress listener interface.
     public interface ProgressListener {
@@ -72,6 +122,22 @@ public class SoundFile {
         boolean reportProgress(double fractionComplete);
     }
 
+    // Decode listener interface, used to decode a file in streaming mode.
+    public interface DecodeListener {
+        /**
+         * Will be called by the SoundFile class once the format of the file is known, before
+         * any sample has been decoded. From that point, the first getNumFrames() frame gains
+         * of the SoundFile object can be used while the rest of the file is being decoded.
+         */
+        void onDecodeStarted(SoundFile soundFile);
+
+        /**
+         * Will be called by the SoundFile class each time new frames have been decoded.
+         * Called from the decoding thread.
+         */
+        void onFramesDecoded(SoundFile soundFile);
+    }
+
     // Custom exception for invalid inputs.
     public class InvalidInputException extends Exception {
         // Serial version ID generated by Eclipse.
@@ -86,6 +152,77 @@ public class SoundFile {
         return new String[] {"mp3", "wav", "3gpp", "3gp", "amr", "aac", "m4a", "ogg"};
     }
 
+    // Set the app-private directory (e.g. Context.getCacheDir()) in which the decoded samples are
+    // spilled to disk, instead of being kept on the Java heap. Should be called before any
+    // SoundFile object is created.
+    public static void setCacheDir(File cacheDir) {
+        sCacheDir = cacheDir;
+        sPCMCache = null;
+        sPeakCache = null;
+        if (sCacheDir != null) {
+            // Remove the scratch files left behind by a previous instance of the app, if any.
+            PCMFile.deleteScratchFiles(getScratchDir());
+            sPCMCache = new PCMCache(new File(sCacheDir, "decoded"), PCM_CACHE_MAX_SIZE);
+            sPeakCache = new PeakCache(new File(sCacheDir, "peaks"));
+        }
+    }
+
+    // Set the app-private directory (e.g. in Context.getFilesDir()) to which the samples are
+    // written as they get recorded, so that recordings are only limited by the storage space and
+    // survive a crash of the app. The file of a recording is deleted by release().
+    public static void setRecordingDir(File recordingDir) {
+        sRecordingDir = recordingDir;
+    }
+
+    // Encode the recordings to AAC while recording them (which needs a recording directory), so
+    // that saving a whole recording with WriteFile() does not have to encode it.
+    public static void setEncodeWhileRecording(boolean encodeWhileRecording) {
+        sEncodeWhileRecording = encodeWhileRecording;
+    }
+
+    // Return the WAV file of a recording which was interrupted (e.g. by a crash) before its
+    // SoundFile object got released, holding the samples recorded until then, or null if there is
+    // none. The file can be opened with create(), and should be deleted once it is not needed.
+    public static File getInterruptedRecording() {
+        if (sRecordingDir == null) {
+            return null;
+        }
+        return RecordingFile.findInterrupted(sRecordingDir);
+    }
+
+    // Set the heap memory available to the app (ActivityManager.getMemoryClass()), in MB. When
+    // the samples have to be kept on the heap, they then get stored in a more compact form
+    // (lossless at first, then 8 bits mu-law, then a mono downmix) if they would not fit in a
+    // quarter of this memory.
+    public static void setMemoryClass(int memoryClass) {
+        sMemoryClass = memoryClass;
+    }
+
+    // Return the heap memory the samples can use, in bytes, or 0 if unknown.
+    private static long getMemoryBudget() {
+        return (long)sMemoryClass * (1<<20) / 4;
+    }
+
+    private static File getScratchDir() {
+        return new File(sCacheDir, "scratch");
+    }
+
+    // Create the scratch file used to store the decoded samples on disk. Return null if no cache
+    // directory has been set or if the file cannot be created, in which case the samples should
+    // be kept in memory.
+    private static PCMFile createPCMFile() {
+        if (sCacheDir == null) {
+            return null;
+        }
+        try {
+            return new PCMFile(getScratchDir());
+        } catch (IOException e) {
+            Log.w("Ringdroid", "Failed to create scratch file, keeping samples in memory.");
+            Log.w("Ringdroid", e.toString());
+            return null;
+        }
+    }
+
     public static boolean isFilenameSupported(String filename) {
         String[] extensions = getSupportedExtensions();
         for (int i=0; i<extensions.length; i++) {
@@ -101,6 +238,19 @@ public class SoundFile {
                                    ProgressListener progressListener)
         throws java.io.FileNotFoundException,
                java.io.IOException, InvalidInputException {
+        return create(fileName, progressListener, null);
+    }
+
+    // Create and return a SoundFile object using the file fileName, decoding it in streaming mode.
+    // The object is handed to decodeListener (if not null) as soon as decoding starts, and the
+    // frame gains are published as they get decoded. Samples can only be accessed once this
+    // method returns. If progressListener stops decoding, the returned object holds the part of
+    // the file decoded so far (see isPartial() and resume()).
+    public static SoundFile create(String fileName,
+                                   ProgressListener progressListener,
+                                   DecodeListener decodeListener)
+        throws java.io.FileNotFoundException,
+               java.io.IOException, InvalidInputException {
         // First check that the file exists and that its extension is supported.
         File f = new File(fileName);
         if (!f.exists()) {
@@ -111,24 +261,73 @@ public class SoundFile {
         if (components.length < 2) {
             return null;
         }
-        if (!Arrays.asList(getSupportedExtensions()).contains(components[components.length - 1])) {
+        String extension = components[components.length - 1];
+        if (!Arrays.asList(getSupportedExtensions()).contains(extension)) {
             return null;
         }
         SoundFile soundFile = new SoundFile();
         soundFile.setProgressListener(progressListener);
-        soundFile.ReadFile(f);
+        soundFile.mDecodeListener = decodeListener;
+        // WAV files are read directly, without decoding them nor caching their samples.
+        if (extension.equals("wav") && soundFile.ReadWAVFile(f)) {
+            return soundFile;
+        }
+        if (!soundFile.ReadCachedFile(f)) {
+            soundFile.ReadFile(f);
+        }
         return soundFile;
     }
 
-    // Create and return a SoundFile object by recording a mono audio stream.
+    // Number of times the audio input buffer most likely overflowed while recording, in which
+    // case some samples were lost before they could be captured (see AudioCapture).
+    public int getNumRecordingOverruns() {
+        return mNumRecordingOverruns;
+    }
+
+    // Number of samples (per channel) captured while recording but dropped, because storing the
+    // samples fell behind the capture by several seconds.
+    public long getNumDroppedSamples() {
+        return mNumDroppedSamples;
+    }
+
+    // Peak level of the last samples recorded, between 0 and 1 (full scale), to be shown by a
+    // level meter. Can be called from any thread while recording.
+    public float getRecordingPeak() {
+        return mRecordingPeak;
+    }
+
+    // RMS level of the last samples recorded, between 0 and 1 (full scale).
+    public float getRecordingRms() {
+        return mRecordingRms;
+    }
+
+    // Create and return a SoundFile object by recording a mono audio stream at 44.1kHz.
     public static SoundFile record(ProgressListener progressListener) {
+        return record(progressListener, null);
+    }
+
+    // Same as record(progressListener), letting decodeListener (if not null) know about the frame
+    // gains as the audio gets recorded, so that the waveform can be drawn while recording.
+    public static SoundFile record(ProgressListener progressListener,
+                                   DecodeListener decodeListener) {
+        return record(progressListener, decodeListener, 44100, 1,
+                MediaRecorder.AudioSource.DEFAULT);
+    }
+
+    // Same as record(progressListener, decodeListener), recording channels channels (1 or 2) at
+    // sampleRate Hz from audioSource (one of the MediaRecorder.AudioSource constants). Throw an
+    // IllegalArgumentException if the device does not support this format or source.
+    public static SoundFile record(ProgressListener progressListener,
+                                   DecodeListener decodeListener,
+                                   int sampleRate, int channels, int audioSource) {
         if (progressListener ==  null) {
             // must have a progessListener to stop the recording.
             return null;
         }
         SoundFile soundFile = new SoundFile();
         soundFile.setProgressListener(progressListener);
-        soundFile.RecordAudio();
+        soundFile.mDecodeListener = decodeListener;
+        soundFile.RecordAudio(sampleRate, channels, audioSource);
         return soundFile;
     }
 
@@ -152,15 +351,36 @@ public class SoundFile {
         return mChannels;
     }
 
+    // Format in which the samples are held (e.g. AudioFormat.ENCODING_PCM_FLOAT for high
+    // resolution files). Whatever it is, they can be read as 16 bits PCM or as float.
+    public int getEncoding() {
+        return mEncoding;
+    }
+
     public int getNumSamples() {
         return mNumSamples;  // Number of samples per channel.
     }
 
     // Should be removed when the app will use directly the samples instead of the frames.
+    // The arrays returned by getFrameGains(), getFrameRms() and getBlockPeaks() are published
+    // before this number of frames, but can be replaced by shorter ones once decoding finishes:
+    // read it first, and do not use more frames than the arrays hold.
     public int getNumFrames() {
         return mNumFrames;
     }
 
+    // Number of frames the file is expected to contain once fully decoded. Same as getNumFrames()
+    // once the file has been decoded.
+    public int getExpectedNumFrames() {
+        return mExpectedNumFrames;
+    }
+
+    // Number of first frames whose gains are not approximations. The gains of the next ones, up
+    // to getNumFrames(), get replaced as the file is decoded.
+    public int getNumExactFrames() {
+        return mHasApproximateFrameGains ? mNumExactFrames : mNumFrames;
+    }
+
     // Should be removed when the app will use directly the samples instead of the frames.
     public int getSamplesPerFrame() {
         return 1024;  // just a fixed value here...
@@ -171,21 +391,150 @@ public class SoundFile {
         return mFrameGains;
     }
 
+    // RMS levels of the frames, on the same scale as getFrameGains() (0 for the frames whose
+    // samples have not been decoded yet).
+    public byte[] getFrameRms() {
+        return mFrameRms;
+    }
+
+    // Minimum and maximum (interleaved) of the average of the channels over each block of
+    // getSamplesPerBlock() samples of the frames, getBlocksPerFrame() blocks per frame. Only the
+    // blocks of the first getNumExactFrames() frames are known, the others are 0.
+    public short[] getBlockPeaks() {
+        return mBlockPeaks;
+    }
+
+    public int getSamplesPerBlock() {
+        return SampleAnalyzer.SAMPLES_PER_BLOCK;
+    }
+
+    public int getBlocksPerFrame() {
+        return SampleAnalyzer.getBlocksPerFrame(getSamplesPerFrame());
+    }
+
+    // Return all the samples in a single buffer, as 16 bits PCM. Unless they already are in a
+    // single buffer (e.g. when they are mapped from a file) in this format, the samples get copied:
+    // prefer readSamples().
     public ShortBuffer getSamples() {
-        if (mDecodedSamples != null) {
+        if (mHasAllSamples) {
+            ShortBuffer samples = mSamples.getBytes().asShortBuffer();
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N &&
                 Build.VERSION.SDK_INT <= Build.VERSION_CODES.N_MR1) {
                 // Hack for Nougat where asReadOnlyBuffer fails to respect byte ordering.
                 // See https://code.google.com/p/android/issues/detail?id=223824
-                return mDecodedSamples;
+                return samples;
             } else {
-                return mDecodedSamples.asReadOnlyBuffer();
+                return samples.asReadOnlyBuffer();
             }
         } else {
             return null;
         }
     }
 
+    // Copy the numSamples samples (per channel) starting at sample startSample to dest, in the
+    // same format as getSamples(). Samples which have already been decoded are copied directly,
+    // the other ones are decoded on demand, seeking to the requested range so that only this range
+    // gets decoded. Can be called while the file is being decoded in streaming mode.
+    // Return the number of samples (per channel) actually copied, which is less than numSamples
+    // past the end of the file.
+    public int readSamples(int startSample, int numSamples, ShortBuffer dest)
+            throws java.io.IOException {
+        int numAvailableSamples = mNumAvailableSamples;  // read before mSamples.
+        int numRead = 0;
+        if (startSample < numAvailableSamples) {
+            numRead = mSamples.read(
+                    startSample, Math.min(numSamples, numAvailableSamples - startSample), dest);
+        }
+        if (numRead == numSamples || mInputFile == null || mHasAllSamples) {
+            return numRead;  // nothing else to decode.
+        }
+        synchronized (this) {
+            if (mRangeDecoder == null) {
+                mRangeDecoder = new RangeDecoder(mInputFile, mSampleRate, mChannels);
+            }
+        }
+        return numRead + mRangeDecoder.read(startSample + numRead, numSamples - numRead, dest);
+    }
+
+    // Same as readSamples(startSample, numSamples, dest), copying the samples as float (between
+    // -1 and 1), without losing the resolution of high resolution files.
+    public int readSamples(int startSample, int numSamples, FloatBuffer dest)
+            throws java.io.IOException {
+        int numAvailableSamples = mNumAvailableSamples;  // read before mSamples.
+        int numRead = 0;
+        if (startSample < numAvailableSamples) {
+            numRead = mSamples.read(
+                    startSample, Math.min(numSamples, numAvailableSamples - startSample), dest);
+        }
+        if (numRead == numSamples || mInputFile == null || mHasAllSamples) {
+            return numRead;  // nothing else to decode.
+        }
+        // The samples decoded on demand are 16 bits PCM.
+        ShortBuffer samples = ShortBuffer.allocate((numSamples - numRead) * mChannels);
+        numRead += readSamples(startSample + numRead, numSamples - numRead, samples);
+        samples.flip();
+        SampleFormat.convert(samples, dest);
+        return numRead;
+    }
+
+    // True if decoding was stopped by the progress listener before the end of the file. The
+    // object is then a valid, shorter, sound file holding the part of the file decoded so far,
+    // and resume() can be called to decode the rest of the file.
+    public boolean isPartial() {
+        return mIsPartial;
+    }
+
+    // Carry on decoding a file whose decoding was stopped (see isPartial()) from the end of its
+    // decoded part. The progress and decode listeners passed to create() are used again: the
+    // frame gains are published as they get decoded, and decoding can be stopped again the same
+    // way. Return false if decoding cannot be resumed, e.g. after release().
+    public boolean resume() throws java.io.IOException {
+        Decoding decoding;
+        synchronized (this) {
+            decoding = mStoppedDecoding;
+            mStoppedDecoding = null;
+        }
+        if (decoding == null) {
+            return false;
+        }
+        if (decoding.mWAVReader != null) {
+            readWAVSamples(decoding);
+        } else if (decoding.mDecoder != null) {
+            decoding.mDecoder.resume();
+            decodeSegments(decoding);
+        } else {
+            MediaExtractor extractor = new MediaExtractor();
+            extractor.setDataSource(mInputFile.getPath());
+            MediaFormat format = selectAudioTrack(extractor);
+            if (format == null) {
+                extractor.release();
+                throw new IOException("No audio track found in " + mInputFile);
+            }
+            decode(decoding, extractor, format, mNumSamples);
+        }
+        return true;
+    }
+
+    // Release the resources used to decode samples on demand. They will be allocated again if
+    // readSamples() needs them. If decoding was stopped, it cannot be resumed afterward. The file
+    // of a recording is deleted (its samples can still be used).
+    public synchronized void release() {
+        if (mRecordingFile != null) {
+            mRecordingFile.delete();
+            mRecordingFile = null;
+            mEncodedRecording = null;
+        }
+        if (mRangeDecoder != null) {
+            mRangeDecoder.release();
+        }
+        if (mStoppedDecoding != null) {
+            if (mStoppedDecoding.mPCMFile != null) {
+                mStoppedDecoding.mPCMFile.delete();  // the samples stay mapped.
+            }
+            mStoppedDecoding = null;
+        }
+    }
+
     // A SoundFile object should only be created using the static methods create() and record().
     private SoundFile() {
     }
@@ -194,211 +543,785 @@ public class SoundFile {
         mProgressListener = progressListener;
     }
 
+    // Initialize the SoundFile object with the samples of inputFile found in the cache, if any,
+    // mapping them directly in memory. Return false if inputFile has not been decoded yet.
+    private boolean ReadCachedFile(File inputFile) {
+        if (sPCMCache == null) {
+            return false;
+        }
+        PCMCache.Entry entry = sPCMCache.get(inputFile);
+        if (entry == null) {
+            return false;
+        }
+        mInputFile = inputFile;
+        String[] components = mInputFile.getPath().split("\\.");
+        mFileType = components[components.length - 1];
+        mFileSize = (int)mInputFile.length();
+        mSampleRate = entry.mSampleRate;
+        mChannels = entry.mChannels;
+        mNumSamples = entry.mNumSamples;
+        mAvgBitRate = (int)((mFileSize * 8) * ((float)mSampleRate / mNumSamples) / 1000);
+        mSamples = SampleStore.wrap(entry.mSamples, mChannels);
+        mNumAvailableSamples = mNumSamples;
+        mHasAllSamples = true;
+        PeakCache.Summary summary = null;
+        if (sPeakCache != null) {
+            summary = sPeakCache.get(mInputFile, mSampleRate, mChannels, getSamplesPerFrame());
+        }
+        if (summary != null && summary.mFrameRms.length == entry.mFrameGains.length) {
+            mBlockPeaks = summary.mBlockPeaks;
+            mFrameRms = summary.mFrameRms;
+        } else {
+            // e.g. the summary was evicted: analyze the cached samples again.
+            int numFrames = entry.mFrameGains.length;
+            FrameGainAccumulator accumulator =
+                    new FrameGainAccumulator(mChannels, getSamplesPerFrame(), numFrames);
+            accumulator.add(entry.mSamples);
+            accumulator.finish();
+            numFrames = Math.min(numFrames, accumulator.getNumFrames());
+            mBlockPeaks = new short[entry.mFrameGains.length * getBlocksPerFrame() * 2];
+            accumulator.getBlockPeaks(mBlockPeaks, 0, numFrames);
+            mFrameRms = new byte[entry.mFrameGains.length];
+            accumulator.getFrameRms(mFrameRms, 0, numFrames);
+        }
+        mFrameGains = entry.mFrameGains;
+        mNumFrames = mFrameGains.length;
+        mExpectedNumFrames = mNumFrames;
+        setFrameLensAndOffsets();
+        if (mDecodeListener != null) {
+            mDecodeListener.onDecodeStarted(this);
+            mDecodeListener.onFramesDecoded(this);
+        }
+        return true;
+    }
+
+    // Initialize the SoundFile object with the samples of the WAV file inputFile, read without
+    // going through MediaCodec. 16 and 24 bits PCM and 32 bits float samples are used in place
+    // through a mapping of the file, other formats are converted to 16 bits. Return false if
+    // WAVReader cannot read inputFile, in which case it should be decoded with ReadFile() instead.
+    private boolean ReadWAVFile(File inputFile) throws java.io.IOException {
+        WAVReader reader;
+        try {
+            reader = new WAVReader(inputFile);
+        } catch (IOException e) {
+            Log.w("Ringdroid", "Cannot read " + inputFile + " directly: " + e);
+            return false;
+        }
+        mInputFile = inputFile;
+        mFileType = "wav";
+        mFileSize = (int)mInputFile.length();
+        mSampleRate = reader.getSampleRate();
+        mChannels = reader.getChannels();
+        mNumSamples = reader.getNumSamples();
+        if (mNumSamples > 0) {
+            mAvgBitRate = (int)((mFileSize * 8) * ((float)mSampleRate / mNumSamples) / 1000);
+        }
+        mExpectedNumFrames = (mNumSamples + getSamplesPerFrame() - 1) / getSamplesPerFrame();
+
+        Decoding decoding = new Decoding();
+        decoding.mWAVReader = reader;
+        boolean inPlace = reader.getEncoding() != 0;
+        if (inPlace) {
+            mEncoding = reader.getEncoding();
+            mSamples = SampleStore.wrap(reader.getData(), mChannels, mEncoding);
+        } else {
+            decoding.mPCMFile = createPCMFile();
+            mSamples = new SampleStore(mChannels, decoding.mPCMFile);
+            if (decoding.mPCMFile == null && getMemoryBudget() > 0) {
+                mSamples.setMemoryBudget(getMemoryBudget(), (long)mNumSamples * mChannels * 2);
+            }
+        }
+        decoding.mHasPeakSummary = startDecoding();
+        if (decoding.mHasPeakSummary && inPlace && mNumFrames == mExpectedNumFrames) {
+            // All the frame gains are known, there is no need to read the samples now: they will
+            // be paged in when they are actually used.
+            mNumDecodedFrames = mNumFrames;
+            mNumAvailableSamples = mNumSamples;
+        }
+        readWAVSamples(decoding);
+        return true;
+    }
+
+    // Read the samples of a WAV file and compute their frame gains, from the end of the frames
+    // decoded so far (i.e. from the beginning of the file, unless decoding is being resumed).
+    private void readWAVSamples(Decoding decoding) throws java.io.IOException {
+        WAVReader reader = decoding.mWAVReader;
+        PCMFile pcmFile = decoding.mPCMFile;
+        int totalNumSamples = reader.getNumSamples();
+        int encoding = reader.getEncoding();
+        // Read the samples by chunks of 64 frames, so that progress gets reported and frame gains
+        // get published regularly. 16 bits samples need no conversion and are analyzed by chunks
+        // of 1024 frames (~24sec at 44.1kHz), long enough to be split between several cores.
+        int chunkSize = (encoding == SampleFormat.PCM_16BIT ? 1024 : 64) * getSamplesPerFrame();
+        ByteBuffer convertedBytes = null;
+        if (encoding != SampleFormat.PCM_16BIT) {
+            convertedBytes = ByteBuffer.allocate(chunkSize * mChannels * 2);
+            convertedBytes.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        int sampleSize = mChannels * SampleFormat.getBytesPerValue(encoding);
+        for (int i = mNumDecodedFrames * getSamplesPerFrame(); i < totalNumSamples;
+                i += chunkSize) {
+            int numSamples = Math.min(chunkSize, totalNumSamples - i);
+            if (encoding == SampleFormat.PCM_16BIT) {
+                ByteBuffer bytes = reader.getData().duplicate();
+                bytes.order(ByteOrder.LITTLE_ENDIAN);
+                bytes.limit((i + numSamples) * mChannels * 2);
+                bytes.position(i * mChannels * 2);
+                mFrameGainAccumulator.add(bytes);
+            } else if (encoding != 0) {
+                // High resolution samples are used in place, and only converted to compute the
+                // frame gains.
+                ByteBuffer bytes = reader.getData().duplicate();
+                bytes.limit((i + numSamples) * sampleSize);
+                bytes.position(i * sampleSize);
+                convertedBytes.clear();
+                SampleFormat.convert(bytes, encoding, convertedBytes, SampleFormat.PCM_16BIT);
+                convertedBytes.flip();
+                mFrameGainAccumulator.add(convertedBytes);
+            } else {
+                convertedBytes.clear();
+                reader.convertTo16Bits(convertedBytes, i, numSamples);
+                convertedBytes.flip();
+                mFrameGainAccumulator.add(convertedBytes);
+                try {
+                    mSamples.put(convertedBytes);
+                } catch (IOException e) {
+                    pcmFile.delete();  // only a PCMFile can fail to grow.
+                    throw e;
+                }
+            }
+            mNumAvailableSamples = i + numSamples;
+            computeNewFrameGains();
+            if (mProgressListener != null) {
+                float fractionComplete = (float)(i + numSamples) / totalNumSamples;
+                if (!mProgressListener.reportProgress(fractionComplete)) {
+                    // We are asked to stop reading the file. Keep what has been read so far.
+                    stopDecoding(decoding, i + numSamples);
+                    return;
+                }
+            }
+        }
+        mNumSamples = totalNumSamples;
+        mFrameGainAccumulator.finish();
+        computeNewFrameGains();
+        finishDecoding(!decoding.mHasPeakSummary);
+
+        if (pcmFile != null) {
+            mSamples = SampleStore.wrap(pcmFile.finish(mNumSamples * mChannels * 2), mChannels);
+        }
+        mNumAvailableSamples = mNumSamples;
+        mHasAllSamples = true;
+    }
+
     private void ReadFile(File inputFile)
         throws java.io.FileNotFoundException,
                java.io.IOException, InvalidInputException {
         MediaExtractor extractor = new MediaExtractor();
         MediaFormat format = null;
-        int i;
 
         mInputFile = inputFile;
         String[] components = mInputFile.getPath().split("\\.");
         mFileType = components[components.length - 1];
         mFileSize = (int)mInputFile.length();
         extractor.setDataSource(mInputFile.getPath());
-        int numTracks = extractor.getTrackCount();
-        // find and select the first audio track present in the file.
-        for (i=0; i<numTracks; i++) {
-            format = extractor.getTrackFormat(i);
-            if (format.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
-                extractor.selectTrack(i);
-                break;
-            }
-        }
-        if (i == numTracks) {
+        format = selectAudioTrack(extractor);
+        if (format == null) {
             throw new InvalidInputException("No audio track found in " + mInputFile);
         }
         mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
         mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        if (isHighResolution(format)) {
+            // Ask the decoder for float samples (see decode()), which keep their resolution.
+            mEncoding = SampleFormat.PCM_FLOAT;
+        }
         // Expected total number of samples per channel.
         int expectedNumSamples =
             (int)((format.getLong(MediaFormat.KEY_DURATION) / 1000000.f) * mSampleRate + 0.5f);
+        mExpectedNumFrames = (expectedNumSamples + getSamplesPerFrame() - 1) / getSamplesPerFrame();
+        // Rough estimate until the actual number of samples is known.
+        if (expectedNumSamples > 0) {
+            mAvgBitRate = (int)((mFileSize * 8) * ((float)mSampleRate / expectedNumSamples) / 1000);
+        }
 
-        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
-        codec.configure(format, null, null, 0);
-        codec.start();
-
-        int decodedSamplesSize = 0;  // size of the output buffer containing decoded samples.
-        byte[] decodedSamples = null;
-        ByteBuffer[] inputBuffers = codec.getInputBuffers();
-        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
-        int sample_size;
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        long presentation_time;
-        int tot_size_read = 0;
-        boolean done_reading = false;
-
-        // Set the size of the decoded samples buffer to 1MB (~6sec of a stereo stream at 44.1kHz).
-        // For longer streams, the buffer size will be increased later on, calculating a rough
-        // estimate of the total size needed to store all the samples in order to resize the buffer
-        // only once.
-        mDecodedBytes = ByteBuffer.allocate(1<<20);
-        Boolean firstSampleData = true;
-        while (true) {
-            // read data from file and feed it to the decoder input buffers.
-            int inputBufferIndex = codec.dequeueInputBuffer(100);
-            if (!done_reading && inputBufferIndex >= 0) {
-                sample_size = extractor.readSampleData(inputBuffers[inputBufferIndex], 0);
-                if (firstSampleData
-                        && format.getString(MediaFormat.KEY_MIME).equals("audio/mp4a-latm")
-                        && sample_size == 2) {
-                    // For some reasons on some devices (e.g. the Samsung S3) you should not
-                    // provide the first two bytes of an AAC stream, otherwise the MediaCodec will
-                    // crash. These two bytes do not contain music data but basic info on the
-                    // stream (e.g. channel configuration and sampling frequency), and skipping them
-                    // seems OK with other devices (MediaCodec has already been configured and
-                    // already knows these parameters).
-                    extractor.advance();
-                    tot_size_read += sample_size;
-                } else if (sample_size < 0) {
-                    // All samples have been read.
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    done_reading = true;
-                } else {
-                    presentation_time = extractor.getSampleTime();
-                    codec.queueInputBuffer(inputBufferIndex, 0, sample_size, presentation_time, 0);
-                    extractor.advance();
-                    tot_size_read += sample_size;
-                    if (mProgressListener != null) {
-                        if (!mProgressListener.reportProgress((float)(tot_size_read) / mFileSize)) {
-                            // We are asked to stop reading the file. Returning immediately. The
-                            // SoundFile object is invalid and should NOT be used afterward!
-                            extractor.release();
-                            extractor = null;
-                            codec.stop();
-                            codec.release();
-                            codec = null;
-                            return;
-                        }
-                    }
+        // If the samples can be stored on disk, long files are decoded in several segments in
+        // parallel, using one decoder instance per segment. The segments are decoded as 16 bits
+        // PCM, so high resolution files are decoded in a single pass.
+        PCMFile pcmFile = createPCMFile();
+        int numSegments = SegmentedDecoder.getNumSegments(format, expectedNumSamples, mSampleRate);
+        if (pcmFile != null && numSegments > 1 && mEncoding == SampleFormat.PCM_16BIT) {
+            extractor.release();
+            ReadFileInSegments(pcmFile, expectedNumSamples, numSegments);
+            return;
+        }
+
+        // If the samples can be stored on disk, the chunks of the sample store are mappings of
+        // the scratch file. Otherwise the samples are kept on the heap if they fit in the memory
+        // budget, once stored in a compact form if needed. If they do not, they are not kept, so
+        // that the decoded stream is never held on the Java heap: they are only used to compute
+        // the frame gains, and readSamples() decodes them again on demand.
+        mNumAvailableSamples = 0;
+        Decoding decoding = new Decoding();
+        decoding.mPCMFile = pcmFile;
+        decoding.mExpectedNumSamples = expectedNumSamples;
+        mSamples = createSampleStore(decoding);
+        decoding.mKeepSamples = mSamples != null;
+        decoding.mHasPeakSummary = startDecoding();
+        decode(decoding, extractor, format, 0);
+    }
+
+    // Return the store of the samples decoded by MediaCodec in mEncoding, or null if they cannot
+    // be kept (see ReadFile()).
+    private SampleStore createSampleStore(Decoding decoding) {
+        SampleStore samples = new SampleStore(mChannels, mEncoding, decoding.mPCMFile);
+        if (decoding.mPCMFile != null) {
+            return samples;
+        }
+        // High resolution samples are converted to 16 bits PCM before being stored in a compact
+        // form.
+        long expectedSize = (long)decoding.mExpectedNumSamples * mChannels;
+        if (getMemoryBudget() > 0 &&
+                expectedSize * 2 * SampleCodec.getRatio(SampleCodec.MONO_MULAW, mChannels) <=
+                getMemoryBudget()) {
+            samples.setMemoryBudget(getMemoryBudget(),
+                    expectedSize * SampleFormat.getBytesPerValue(mEncoding));
+            return samples;
+        }
+        return null;
+    }
+
+    // Return true if the samples of the audio track whose format is format have more than 16 bits
+    // of resolution, and can be decoded as float (API 24+).
+    private static boolean isHighResolution(MediaFormat format) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return false;
+        }
+        if (format.containsKey(MediaFormat.KEY_PCM_ENCODING)) {
+            return format.getInteger(MediaFormat.KEY_PCM_ENCODING) !=
+                    AudioFormat.ENCODING_PCM_16BIT;
+        }
+        // Set by the extractors of lossless formats (e.g. FLAC).
+        return format.containsKey("bits-per-sample") && format.getInteger("bits-per-sample") > 16;
+    }
+
+    // Return the format of the first audio track of extractor after selecting it, or null if it
+    // has no audio track.
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+
+    // Decode the samples of the audio track selected in extractor, whose format is format, from
+    // sample firstSample (0 unless decoding is being resumed) to the end of the file, and compute
+    // their frame gains. extractor is released.
+    private void decode(Decoding decoding, MediaExtractor extractor, MediaFormat format,
+                        int firstSample) throws java.io.IOException {
+        PCMFile pcmFile = decoding.mPCMFile;
+        // When resuming, start decoding a bit before the first sample, as RangeDecoder does.
+        int seekSample = Math.max(firstSample - RangeDecoder.PREROLL_SAMPLES, 0);
+        if (seekSample > 0) {
+            extractor.seekTo((long)seekSample * 1000000 / mSampleRate,
+                    MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+        if (mEncoding != SampleFormat.PCM_16BIT) {
+            format.setInteger(MediaFormat.KEY_PCM_ENCODING, mEncoding);
+        }
+        DecoderClient client = new DecoderClient(extractor, format, decoding, firstSample,
+                seekSample);
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        MediaCodec codec = null;
+        boolean reusable = false;
+        try {
+            codec = CodecPool.acquireDecoder(mimeType);
+            CodecRunner.run(codec, format, 0, client, "decode " + mFileType);
+            reusable = true;
+        } catch (IOException e) {
+            if (pcmFile != null) {
+                pcmFile.delete();
+            }
+            throw e;
+        } finally {
+            extractor.release();
+            if (codec != null) {
+                CodecPool.release(codec, mimeType, false, reusable);
+            }
+        }
+        if (client.mCancelled) {
+            // We are asked to stop reading the file. Keep what has been decoded so far.
+            stopDecoding(decoding, client.mNumSamples);
+            return;
+        }
+        boolean truncated = client.mTruncated;
+        mNumSamples = client.mNumSamples;
+        // Compute the gain of the last (partial) frame.
+        mFrameGainAccumulator.finish();
+        computeNewFrameGains();
+        mAvgBitRate = (int)((mFileSize * 8) * ((float)mSampleRate / mNumSamples) / 1000);
+
+        finishDecoding(!truncated && !decoding.mHasPeakSummary);
+
+        if (pcmFile != null) {
+            finishPCMFile(pcmFile, (int)mSamples.getSize(), truncated);
+        } else if (decoding.mKeepSamples) {
+            mNumAvailableSamples = mNumSamples;
+            mHasAllSamples = true;
+        }
+        // DumpSamples();  // Uncomment this line to dump the samples in a TSV file.
+    }
+
+    // Feeds the samples read by an extractor to a decoder, and stores the decoded samples in
+    // mSamples, computing the frame gains as they get decoded. The samples output by the decoder
+    // are converted to mEncoding if they are not in this format, and to 16 bits PCM to compute
+    // the frame gains.
+    private class DecoderClient implements CodecRunner.Client {
+        private MediaExtractor mExtractor;
+        private boolean mIsAAC;
+        private Decoding mDecoding;
+        private boolean mKeepSamples;
+        private int mExpectedNumSamples;
+        private int mNumSamples;  // number of samples (per channel) decoded so far.
+        private int mOutputEncoding = SampleFormat.PCM_16BIT;  // format output by the decoder.
+        private ByteBuffer mConvertedBytes;  // output samples converted to mEncoding.
+        private ByteBuffer mPCM16Bytes;  // output samples converted to 16 bits PCM.
+        // Index of the next sample output by the decoder, or -1 until the timestamp of the first
+        // decoded buffer is known when decoding starts after a seek.
+        private long mNextSample;
+        private int mTotalSizeRead;
+        private boolean mFirstSampleData;
+        private boolean mCancelled = false;
+        private boolean mTruncated = false;  // true if we could not store all the decoded samples.
+
+        // The first numSamples samples have already been decoded, and the extractor has been
+        // seeked to sample seekSample, before them.
+        public DecoderClient(MediaExtractor extractor, MediaFormat format, Decoding decoding,
+                             int numSamples, int seekSample) {
+            mExtractor = extractor;
+            mIsAAC = format.getString(MediaFormat.KEY_MIME).equals("audio/mp4a-latm");
+            mDecoding = decoding;
+            mKeepSamples = decoding.mKeepSamples;
+            int expectedNumSamples = decoding.mExpectedNumSamples;
+            mExpectedNumSamples = expectedNumSamples;
+            mNumSamples = numSamples;
+            mNextSample = seekSample > 0 ? -1 : 0;
+            mFirstSampleData = seekSample == 0;
+            // Only used to report progress.
+            if (expectedNumSamples > 0) {
+                mTotalSizeRead = (int)((long)mFileSize * seekSample / expectedNumSamples);
+            }
+        }
+
+        @Override
+        public boolean readInput(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            int sampleSize = mExtractor.readSampleData(buffer, 0);
+            if (mFirstSampleData && mIsAAC && sampleSize == 2) {
+                // For some reasons on some devices (e.g. the Samsung S3) you should not provide
+                // the first two bytes of an AAC stream, otherwise the MediaCodec will crash. These
+                // two bytes do not contain music data but basic info on the stream (e.g. channel
+                // configuration and sampling frequency), and skipping them seems OK with other
+                // devices (MediaCodec has already been configured and already knows these
+                // parameters).
+                mExtractor.advance();
+                mTotalSizeRead += sampleSize;
+                sampleSize = mExtractor.readSampleData(buffer, 0);
+            }
+            mFirstSampleData = false;
+            if (sampleSize < 0) {
+                // All samples have been read.
+                info.set(0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return true;
+            }
+            info.set(0, sampleSize, mExtractor.getSampleTime(), 0);
+            mExtractor.advance();
+            mTotalSizeRead += sampleSize;
+            if (mProgressListener != null) {
+                if (!mProgressListener.reportProgress((float)(mTotalSizeRead) / mFileSize)) {
+                    mCancelled = true;
+                    return false;
                 }
-                firstSampleData = false;
             }
+            return true;
+        }
 
-            // Get decoded stream from the decoder output buffers.
-            int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
-            if (outputBufferIndex >= 0 && info.size > 0) {
-                if (decodedSamplesSize < info.size) {
-                    decodedSamplesSize = info.size;
-                    decodedSamples = new byte[decodedSamplesSize];
+        @Override
+        public void setOutputFormat(MediaFormat format) {
+            mOutputEncoding = SampleFormat.PCM_16BIT;
+            if (format.containsKey(MediaFormat.KEY_PCM_ENCODING)) {
+                mOutputEncoding = format.getInteger(MediaFormat.KEY_PCM_ENCODING);
+            }
+            if (mOutputEncoding != mEncoding && mNumSamples == 0) {
+                // The decoder does not output the requested format: nothing has been stored yet,
+                // so store the samples in the format actually output.
+                mEncoding = mOutputEncoding;
+                if (mKeepSamples) {
+                    mSamples = createSampleStore(mDecoding);
                 }
-                outputBuffers[outputBufferIndex].get(decodedSamples, 0, info.size);
-                outputBuffers[outputBufferIndex].clear();
-                // Check if buffer is big enough. Resize it if it's too small.
-                if (mDecodedBytes.remaining() < info.size) {
-                    // Getting a rough estimate of the total size, allocate 20% more, and
-                    // make sure to allocate at least 5MB more than the initial size.
-                    int position = mDecodedBytes.position();
-                    int newSize = (int)((position * (1.0 * mFileSize / tot_size_read)) * 1.2);
-                    if (newSize - position < info.size + 5 * (1<<20)) {
-                        newSize = position + info.size + 5 * (1<<20);
-                    }
-                    ByteBuffer newDecodedBytes = null;
-                    // Try to allocate memory. If we are OOM, try to run the garbage collector.
-                    int retry = 10;
-                    while(retry > 0) {
-                        try {
-                            newDecodedBytes = ByteBuffer.allocate(newSize);
-                            break;
-                        } catch (OutOfMemoryError oome) {
-                            // setting android:largeHeap="true" in <application> seem to help not
-                            // reaching this section.
-                            retry--;
-                        }
-                    }
-                    if (retry == 0) {
-                        // Failed to allocate memory... Stop reading more data and finalize the
-                        // instance with the data decoded so far.
-                        break;
-                    }
-                    //ByteBuffer newDecodedBytes = ByteBuffer.allocate(newSize);
-                    mDecodedBytes.rewind();
-                    newDecodedBytes.put(mDecodedBytes);
-                    mDecodedBytes = newDecodedBytes;
-                    mDecodedBytes.position(position);
+            }
+        }
+
+        @Override
+        public boolean writeOutput(ByteBuffer buffer, MediaCodec.BufferInfo info)
+                throws IOException {
+            int sampleSize = mChannels * SampleFormat.getBytesPerValue(mOutputEncoding);
+            if (mNextSample < mNumSamples) {
+                // Decoding has been resumed: drop the samples which had already been decoded.
+                if (mNextSample < 0) {
+                    mNextSample = info.presentationTimeUs * mSampleRate / 1000000;
+                }
+                int numSkipped = (int)Math.min(
+                        mNumSamples - mNextSample, buffer.remaining() / sampleSize);
+                buffer.position(buffer.position() + numSkipped * sampleSize);
+                mNextSample += numSkipped;
+                if (!buffer.hasRemaining()) {
+                    return true;
+                }
+            }
+            int numDecoded = buffer.remaining() / sampleSize;
+            mNextSample += numDecoded;
+            if (mOutputEncoding != mEncoding) {
+                mConvertedBytes = convert(buffer, mOutputEncoding, mEncoding, mConvertedBytes);
+                buffer = mConvertedBytes;
+            }
+            int size = buffer.remaining();
+            if (mKeepSamples && mSamples.getSize() + size > Integer.MAX_VALUE) {
+                // The decoded samples are mapped in (or can be copied to) a single ByteBuffer once
+                // decoded, which cannot hold more than 2GB.
+                Log.w("Ringdroid", "Decoded stream too large, truncating it.");
+                mTruncated = true;
+                return false;
+            }
+            // The frame gains are computed from the output buffer of the codec while it is still
+            // in the cache, before it gets copied (in bulk) straight into the sample store.
+            // Growing the store does not copy the samples already stored.
+            if (mEncoding != SampleFormat.PCM_16BIT) {
+                mPCM16Bytes = convert(buffer, mEncoding, SampleFormat.PCM_16BIT, mPCM16Bytes);
+                mFrameGainAccumulator.add(mPCM16Bytes);
+            } else {
+                mFrameGainAccumulator.add(buffer);
+            }
+            mNumSamples += numDecoded;
+            if (mKeepSamples) {
+                mSamples.put(buffer);
+                mNumAvailableSamples = mNumSamples;
+            }
+            computeNewFrameGains();
+            // We should get all the decoded data from the decoder once it outputs the end of
+            // stream. However some phones (e.g. Samsung S3) won't flag the end of the stream for
+            // some files (e.g. with mono AAC files), in which case subsequent calls to
+            // dequeueOutputBuffer may result in the application crashing, without even an
+            // exception being thrown... Hence stopping once the expected number of samples has
+            // been decoded.
+            // (for mono AAC files, the S3 will actually double each sample, as if the stream was
+            // stereo. The resulting stream is half what it's supposed to be and with a much lower
+            // pitch.)
+            return mNumSamples < mExpectedNumSamples;
+        }
+
+        // Convert the samples of src from srcEncoding to destEncoding, in dest if it is large
+        // enough and in a new buffer otherwise. Return the buffer holding the converted samples.
+        private ByteBuffer convert(ByteBuffer src, int srcEncoding, int destEncoding,
+                                   ByteBuffer dest) {
+            int size = src.remaining() / SampleFormat.getBytesPerValue(srcEncoding) *
+                    SampleFormat.getBytesPerValue(destEncoding);
+            if (dest == null || dest.capacity() < size) {
+                dest = ByteBuffer.allocate(size);
+                dest.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            dest.clear();
+            SampleFormat.convert(src, srcEncoding, dest, destEncoding);
+            dest.flip();
+            return dest;
+        }
+    }
+
+    // Decode mInputFile in numSegments segments of about expectedNumSamples / numSegments samples,
+    // decoded in parallel by SegmentedDecoder directly into pcmFile. The frame gains are
+    // published as soon as all the frames preceding them have been decoded.
+    private void ReadFileInSegments(PCMFile pcmFile, int expectedNumSamples, int numSegments)
+            throws java.io.IOException {
+        SegmentedDecoder decoder = new SegmentedDecoder(
+                mInputFile, mSampleRate, mChannels, getSamplesPerFrame(), pcmFile);
+        Decoding decoding = new Decoding();
+        decoding.mDecoder = decoder;
+        decoding.mPCMFile = pcmFile;
+        decoding.mExpectedNumSamples = expectedNumSamples;
+        mNumAvailableSamples = 0;
+        decoding.mHasPeakSummary = startDecoding();
+        try {
+            // The segments are not decoded in order: they write directly at the position of
+            // their samples in the mapping, which can be read as soon as samples are available.
+            mSamples = SampleStore.wrap(
+                    decoder.start(expectedNumSamples, numSegments), mChannels);
+        } catch (IOException e) {
+            pcmFile.delete();
+            throw e;
+        }
+        decodeSegments(decoding);
+    }
+
+    // Wait for the segments of decoding to be decoded, publishing their frame gains, and finish
+    // decoding the file. If decoding is stopped, the segments which have been decoded without any
+    // gap from the beginning of the file are kept.
+    private void decodeSegments(Decoding decoding) throws java.io.IOException {
+        SegmentedDecoder decoder = decoding.mDecoder;
+        PCMFile pcmFile = decoding.mPCMFile;
+        while (!decoder.waitFor(100)) {
+            publishSegmentedFrameGains(decoder);
+            if (mProgressListener != null) {
+                float fractionComplete =
+                        (float)decoder.getNumDecodedSamples() / decoding.mExpectedNumSamples;
+                if (!mProgressListener.reportProgress(Math.min(fractionComplete, 1))) {
+                    // We are asked to stop reading the file. Keep what has been decoded so far.
+                    decoder.cancel();
+                    publishSegmentedFrameGains(decoder);
+                    stopDecoding(decoding, mNumAvailableSamples);
+                    return;
                 }
-                mDecodedBytes.put(decodedSamples, 0, info.size);
-                codec.releaseOutputBuffer(outputBufferIndex, false);
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                outputBuffers = codec.getOutputBuffers();
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // Subsequent data will conform to new format.
-                // We could check that codec.getOutputFormat(), which is the new output format,
-                // is what we expect.
-            }
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
-                    || (mDecodedBytes.position() / (2 * mChannels)) >= expectedNumSamples) {
-                // We got all the decoded data from the decoder. Stop here.
-                // Theoretically dequeueOutputBuffer(info, ...) should have set info.flags to
-                // MediaCodec.BUFFER_FLAG_END_OF_STREAM. However some phones (e.g. Samsung S3)
-                // won't do that for some files (e.g. with mono AAC files), in which case subsequent
-                // calls to dequeueOutputBuffer may result in the application crashing, without
-                // even an exception being thrown... Hence the second check.
-                // (for mono AAC files, the S3 will actually double each sample, as if the stream
-                // was stereo. The resulting stream is half what it's supposed to be and with a much
-                // lower pitch.)
-                break;
-            }
-        }
-        mNumSamples = mDecodedBytes.position() / (mChannels * 2);  // One sample = 2 bytes.
-        mDecodedBytes.rewind();
-        mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-        mDecodedSamples = mDecodedBytes.asShortBuffer();
+            }
+        }
+        IOException error = decoder.getError();
+        if (error != null) {
+            pcmFile.delete();
+            throw error;
+        }
+        publishSegmentedFrameGains(decoder);
+        mNumSamples = decoder.getNumSamples();
         mAvgBitRate = (int)((mFileSize * 8) * ((float)mSampleRate / mNumSamples) / 1000);
+        finishDecoding(!decoder.isTruncated() && !decoding.mHasPeakSummary);
+        finishPCMFile(pcmFile, mNumSamples * mChannels * 2, decoder.isTruncated());
+    }
+
+    // Publish the frame gains computed by decoder since the last call, as computeNewFrameGains()
+    // does when the file is decoded sequentially.
+    private void publishSegmentedFrameGains(SegmentedDecoder decoder) {
+        int numFrames = decoder.getNumFrames();
+        if (numFrames <= mNumDecodedFrames) {
+            return;
+        }
+        int[] frameGains = mFrameGains;
+        byte[] frameRms = mFrameRms;
+        short[] blockPeaks = mBlockPeaks;
+        if (numFrames > frameGains.length) {
+            frameGains = Arrays.copyOf(frameGains, numFrames + numFrames / 10);
+            frameRms = Arrays.copyOf(frameRms, frameGains.length);
+            blockPeaks = Arrays.copyOf(blockPeaks, frameGains.length * getBlocksPerFrame() * 2);
+        }
+        decoder.getFrameGains(frameGains, frameRms, blockPeaks, mNumDecodedFrames, numFrames);
+        mNumDecodedFrames = numFrames;
+        // The last segment may have grown past the mapping held by mSamples.
+        mNumAvailableSamples = Math.min(decoder.getNumSamples(), mSamples.getNumSamples());
+        publishFrameGains(frameGains, frameRms, blockPeaks, numFrames);
+    }
+
+    // Replace the read/write mapping of pcmFile by a read-only mapping of the size bytes of
+    // decoded samples only, and keep them in the cache if the whole file could be decoded.
+    private void finishPCMFile(PCMFile pcmFile, int size, boolean truncated)
+            throws java.io.IOException {
+        File cachedSamplesFile = null;
+        // The cache only holds 16 bits samples.
+        if (sPCMCache != null && !truncated && mEncoding == SampleFormat.PCM_16BIT) {
+            cachedSamplesFile = sPCMCache.getSamplesFile(mInputFile);
+        }
+        mSamples = SampleStore.wrap(
+                pcmFile.finish(size, cachedSamplesFile), mChannels, mEncoding);
+        if (cachedSamplesFile != null) {
+            sPCMCache.put(mInputFile, mSampleRate, mChannels, mNumSamples, mFrameGains);
+        }
+        mNumAvailableSamples = mNumSamples;
+        mHasAllSamples = true;
+    }
 
-        extractor.release();
-        extractor = null;
-        codec.stop();
-        codec.release();
-        codec = null;
+    // Initialize the frame gains before decoding the samples of mInputFile, and let the decode
+    // listener know that decoding started.
+    // The frame gains are computed as the samples get decoded, so that they can be published
+    // while the rest of the file is being decoded. If the file has already been decoded before,
+    // its peak summary is used to publish all the frame gains right away, in which case true is
+    // returned. Otherwise, approximate frame gains are published right away if they can be
+    // computed cheaply, and get replaced as the samples are decoded.
+    private boolean startDecoding() {
+        mNumFrames = 0;
+        mNumDecodedFrames = 0;
+        mNumExactFrames = 0;
+        mHasApproximateFrameGains = false;
+        mBlockPeaks = new short[mExpectedNumFrames * getBlocksPerFrame() * 2];
+        mFrameRms = new byte[mExpectedNumFrames];
+        mFrameGains = new int[mExpectedNumFrames];
+        mFrameGainAccumulator =
+                new FrameGainAccumulator(mChannels, getSamplesPerFrame(), mExpectedNumFrames);
+        PeakCache.Summary summary = null;
+        if (sPeakCache != null) {
+            summary = sPeakCache.get(mInputFile, mSampleRate, mChannels, getSamplesPerFrame());
+        }
+        int[] frameGains = null;
+        if (summary != null) {
+            frameGains = summary.mFrameGains;
+            mBlockPeaks = summary.mBlockPeaks;
+            mFrameRms = summary.mFrameRms;
+        } else {
+            // The RMS levels and block peaks of the approximate frame gains are left to 0 until
+            // decoded.
+            frameGains = getApproximateFrameGains();
+            mHasApproximateFrameGains = frameGains != null;
+            if (frameGains != null) {
+                mBlockPeaks = new short[frameGains.length * getBlocksPerFrame() * 2];
+                mFrameRms = new byte[frameGains.length];
+            }
+        }
+        if (frameGains != null) {
+            mFrameGains = frameGains;
+            mNumFrames = frameGains.length;
+            mExpectedNumFrames = mNumFrames;
+        }
+        if (mDecodeListener != null) {
+            mDecodeListener.onDecodeStarted(this);
+            if (mNumFrames > 0) {
+                mDecodeListener.onFramesDecoded(this);
+            }
+        }
+        return summary != null;
+    }
 
+    // Return frame gains of mInputFile computed without decoding it, or null if this is not
+    // possible for this type of file.
+    private int[] getApproximateFrameGains() {
+        String fileType = mFileType.toLowerCase();
+        try {
+            if (fileType.equals("mp3")) {
+                MP3Scanner scanner = new MP3Scanner(mInputFile);
+                if (scanner.getSampleRate() != mSampleRate) {
+                    return null;
+                }
+                return scanner.getFrameGains(getSamplesPerFrame());
+            }
+            if (fileType.equals("m4a") || fileType.equals("aac") ||
+                    fileType.equals("3gp") || fileType.equals("3gpp")) {
+                // The access units are mapped to frames using their timestamps, which also works
+                // for HE-AAC streams, decoded at twice the sample rate of the AAC track.
+                AACScanner scanner = new AACScanner(mInputFile);
+                return scanner.getFrameGains(mSampleRate, getSamplesPerFrame());
+            }
+            return null;
+        } catch (IOException e) {
+            Log.w("Ringdroid", "Cannot scan " + mInputFile + ": " + e);
+            return null;
+        }
+    }
+
+    // Set the final frame gains once all the samples have been decoded, and store them as the
+    // peak summary of mInputFile if storeSummary is true.
+    private void finishDecoding(boolean storeSummary) {
         // Temporary hack to make it work with the old version.
-        mNumFrames = mNumSamples / getSamplesPerFrame();
-        if (mNumSamples % getSamplesPerFrame() != 0){
-            mNumFrames++;
+        // The number of frames can be lower than the one published so far (e.g. approximate
+        // frame gains), so the shorter arrays are published before it.
+        if (mFrameGains.length != mNumDecodedFrames) {
+            mBlockPeaks = Arrays.copyOf(mBlockPeaks, mNumDecodedFrames * getBlocksPerFrame() * 2);
+            mFrameRms = Arrays.copyOf(mFrameRms, mNumDecodedFrames);
+            mFrameGains = Arrays.copyOf(mFrameGains, mNumDecodedFrames);
+        }
+        mNumFrames = mNumDecodedFrames;
+        mExpectedNumFrames = mNumFrames;
+        mHasApproximateFrameGains = false;
+        mIsPartial = false;
+        setFrameLensAndOffsets();
+        if (sPeakCache != null && storeSummary) {
+            sPeakCache.put(mInputFile, mSampleRate, mChannels, getSamplesPerFrame(),
+                    mFrameGains, mFrameRms, mBlockPeaks, mNumFrames);
+        }
+    }
+
+    // Stop decoding once the first numSamples samples have been decoded, keeping them, and the
+    // frame gains computed so far, as a shorter file. decoding is kept so that resume() can carry
+    // on from there: the samples of the last (partial) frame are kept by mFrameGainAccumulator.
+    private void stopDecoding(Decoding decoding, int numSamples) {
+        mNumSamples = numSamples;
+        mNumAvailableSamples = Math.min(mNumAvailableSamples, numSamples);
+        // The frame gains of the rest of the file, if already known from the peak summary or
+        // approximated, are not published anymore.
+        mNumFrames = mNumDecodedFrames;
+        mHasApproximateFrameGains = false;
+        mIsPartial = true;
+        setFrameLensAndOffsets();
+        synchronized (this) {
+            mStoppedDecoding = decoding;
         }
-        mFrameGains = new int[mNumFrames];
+    }
+
+    // The state of the decoding of mInputFile, which is kept when decoding is stopped so that
+    // resume() can carry on from there.
+    private static class Decoding {
+        private WAVReader mWAVReader;  // if the file is a WAV file read directly.
+        private SegmentedDecoder mDecoder;  // if the file is decoded in segments.
+        private PCMFile mPCMFile;  // scratch file holding the decoded samples, if any.
+        private boolean mKeepSamples;  // false if the samples decoded by MediaCodec are dropped.
+        private int mExpectedNumSamples;
+        private boolean mHasPeakSummary;  // true if the frame gains came from the peak cache.
+    }
+
+    // Temporary hack to make it work with the old version.
+    private void setFrameLensAndOffsets() {
         mFrameLens = new int[mNumFrames];
         mFrameOffsets = new int[mNumFrames];
-        int j;
-        int gain, value;
         int frameLens = (int)((1000 * mAvgBitRate / 8) *
                 ((float)getSamplesPerFrame() / mSampleRate));
-        for (i=0; i<mNumFrames; i++){
-            gain = -1;
-            for(j=0; j<getSamplesPerFrame(); j++) {
-                value = 0;
-                for (int k=0; k<mChannels; k++) {
-                    if (mDecodedSamples.remaining() > 0) {
-                        value += java.lang.Math.abs(mDecodedSamples.get());
-                    }
-                }
-                value /= mChannels;
-                if (gain < value) {
-                    gain = value;
-                }
-            }
-            mFrameGains[i] = (int)Math.sqrt(gain);  // here gain = sqrt(max value of 1st channel)...
+        for (int i=0; i<mNumFrames; i++){
             mFrameLens[i] = frameLens;  // totally not accurate...
             mFrameOffsets[i] = (int)(i * (1000 * mAvgBitRate / 8) *  //  = i * frameLens
                     ((float)getSamplesPerFrame() / mSampleRate));
         }
-        mDecodedSamples.rewind();
-        // DumpSamples();  // Uncomment this line to dump the samples in a TSV file.
     }
 
-    private void RecordAudio() {
+    // Let the decode listener know about the frame gains computed by mFrameGainAccumulator since
+    // the last call.
+    private void computeNewFrameGains() {
+        int numFrames = mFrameGainAccumulator.getNumFrames();
+        if (numFrames <= mNumDecodedFrames) {
+            return;
+        }
+        int[] frameGains = mFrameGains;
+        byte[] frameRms = mFrameRms;
+        short[] blockPeaks = mBlockPeaks;
+        if (numFrames > frameGains.length) {
+            // The duration of the file was underestimated. Make room for 10% more frames.
+            frameGains = Arrays.copyOf(frameGains, numFrames + numFrames / 10);
+            frameRms = Arrays.copyOf(frameRms, frameGains.length);
+            blockPeaks = Arrays.copyOf(blockPeaks, frameGains.length * getBlocksPerFrame() * 2);
+        }
+        mFrameGainAccumulator.getFrameGains(frameGains, mNumDecodedFrames, numFrames);
+        mFrameGainAccumulator.getFrameRms(frameRms, mNumDecodedFrames, numFrames);
+        mFrameGainAccumulator.getBlockPeaks(blockPeaks, mNumDecodedFrames, numFrames);
+        mNumDecodedFrames = numFrames;
+        publishFrameGains(frameGains, frameRms, blockPeaks, numFrames);
+    }
+
+    // Let the decode listener know that the gains, RMS levels and block peaks of the first
+    // numFrames frames are available in frameGains, frameRms and blockPeaks, which are either
+    // mFrameGains, mFrameRms and mBlockPeaks or larger copies of them.
+    private void publishFrameGains(int[] frameGains, byte[] frameRms, short[] blockPeaks,
+                                   int numFrames) {
+        if (numFrames <= mNumFrames) {
+            // These frame gains had already been published, either using the peak summary (in
+            // which case they did not change) or as approximations that have now been replaced.
+            mNumExactFrames = numFrames;
+            if (mHasApproximateFrameGains && mDecodeListener != null) {
+                mDecodeListener.onFramesDecoded(this);
+            }
+            return;
+        }
+        mBlockPeaks = blockPeaks;
+        mFrameRms = frameRms;
+        mFrameGains = frameGains;
+        mNumFrames = numFrames;
+        mNumExactFrames = numFrames;
+        if (mDecodeListener != null) {
+            mDecodeListener.onFramesDecoded(this);
+        }
+    }
+
+    private void RecordAudio(int sampleRate, int channels, int audioSource) {
         if (mProgressListener ==  null) {
             // A progress listener is mandatory here, as it will let us know when to stop recording.
             return;
@@ -406,93 +1329,207 @@ public class SoundFile {
         mInputFile = null;
         mFileType = "raw";
         mFileSize = 0;
-        mSampleRate = 44100;
-        mChannels = 1;  // record mono audio.
-        short[] buffer = new short[1024];  // buffer contains 1 mono frame of 1024 16 bits samples
-        int minBufferSize = AudioRecord.getMinBufferSize(
-                mSampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
-        // make sure minBufferSize can contain at least 1 second of audio (16 bits sample).
-        if (minBufferSize < mSampleRate * 2) {
-            minBufferSize = mSampleRate * 2;
-        }
-        AudioRecord audioRecord = new AudioRecord(
-                MediaRecorder.AudioSource.DEFAULT,
-                mSampleRate,
-                AudioFormat.CHANNEL_IN_MONO,
-                AudioFormat.ENCODING_PCM_16BIT,
-                minBufferSize
-                );
-
-        // Allocate memory for 20 seconds first. Reallocate later if more is needed.
-        mDecodedBytes = ByteBuffer.allocate(20 * mSampleRate * 2);
-        mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-        mDecodedSamples = mDecodedBytes.asShortBuffer();
-        audioRecord.startRecording();
-        while (true) {
-            // check if mDecodedSamples can contain 1024 additional samples.
-            if (mDecodedSamples.remaining() < 1024) {
-                // Try to allocate memory for 10 additional seconds.
-                int newCapacity = mDecodedBytes.capacity() + 10 * mSampleRate * 2;
-                ByteBuffer newDecodedBytes = null;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        // The audio is captured on a dedicated thread into a ring buffer, and consumed here: the
+        // storage of the samples, the frame gains and the progress listener (i.e. UI updates)
+        // can never delay the capture.
+        // Everything below (the ring, the recording file, the frame gains, the encoder) is sized
+        // for this format, so that low sample rates and mono use proportionally less.
+        AudioCapture capture = new AudioCapture(mSampleRate, mChannels, audioSource);
+        int maxChunkSize = 8 * getSamplesPerFrame() * mChannels * 2;  // in bytes.
+
+        // The samples are appended to a chunked sample store, on disk if possible, so that
+        // recording longer never copies the samples recorded so far. If possible, they are
+        // written to a recording file, which is synced every second.
+        RecordingFile recordingFile = null;
+        if (sRecordingDir != null) {
+            try {
+                recordingFile = new RecordingFile(sRecordingDir, mSampleRate, mChannels);
+            } catch (IOException e) {
+                Log.w("Ringdroid", "Failed to create recording file: " + e);
+            }
+        }
+        PCMFile pcmFile = recordingFile != null ? recordingFile.getPCMFile() : createPCMFile();
+        // The samples can also be encoded to AAC next to the recording file as they get recorded.
+        RecordingEncoder encoder = null;
+        if (recordingFile != null && sEncodeWhileRecording) {
+            encoder = new RecordingEncoder(
+                    recordingFile.getEncodedFile(), mSampleRate, mChannels, getAACFormat());
+            try {
+                encoder.start();
+            } catch (IOException e) {
+                Log.w("Ringdroid", "Failed to start encoding recording: " + e);
+                encoder = null;
+            }
+        }
+        int nextSyncSample = mSampleRate;
+        mSamples = new SampleStore(mChannels, pcmFile);
+        if (pcmFile == null && getMemoryBudget() > 0) {
+            // The length of the recording is unknown.
+            mSamples.setMemoryBudget(getMemoryBudget(), 0);
+        }
+        // The frame gains are computed as the samples get recorded, and published as they would
+        // be while decoding a file in streaming mode. Room is made for a minute at first.
+        int numFrames = 60 * mSampleRate / getSamplesPerFrame();
+        mNumFrames = 0;
+        mNumDecodedFrames = 0;
+        mExpectedNumFrames = 0;  // unknown.
+        mHasApproximateFrameGains = false;
+        mBlockPeaks = new short[numFrames * getBlocksPerFrame() * 2];
+        mFrameRms = new byte[numFrames];
+        mFrameGains = new int[numFrames];
+        mFrameGainAccumulator =
+                new FrameGainAccumulator(mChannels, getSamplesPerFrame(), numFrames);
+        mAvgBitRate = mSampleRate * mChannels * 16 / 1000;
+        if (mDecodeListener != null) {
+            mDecodeListener.onDecodeStarted(this);
+        }
+        capture.start();
+        boolean capturing = true;
+        boolean storing = true;  // false once the samples cannot be stored anymore.
+        ByteBuffer bytes;
+        // Once the capture is stopped, the samples it captured until then are consumed.
+        while ((bytes = capture.waitForSamples(maxChunkSize)) != null) {
+            int size = bytes.remaining();
+            // A ByteBuffer cannot hold more than 2GB, and the samples must fit in a single
+            // mapping once recorded.
+            if (mSamples.getSize() + size > Integer.MAX_VALUE) {
+                storing = false;
+            }
+            if (storing) {
                 try {
-                    newDecodedBytes = ByteBuffer.allocate(newCapacity);
+                    mSamples.put(bytes.duplicate());
+                    mNumAvailableSamples = mSamples.getNumSamples();
+                    if (encoder != null) {
+                        try {
+                            encoder.put(bytes);
+                        } catch (IOException e) {
+                            // Keep recording, the recording will be encoded when saved.
+                            Log.w("Ringdroid", "Stopped encoding recording: " + e);
+                            encoder.cancel();
+                            encoder = null;
+                        }
+                    }
+                    mFrameGainAccumulator.add(bytes);
+                    measureLevels(bytes);
+                    computeNewFrameGains();
+                } catch (IOException e) {
+                    Log.w("Ringdroid", "Failed to grow scratch file, stopping recording.");
+                    Log.w("Ringdroid", getStackTrace(e));
+                    storing = false;
                 } catch (OutOfMemoryError oome) {
-                    break;
+                    storing = false;
                 }
-                int position = mDecodedSamples.position();
-                mDecodedBytes.rewind();
-                newDecodedBytes.put(mDecodedBytes);
-                mDecodedBytes = newDecodedBytes;
-                mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-                mDecodedBytes.rewind();
-                mDecodedSamples = mDecodedBytes.asShortBuffer();
-                mDecodedSamples.position(position);
-            }
-            // TODO(nfaralli): maybe use the read method that takes a direct ByteBuffer argument.
-            audioRecord.read(buffer, 0, buffer.length);
-            mDecodedSamples.put(buffer);
+            }
+            capture.release(size);
+            if (recordingFile != null && mSamples.getNumSamples() >= nextSyncSample) {
+                try {
+                    recordingFile.sync(mSamples);
+                } catch (IOException e) {
+                    Log.w("Ringdroid", "Failed to sync recording file: " + e);
+                }
+                nextSyncSample += mSampleRate;
+            }
             // Let the progress listener know how many seconds have been recorded.
             // The returned value tells us if we should keep recording or stop.
-            if (!mProgressListener.reportProgress(
-                    (float)(mDecodedSamples.position()) / mSampleRate)) {
-                break;
+            if (capturing && (!storing || !mProgressListener.reportProgress(
+                    (float)(mSamples.getNumSamples()) / mSampleRate))) {
+                capture.stop();
+                capturing = false;
             }
         }
-        audioRecord.stop();
-        audioRecord.release();
-        mNumSamples = mDecodedSamples.position();
-        mDecodedSamples.rewind();
-        mDecodedBytes.rewind();
-        mAvgBitRate = mSampleRate * 16 / 1000;
-
-        // Temporary hack to make it work with the old version.
-        mNumFrames = mNumSamples / getSamplesPerFrame();
-        if (mNumSamples % getSamplesPerFrame() != 0){
-            mNumFrames++;
+        if (capturing) {
+            capture.stop();  // the capture thread stopped by itself (e.g. AudioRecord failed).
         }
-        mFrameGains = new int[mNumFrames];
-        mFrameLens = null;  // not needed for recorded audio
-        mFrameOffsets = null;  // not needed for recorded audio
-        int i, j;
-        int gain, value;
-        for (i=0; i<mNumFrames; i++){
-            gain = -1;
-            for(j=0; j<getSamplesPerFrame(); j++) {
-                if (mDecodedSamples.remaining() > 0) {
-                    value = java.lang.Math.abs(mDecodedSamples.get());
+        mNumRecordingOverruns = capture.getNumOverruns();
+        mNumDroppedSamples = capture.getNumDroppedSamples();
+        mNumSamples = mSamples.getNumSamples();
+        if (pcmFile != null) {
+            try {
+                if (recordingFile != null) {
+                    mSamples = SampleStore.wrap(recordingFile.finish(mNumSamples), mChannels);
                 } else {
-                    value = 0;
-                }
-                if (gain < value) {
-                    gain = value;
+                    mSamples = SampleStore.wrap(
+                            pcmFile.finish(mNumSamples * mChannels * 2), mChannels);
                 }
+            } catch (IOException e) {
+                // Keep using the chunks mapped so far.
+                Log.w("Ringdroid", getStackTrace(e));
+            }
+        }
+        mRecordingFile = recordingFile;
+        if (encoder != null) {
+            try {
+                mEncodedRecording = encoder.finish();
+                mNumEncodedRecordingSamples = encoder.getNumEncodedSamples();
+            } catch (IOException e) {
+                Log.w("Ringdroid", "Failed to encode recording: " + e);
             }
-            mFrameGains[i] = (int)Math.sqrt(gain);  // here gain = sqrt(max value of 1st channel)...
         }
-        mDecodedSamples.rewind();
+        mNumAvailableSamples = mNumSamples;
+        mHasAllSamples = true;
+        mRecordingPeak = 0;
+        mRecordingRms = 0;
+
+        // Only the last (partial) frame is left to analyze.
+        mFrameGainAccumulator.finish();
+        computeNewFrameGains();
+        if (mFrameGains.length != mNumFrames) {
+            mBlockPeaks = Arrays.copyOf(mBlockPeaks, mNumFrames * getBlocksPerFrame() * 2);
+            mFrameRms = Arrays.copyOf(mFrameRms, mNumFrames);
+            mFrameGains = Arrays.copyOf(mFrameGains, mNumFrames);
+        }
+        mExpectedNumFrames = mNumFrames;
+        mFrameLens = null;  // not needed for recorded audio
+        mFrameOffsets = null;  // not needed for recorded audio
         // DumpSamples();  // Uncomment this line to dump the samples in a TSV file.
     }
 
+    // Measure the peak and RMS levels of the recorded samples of bytes (16 bits little endian),
+    // from its position to its limit. The position of bytes is not changed.
+    private void measureLevels(ByteBuffer bytes) {
+        ShortBuffer samples = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        int numValues = samples.remaining();
+        if (numValues == 0) {
+            return;
+        }
+        int peak = 0;
+        long sumOfSquares = 0;
+        for (int i = 0; i < numValues; i++) {
+            int value = samples.get(i);
+            peak = Math.max(peak, Math.abs(value));
+            sumOfSquares += value * value;
+        }
+        mRecordingPeak = peak / 32768.0f;
+        mRecordingRms = (float)Math.sqrt((double)sumOfSquares / numValues) / 32768.0f;
+    }
+
+    // Instantiate the AAC encoder used by WriteFile() in the background, so that saving does not
+    // have to wait for it. Meant to be called while the user is editing the file.
+    public void warmUpEncoder() {
+        CodecPool.warmUpEncoder(getAACFormat());
+    }
+
+    // Release the decoders and encoders kept for reuse by all SoundFile objects. They are
+    // instantiated again when needed.
+    public static void releaseIdleCodecs() {
+        CodecPool.releaseIdleCodecs();
+    }
+
+    // Format of the AAC stream written by WriteFile().
+    private MediaFormat getAACFormat() {
+        // Some devices have problems reading mono AAC files (e.g. Samsung S3). Making it stereo.
+        int numChannels = (mChannels == 1) ? 2 : mChannels;
+        // Rule of thumb for a good quality: 64kbps per channel. Below 32kHz, the bandwidth of the
+        // audio is narrower, and the bitrate is lowered in proportion to the sample rate.
+        int bitrate = Math.min(64000, 2 * mSampleRate) * numChannels;
+        MediaFormat format =
+                MediaFormat.createAudioFormat("audio/mp4a-latm", mSampleRate, numChannels);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        return format;
+    }
+
     // should be removed in the near future...
     public void WriteFile(File outputFile, int startFrame, int numFrames)
             throws java.io.IOException {
@@ -503,130 +1540,41 @@ public class SoundFile {
 
     public void WriteFile(File outputFile, float startTime, float endTime)
             throws java.io.IOException {
-        int startOffset = (int)(startTime * mSampleRate) * 2 * mChannels;
+        int startSample = (int)(startTime * mSampleRate);
         int numSamples = (int)((endTime - startTime) * mSampleRate);
-        // Some devices have problems reading mono AAC files (e.g. Samsung S3). Making it stereo.
-        int numChannels = (mChannels == 1) ? 2 : mChannels;
+        // A whole recording (give or take a millisecond) which was encoded while being recorded
+        // is copied rather than encoded again.
+        if (mEncodedRecording != null && startSample == 0 &&
+                numSamples >= mNumSamples - mSampleRate / 1000) {
+            copyEncodedRecording(outputFile);
+            return;
+        }
 
-        String mimeType = "audio/mp4a-latm";
-        int bitrate = 64000 * numChannels;  // rule of thumb for a good quality: 64kbps per channel.
-        MediaCodec codec = MediaCodec.createEncoderByType(mimeType);
-        MediaFormat format = MediaFormat.createAudioFormat(mimeType, mSampleRate, numChannels);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
-        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        codec.start();
-
-        // Get an estimation of the encoded data based on the bitrate. Add 10% to it.
-        int estimatedEncodedSize = (int)((endTime - startTime) * (bitrate / 8) * 1.1);
-        ByteBuffer encodedBytes = ByteBuffer.allocate(estimatedEncodedSize);
-        ByteBuffer[] inputBuffers = codec.getInputBuffers();
-        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        boolean done_reading = false;
-        long presentation_time = 0;
-
-        int frame_size = 1024;  // number of samples per frame per channel for an mp4 (AAC) stream.
-        byte buffer[] = new byte[frame_size * numChannels * 2];  // a sample is coded with a short.
-        mDecodedBytes.position(startOffset);
-        numSamples += (2 * frame_size);  // Adding 2 frames, Cf. priming frames for AAC.
-        int tot_num_frames = 1 + (numSamples / frame_size);  // first AAC frame = 2 bytes
-        if (numSamples % frame_size != 0) {
-            tot_num_frames++;
-        }
-        int[] frame_sizes = new int[tot_num_frames];
-        int num_out_frames = 0;
-        int num_frames=0;
-        int num_samples_left = numSamples;
-        int encodedSamplesSize = 0;  // size of the output buffer containing the encoded samples.
-        byte[] encodedSamples = null;
-        while (true) {
-            // Feed the samples to the encoder.
-            int inputBufferIndex = codec.dequeueInputBuffer(100);
-            if (!done_reading && inputBufferIndex >= 0) {
-                if (num_samples_left <= 0) {
-                    // All samples have been read.
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    done_reading = true;
-                } else {
-                    inputBuffers[inputBufferIndex].clear();
-                    if (buffer.length > inputBuffers[inputBufferIndex].remaining()) {
-                        // Input buffer is smaller than one frame. This should never happen.
-                        continue;
-                    }
-                    // bufferSize is a hack to create a stereo file from a mono stream.
-                    int bufferSize = (mChannels == 1) ? (buffer.length / 2) : buffer.length;
-                    if (mDecodedBytes.remaining() < bufferSize) {
-                        for (int i=mDecodedBytes.remaining(); i < bufferSize; i++) {
-                            buffer[i] = 0;  // pad with extra 0s to make a full frame.
-                        }
-                        mDecodedBytes.get(buffer, 0, mDecodedBytes.remaining());
-                    } else {
-                        mDecodedBytes.get(buffer, 0, bufferSize);
-                    }
-                    if (mChannels == 1) {
-                        for (int i=bufferSize - 1; i >= 1; i -= 2) {
-                            buffer[2*i + 1] = buffer[i];
-                            buffer[2*i] = buffer[i-1];
-                            buffer[2*i - 1] = buffer[2*i + 1];
-                            buffer[2*i - 2] = buffer[2*i];
-                        }
-                    }
-                    num_samples_left -= frame_size;
-                    inputBuffers[inputBufferIndex].put(buffer);
-                    presentation_time = (long) (((num_frames++) * frame_size * 1e6) / mSampleRate);
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, buffer.length, presentation_time, 0);
-                }
-            }
+        MediaFormat format = getAACFormat();
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        int numChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        int bitrate = format.getInteger(MediaFormat.KEY_BIT_RATE);
 
-            // Get the encoded samples from the encoder.
-            int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
-            if (outputBufferIndex >= 0 && info.size > 0 && info.presentationTimeUs >=0) {
-                if (num_out_frames < frame_sizes.length) {
-                    frame_sizes[num_out_frames++] = info.size;
-                }
-                if (encodedSamplesSize < info.size) {
-                    encodedSamplesSize = info.size;
-                    encodedSamples = new byte[encodedSamplesSize];
-                }
-                outputBuffers[outputBufferIndex].get(encodedSamples, 0, info.size);
-                outputBuffers[outputBufferIndex].clear();
-                codec.releaseOutputBuffer(outputBufferIndex, false);
-                if (encodedBytes.remaining() < info.size) {  // Hopefully this should not happen.
-                    estimatedEncodedSize = (int)(estimatedEncodedSize * 1.2);  // Add 20%.
-                    ByteBuffer newEncodedBytes = ByteBuffer.allocate(estimatedEncodedSize);
-                    int position = encodedBytes.position();
-                    encodedBytes.rewind();
-                    newEncodedBytes.put(encodedBytes);
-                    encodedBytes = newEncodedBytes;
-                    encodedBytes.position(position);
-                }
-                encodedBytes.put(encodedSamples, 0, info.size);
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                outputBuffers = codec.getOutputBuffers();
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // Subsequent data will conform to new format.
-                // We could check that codec.getOutputFormat(), which is the new output format,
-                // is what we expect.
-            }
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                // We got all the encoded data from the encoder.
-                break;
-            }
+        EncoderClient client = new EncoderClient(
+                startSample, numSamples, numChannels, (int)((endTime - startTime) * (bitrate / 8)));
+        MediaCodec codec = CodecPool.acquireEncoder(mimeType);
+        boolean reusable = false;
+        try {
+            CodecRunner.run(codec, format, MediaCodec.CONFIGURE_FLAG_ENCODE, client, "encode");
+            reusable = true;
+        } finally {
+            CodecPool.release(codec, mimeType, true, reusable);
         }
+        ByteBuffer encodedBytes = client.mEncodedBytes;
         int encoded_size = encodedBytes.position();
         encodedBytes.rewind();
-        codec.stop();
-        codec.release();
-        codec = null;
 
         // Write the encoded stream to the file, 4kB at a time.
-        buffer = new byte[4096];
+        byte buffer[] = new byte[4096];
         try {
             FileOutputStream outputStream = new FileOutputStream(outputFile);
-            outputStream.write(
-                    MP4Header.getMP4Header(mSampleRate, numChannels, frame_sizes, bitrate));
+            outputStream.write(MP4Header.getMP4Header(
+                    mSampleRate, numChannels, client.mFrameSizes, bitrate));
             while (encoded_size - encodedBytes.position() > buffer.length) {
                 encodedBytes.get(buffer);
                 outputStream.write(buffer);
@@ -643,6 +1591,151 @@ public class SoundFile {
         }
     }
 
+    // Write the .m4a file encoded while recording to outputFile, and store the peak summary of
+    // the recording for outputFile, so that its waveform shows up right away when it gets opened.
+    private void copyEncodedRecording(File outputFile) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(outputFile);
+        try {
+            RecordingEncoder.appendFile(mEncodedRecording, outputStream);
+        } finally {
+            outputStream.close();
+        }
+        if (sPeakCache != null) {
+            putEncodedRecordingSummary(outputFile);
+        }
+    }
+
+    // Store the peak summary of outputFile, a copy of mEncodedRecording. The decoded file starts
+    // with the priming samples of the encoder and ends with padding: the frames of the recording
+    // are shifted by the priming delay, and silent frames are added up to the encoded length.
+    private void putEncodedRecordingSummary(File outputFile) {
+        int samplesPerFrame = getSamplesPerFrame();
+        if (RecordingEncoder.PRIMING_SAMPLES % samplesPerFrame != 0) {
+            return;  // the frames would not line up, the first decode will store the summary.
+        }
+        int shift = RecordingEncoder.PRIMING_SAMPLES / samplesPerFrame;
+        int numFrames = (mNumEncodedRecordingSamples + samplesPerFrame - 1) / samplesPerFrame;
+        int numRecordedFrames = Math.min(mNumFrames, numFrames - shift);
+        if (numRecordedFrames <= 0) {
+            return;
+        }
+        int[] frameGains = new int[numFrames];
+        byte[] frameRms = new byte[numFrames];
+        int frameSize = getBlocksPerFrame() * 2;
+        short[] blockPeaks = new short[numFrames * frameSize];
+        System.arraycopy(mFrameGains, 0, frameGains, shift, numRecordedFrames);
+        System.arraycopy(mFrameRms, 0, frameRms, shift, numRecordedFrames);
+        System.arraycopy(mBlockPeaks, 0, blockPeaks, shift * frameSize,
+                numRecordedFrames * frameSize);
+        // Mono recordings are encoded as stereo, with the same frame gains.
+        int numChannels = getAACFormat().getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        sPeakCache.put(outputFile, mSampleRate, numChannels, samplesPerFrame,
+                frameGains, frameRms, blockPeaks, numFrames);
+    }
+
+    // Feeds numSamples samples starting at sample startSample (read with readSamples()) to an
+    // AAC encoder, 1 frame at a time, and collects the encoded frames.
+    private class EncoderClient implements CodecRunner.Client {
+        private int mNumChannels;
+        private int mEstimatedEncodedSize;
+        private ByteBuffer mEncodedBytes;
+        private int[] mFrameSizes;
+        private int mNumOutFrames = 0;
+        private int mNumFrames = 0;
+        private int mNumSamplesLeft;
+        private int mReadPosition;
+        private int mFrameSize = 1024;  // number of samples per frame per channel for AAC.
+        private byte[] mBuffer;
+        private ShortBuffer mSamples;
+        private int mEncodedSamplesSize = 0;  // size of the buffer containing the encoded samples.
+        private byte[] mEncodedSamples = null;
+
+        public EncoderClient(int startSample, int numSamples, int numChannels,
+                             int estimatedEncodedSize) {
+            mNumChannels = numChannels;
+            // Get an estimation of the encoded data based on the bitrate. Add 10% to it.
+            mEstimatedEncodedSize = (int)(estimatedEncodedSize * 1.1);
+            mEncodedBytes = ByteBuffer.allocate(mEstimatedEncodedSize);
+            mBuffer = new byte[mFrameSize * numChannels * 2];  // a sample is coded with a short.
+            // The samples are read (and decoded if needed) directly into mBuffer.
+            mSamples = ByteBuffer.wrap(mBuffer).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            mReadPosition = startSample;
+            numSamples += (2 * mFrameSize);  // Adding 2 frames, Cf. priming frames for AAC.
+            int tot_num_frames = 1 + (numSamples / mFrameSize);  // first AAC frame = 2 bytes
+            if (numSamples % mFrameSize != 0) {
+                tot_num_frames++;
+            }
+            mFrameSizes = new int[tot_num_frames];
+            mNumSamplesLeft = numSamples;
+        }
+
+        @Override
+        public boolean readInput(ByteBuffer buffer, MediaCodec.BufferInfo info)
+                throws IOException {
+            if (mNumSamplesLeft <= 0) {
+                // All samples have been read.
+                info.set(0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return true;
+            }
+            if (mBuffer.length > buffer.remaining()) {
+                // Input buffer is smaller than one frame. This should never happen.
+                info.set(0, 0, 0, 0);
+                return true;
+            }
+            // bufferSize is a hack to create a stereo file from a mono stream.
+            int bufferSize = (mChannels == 1) ? (mBuffer.length / 2) : mBuffer.length;
+            mSamples.clear();
+            int numRead = readSamples(mReadPosition, mFrameSize, mSamples);
+            mReadPosition += mFrameSize;
+            for (int i = numRead * mChannels * 2; i < bufferSize; i++) {
+                mBuffer[i] = 0;  // pad with extra 0s to make a full frame.
+            }
+            if (mChannels == 1) {
+                for (int i=bufferSize - 1; i >= 1; i -= 2) {
+                    mBuffer[2*i + 1] = mBuffer[i];
+                    mBuffer[2*i] = mBuffer[i-1];
+                    mBuffer[2*i - 1] = mBuffer[2*i + 1];
+                    mBuffer[2*i - 2] = mBuffer[2*i];
+                }
+            }
+            mNumSamplesLeft -= mFrameSize;
+            buffer.put(mBuffer);
+            long presentationTime = (long) (((mNumFrames++) * mFrameSize * 1e6) / mSampleRate);
+            info.set(0, mBuffer.length, presentationTime, 0);
+            return true;
+        }
+
+        @Override
+        public boolean writeOutput(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            if (info.presentationTimeUs < 0) {
+                return true;
+            }
+            if (mNumOutFrames < mFrameSizes.length) {
+                mFrameSizes[mNumOutFrames++] = info.size;
+            }
+            if (mEncodedSamplesSize < info.size) {
+                mEncodedSamplesSize = info.size;
+                mEncodedSamples = new byte[mEncodedSamplesSize];
+            }
+            buffer.get(mEncodedSamples, 0, info.size);
+            if (mEncodedBytes.remaining() < info.size) {  // Hopefully this should not happen.
+                mEstimatedEncodedSize = (int)(mEstimatedEncodedSize * 1.2);  // Add 20%.
+                ByteBuffer newEncodedBytes = ByteBuffer.allocate(mEstimatedEncodedSize);
+                int position = mEncodedBytes.position();
+                mEncodedBytes.rewind();
+                newEncodedBytes.put(mEncodedBytes);
+                mEncodedBytes = newEncodedBytes;
+                mEncodedBytes.position(position);
+            }
+            mEncodedBytes.put(mEncodedSamples, 0, info.size);
+            return true;
+        }
+
+        @Override
+        public void setOutputFormat(MediaFormat format) {
+        }
+    }
+
     // Method used to swap the left and right channels (needed for stereo WAV files).
     // buffer contains the PCM data: {sample 1 right, sample 1 left, sample 2 right, etc.}
     // The size of a sample is assumed to be 16 bits (for a single channel).
@@ -666,6 +1759,16 @@ public class SoundFile {
         }
     }
 
+    // Same as swapLeftRightChannels(byte[]), swapping the stereo float samples of buffer from its
+    // position to its limit.
+    private void swapLeftRightChannels(FloatBuffer buffer) {
+        for (int i = buffer.position(); i + 1 < buffer.limit(); i += 2) {
+            float right = buffer.get(i);
+            buffer.put(i, buffer.get(i + 1));
+            buffer.put(i + 1, right);
+        }
+    }
+
     // should be removed in the near future...
     public void WriteWAVFile(File outputFile, int startFrame, int numFrames)
             throws java.io.IOException {
@@ -676,52 +1779,78 @@ public class SoundFile {
 
     public void WriteWAVFile(File outputFile, float startTime, float endTime)
             throws java.io.IOException {
-        int startOffset = (int)(startTime * mSampleRate) * 2 * mChannels;
+        int startSample = (int)(startTime * mSampleRate);
         int numSamples = (int)((endTime - startTime) * mSampleRate);
+        if (mEncoding != SampleFormat.PCM_16BIT) {
+            WriteHighResolutionWAVFile(outputFile, startSample, numSamples);
+            return;
+        }
 
         // Start by writing the RIFF header.
         FileOutputStream outputStream = new FileOutputStream(outputFile);
         outputStream.write(WAVHeader.getWAVHeader(mSampleRate, mChannels, numSamples));
 
-        // Write the samples to the file, 1024 at a time.
+        // Write the samples to the file, 1024 at a time. The samples are read (and decoded if
+        // needed) directly into buffer.
         byte buffer[] = new byte[1024 * mChannels * 2];  // Each sample is coded with a short.
-        mDecodedBytes.position(startOffset);
-        int numBytesLeft = numSamples * mChannels * 2;
-        while (numBytesLeft >= buffer.length) {
-            if (mDecodedBytes.remaining() < buffer.length) {
-                // This should not happen.
-                for (int i = mDecodedBytes.remaining(); i < buffer.length; i++) {
-                    buffer[i] = 0;  // pad with extra 0s to make a full frame.
-                }
-                mDecodedBytes.get(buffer, 0, mDecodedBytes.remaining());
-            } else {
-                mDecodedBytes.get(buffer);
+        ShortBuffer samples =
+                ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        int position = startSample;
+        int numSamplesLeft = numSamples;
+        while (numSamplesLeft > 0) {
+            int numSamplesToWrite = Math.min(numSamplesLeft, 1024);
+            samples.clear();
+            int numRead = readSamples(position, numSamplesToWrite, samples);
+            for (int i = numRead * mChannels * 2; i < numSamplesToWrite * mChannels * 2; i++) {
+                buffer[i] = 0;  // This should not happen. Pad with extra 0s.
             }
             if (mChannels == 2) {
                 swapLeftRightChannels(buffer);
             }
-            outputStream.write(buffer);
-            numBytesLeft -= buffer.length;
+            outputStream.write(buffer, 0, numSamplesToWrite * mChannels * 2);
+            position += numSamplesToWrite;
+            numSamplesLeft -= numSamplesToWrite;
         }
-        if (numBytesLeft > 0) {
-            if (mDecodedBytes.remaining() < numBytesLeft) {
-                // This should not happen.
-                for (int i = mDecodedBytes.remaining(); i < numBytesLeft; i++) {
-                    buffer[i] = 0;  // pad with extra 0s to make a full frame.
-                }
-                mDecodedBytes.get(buffer, 0, mDecodedBytes.remaining());
-            } else {
-                mDecodedBytes.get(buffer, 0, numBytesLeft);
+        outputStream.close();
+    }
+
+    // Write the numSamples samples starting at sample startSample in a WAV file in the format of
+    // the samples (24 bits PCM or 32 bits float), so that they keep their resolution.
+    private void WriteHighResolutionWAVFile(File outputFile, int startSample, int numSamples)
+            throws java.io.IOException {
+        FileOutputStream outputStream = new FileOutputStream(outputFile);
+        outputStream.write(WAVHeader.getWAVHeader(mSampleRate, mChannels, numSamples, mEncoding));
+
+        // Write the samples to the file, 1024 at a time. The samples are read as float, without
+        // losing their resolution, and converted back to their format in buffer.
+        int sampleSize = mChannels * SampleFormat.getBytesPerValue(mEncoding);
+        byte buffer[] = new byte[1024 * sampleSize];
+        ByteBuffer bytes = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+        FloatBuffer samples = FloatBuffer.allocate(1024 * mChannels);
+        int position = startSample;
+        int numSamplesLeft = numSamples;
+        while (numSamplesLeft > 0) {
+            int numSamplesToWrite = Math.min(numSamplesLeft, 1024);
+            samples.clear();
+            readSamples(position, numSamplesToWrite, samples);
+            while (samples.position() < numSamplesToWrite * mChannels) {
+                samples.put(0);  // This should not happen. Pad with extra 0s.
             }
+            samples.flip();
             if (mChannels == 2) {
-                swapLeftRightChannels(buffer);
+                // Same channel order as the 16 bits WAV files, see WriteWAVFile().
+                swapLeftRightChannels(samples);
             }
-            outputStream.write(buffer, 0, numBytesLeft);
+            bytes.clear();
+            SampleFormat.convert(samples, bytes, mEncoding);
+            outputStream.write(buffer, 0, numSamplesToWrite * sampleSize);
+            position += numSamplesToWrite;
+            numSamplesLeft -= numSamplesToWrite;
         }
         outputStream.close();
     }
 
-    // Debugging method dumping all the samples in mDecodedSamples in a TSV file.
+    // Debugging method dumping all the samples in a TSV file.
     // Each row describes one sample and has the following format:
     // "<presentation time in seconds>\t<channel 1>\t...\t<channel N>\n"
     // File will be written on the SDCard under media/audio/debug/
@@ -747,7 +1876,7 @@ public class SoundFile {
         // Start dumping the samples.
         BufferedWriter writer = null;
         float presentationTime = 0;
-        mDecodedSamples.rewind();
+        ShortBuffer samples = getSamples();
         String row;
         try {
             writer = new BufferedWriter(new FileWriter(outFile));
@@ -755,7 +1884,7 @@ public class SoundFile {
                 presentationTime = (float)(sampleIndex) / mSampleRate;
                 row = Float.toString(presentationTime);
                 for (int channelIndex = 0; channelIndex < mChannels; channelIndex++) {
-                    row += "\t" + mDecodedSamples.get();
+                    row += "\t" + samples.get();
                 }
                 row += "\n";
                 writer.write(row);
@@ -764,14 +1893,13 @@ public class SoundFile {
             Log.w("Ringdroid", "Failed to create the sample TSV file.");
             Log.w("Ringdroid", getStackTrace(e));
         }
-        // We are done here. Close the file and rewind the buffer.
+        // We are done here. Close the file.
         try {
             writer.close();
         } catch (Exception e) {
             Log.w("Ringdroid", "Failed to close sample TSV file.");
             Log.w("Ringdroid", getStackTrace(e));
         }
-        mDecodedSamples.rewind();
     }
 
     // Helper method (samples will be dumped in media/audio/debug/samples.tsv).
@@ -22,12 +22,25 @@ public class WAVHeader {
     private int mChannels;           // number of channels.
     private int mNumSamples;         // total number of samples per channel.
     private int mNumBytesPerSample;  // number of bytes per sample, all channels included.
+    private int mEncoding;           // format of the samples, one of the SampleFormat constants.
+    private boolean mHasPadding;     // true for the historical header, see setHeader().
 
     public WAVHeader(int sampleRate, int numChannels, int numSamples) {
+        this(sampleRate, numChannels, numSamples, SampleFormat.PCM_16BIT, true);
+    }
+
+    public WAVHeader(int sampleRate, int numChannels, int numSamples, int encoding) {
+        this(sampleRate, numChannels, numSamples, encoding, false);
+    }
+
+    private WAVHeader(int sampleRate, int numChannels, int numSamples, int encoding,
+                      boolean hasPadding) {
         mSampleRate = sampleRate;
         mChannels = numChannels;
         mNumSamples = numSamples;
-        mNumBytesPerSample = 2 * mChannels;  // assuming 2 bytes per sample (for 1 channel)
+        mEncoding = encoding;
+        mHasPadding = hasPadding;
+        mNumBytesPerSample = SampleFormat.getBytesPerValue(encoding) * mChannels;
         mHeader = null;
         setHeader();
     }
@@ -40,6 +53,11 @@ public class WAVHeader {
         return new WAVHeader(sampleRate, numChannels, numSamples).mHeader;
     }
 
+    public static byte[] getWAVHeader(int sampleRate, int numChannels, int numSamples,
+                                      int encoding) {
+        return new WAVHeader(sampleRate, numChannels, numSamples, encoding).mHeader;
+    }
+
     public String toString() {
         String str = "";
         if (mHeader == null) {
@@ -64,7 +82,10 @@ public class WAVHeader {
     }
 
     private void setHeader() {
-        byte[] header = new byte[46];
+        // The header created without an explicit encoding historically ends with 2 extra bytes,
+        // which SoundFile.WriteWAVFile() compensates for. Otherwise it is a standard 44 bytes
+        // header.
+        byte[] header = new byte[mHasPadding ? 46 : 44];
         int offset = 0;
         int size;
 
@@ -84,8 +105,9 @@ public class WAVHeader {
         offset += 4;
         System.arraycopy(new byte[] {0x10, 0, 0, 0}, 0, header, offset, 4);  // chunk size = 16
         offset += 4;
-        System.arraycopy(new byte[] {1, 0}, 0, header, offset, 2);  // format = 1 for PCM
-        offset += 2;
+        // format = 1 for PCM, 3 for float
+        header[offset++] = (byte)(mEncoding == SampleFormat.PCM_FLOAT ? 3 : 1);
+        header[offset++] = 0;
         header[offset++] = (byte)(mChannels & 0xFF);
         header[offset++] = (byte)((mChannels >> 8) & 0xFF);
         header[offset++] = (byte)(mSampleRate & 0xFF);
@@ -99,8 +121,9 @@ public class WAVHeader {
         header[offset++] = (byte)((byteRate >> 24) & 0xFF);
         header[offset++] = (byte)(mNumBytesPerSample & 0xFF);
         header[offset++] = (byte)((mNumBytesPerSample >> 8) & 0xFF);
-        System.arraycopy(new byte[] {0x10, 0}, 0, header, offset, 2);
-        offset += 2;
+        int bitsPerSample = 8 * mNumBytesPerSample / mChannels;
+        header[offset++] = (byte)(bitsPerSample & 0xFF);
+        header[offset++] = (byte)((bitsPerSample >> 8) & 0xFF);
 
         // set the beginning of the data chunk
         System.arraycopy(new byte[] {'d', 'a', 't', 'a'}, 0, header, offset, 4);
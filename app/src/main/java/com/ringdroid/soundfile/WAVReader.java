@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the samples of a WAV file without going through MediaExtractor and MediaCodec. This is
+ * the read-side counterpart of WAVHeader.
+ *
+ * The RIFF chunks are parsed to find the format of the samples and the location of the data
+ * chunk, which is then memory-mapped. Files containing 16 or 24 bits PCM samples or 32 bits float
+ * samples can be used as is, and the mapping directly serves as the sample buffer. Other formats
+ * (8 and 32 bits PCM, 64 bits float) are converted to 16 bits PCM by convertTo16Bits().
+ */
+class WAVReader {
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private int mSampleRate;
+    private int mChannels;
+    private int mNumSamples;     // number of samples per channel.
+    private int mBitsPerSample;  // as stored in the file, for one channel.
+    private boolean mIsFloat;
+    private MappedByteBuffer mData;  // read-only mapping of the data chunk.
+
+    // Parse the header of the WAV file file and map its data chunk. Throw an IOException if the
+    // file is not a WAV file, or if the format of its samples is not supported.
+    public WAVReader(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            readHeader(in);
+        } finally {
+            in.close();  // the mapping remains valid.
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getNumSamples() {
+        return mNumSamples;
+    }
+
+    public int getBitsPerSample() {
+        return mBitsPerSample;
+    }
+
+    public boolean isFloat() {
+        return mIsFloat;
+    }
+
+    // Return true if the samples are stored as 16 bits PCM, in which case getData() can be used
+    // as is.
+    public boolean is16Bits() {
+        return !mIsFloat && mBitsPerSample == 16;
+    }
+
+    // Return the SampleFormat encoding of the samples, in which case getData() can be used as is,
+    // or 0 if they must be converted by convertTo16Bits().
+    public int getEncoding() {
+        if (mIsFloat) {
+            return mBitsPerSample == 32 ? SampleFormat.PCM_FLOAT : 0;
+        }
+        switch (mBitsPerSample) {
+            case 16:
+                return SampleFormat.PCM_16BIT;
+            case 24:
+                return SampleFormat.PCM_24BIT_PACKED;
+            default:
+                return 0;
+        }
+    }
+
+    // Return the read-only mapping of the data chunk, in little endian order.
+    public ByteBuffer getData() {
+        return mData;
+    }
+
+    // Convert numSamples samples (per channel) starting at sample firstSample to 16 bits PCM, and
+    // put them in dest (which must be in little endian order).
+    public void convertTo16Bits(ByteBuffer dest, int firstSample, int numSamples) {
+        int bytesPerSample = mBitsPerSample / 8;
+        int index = firstSample * mChannels * bytesPerSample;
+        int numValues = numSamples * mChannels;
+        int value;
+        for (int i = 0; i < numValues; i++) {
+            if (mIsFloat) {
+                double f;
+                if (bytesPerSample == 4) {
+                    f = mData.getFloat(index);
+                } else {
+                    f = mData.getDouble(index);
+                }
+                value = (int)(f * 32767);
+                if (value > 32767) {
+                    value = 32767;
+                } else if (value < -32768) {
+                    value = -32768;
+                }
+            } else if (bytesPerSample == 1) {
+                // 8 bits samples are unsigned.
+                value = ((mData.get(index) & 0xFF) - 128) << 8;
+            } else {
+                // Keep the 2 most significant bytes.
+                value = mData.getShort(index + bytesPerSample - 2);
+            }
+            dest.putShort((short)value);
+            index += bytesPerSample;
+        }
+    }
+
+    private void readHeader(RandomAccessFile in) throws IOException {
+        long fileSize = in.length();
+        ByteBuffer buffer = ByteBuffer.allocate(40);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        // RIFF chunk.
+        readBytes(in, buffer, 12);
+        if (buffer.getInt() != fourCC("RIFF")) {
+            throw new IOException("Not a RIFF file");
+        }
+        buffer.getInt();  // RIFF chunk size, not reliable.
+        if (buffer.getInt() != fourCC("WAVE")) {
+            throw new IOException("Not a WAVE file");
+        }
+
+        // Look for the fmt and data chunks. Other chunks are skipped.
+        int format = -1;
+        int blockAlign = 0;
+        long dataSize;
+        long offset = 12;
+        while (true) {
+            if (offset + 8 > fileSize) {
+                throw new IOException("No data chunk found");
+            }
+            in.seek(offset);
+            readBytes(in, buffer, 8);
+            int id = buffer.getInt();
+            long size = buffer.getInt() & 0xFFFFFFFFL;
+            offset += 8;
+            if (id == fourCC("fmt ")) {
+                if (size < 16) {
+                    throw new IOException("Invalid fmt chunk");
+                }
+                readBytes(in, buffer, (int)Math.min(size, 40));
+                format = buffer.getShort() & 0xFFFF;
+                mChannels = buffer.getShort() & 0xFFFF;
+                mSampleRate = buffer.getInt();
+                buffer.getInt();  // byte rate.
+                blockAlign = buffer.getShort() & 0xFFFF;
+                mBitsPerSample = buffer.getShort() & 0xFFFF;
+                if (format == WAVE_FORMAT_EXTENSIBLE) {
+                    if (size < 40) {
+                        throw new IOException("Invalid fmt chunk");
+                    }
+                    // Skip cbSize, valid bits per sample and channel mask. The actual format is
+                    // given by the first 2 bytes of the sub-format GUID.
+                    buffer.position(24);
+                    format = buffer.getShort() & 0xFFFF;
+                }
+            } else if (id == fourCC("data")) {
+                if (format < 0) {
+                    throw new IOException("No fmt chunk before the data chunk");
+                }
+                // The size of the data chunk is sometimes wrong (e.g. set to 0 or 0xFFFFFFFF by
+                // apps writing WAV files while recording). Trust the size of the file instead.
+                if (size == 0 || offset + size > fileSize) {
+                    size = fileSize - offset;
+                }
+                dataSize = size;
+                break;
+            }
+            offset += size + (size & 1);  // chunks are 2 bytes aligned.
+        }
+
+        if (format == WAVE_FORMAT_PCM) {
+            mIsFloat = false;
+            if (mBitsPerSample != 8 && mBitsPerSample != 16 &&
+                    mBitsPerSample != 24 && mBitsPerSample != 32) {
+                throw new IOException("Unsupported number of bits per sample: " + mBitsPerSample);
+            }
+        } else if (format == WAVE_FORMAT_IEEE_FLOAT) {
+            mIsFloat = true;
+            if (mBitsPerSample != 32 && mBitsPerSample != 64) {
+                throw new IOException("Unsupported number of bits per sample: " + mBitsPerSample);
+            }
+        } else {
+            throw new IOException("Unsupported WAV format: " + format);
+        }
+        if (mChannels <= 0 || mSampleRate <= 0 ||
+                blockAlign != mChannels * mBitsPerSample / 8) {
+            throw new IOException("Invalid fmt chunk");
+        }
+
+        // Both the mapping and the samples converted to 16 bits must fit in a ByteBuffer.
+        dataSize = Math.min(dataSize, Integer.MAX_VALUE);
+        dataSize = Math.min(dataSize, (long)Integer.MAX_VALUE * blockAlign / 2 / mChannels);
+        mNumSamples = (int)(dataSize / blockAlign);
+        mData = in.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, offset, (long)mNumSamples * blockAlign);
+        mData.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Read size bytes from in into buffer, and flip buffer so that they can be read.
+    private static void readBytes(RandomAccessFile in, ByteBuffer buffer, int size)
+            throws IOException {
+        buffer.clear();
+        in.readFully(buffer.array(), 0, size);
+        buffer.limit(size);
+    }
+
+    private static int fourCC(String id) {
+        return (id.charAt(0)) | (id.charAt(1) << 8) | (id.charAt(2) << 16) | (id.charAt(3) << 24);
+    }
+}